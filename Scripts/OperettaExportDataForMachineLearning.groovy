@@ -1,18 +1,18 @@
 //#@File id (label="Selected File")
 //#@File save_dir (label="Save Location", style="directory")
-//#@String dataset_name (label="Dataset Name", style="directory")
+//#@String dataset_name (label="Dataset Name")
 
 //#@String sources_str (label="Source Channels", value="1")
 //#@String targets_str (label="Target Channels", value="2")
 
+//#@Integer patch_size (label="Patch Size (px)", value=256)
+//#@Integer patches_per_field (label="Patches per Field", value=16)
+//#@String strategy (label="Sampling", choices={"RANDOM", "GRID"})
+
 
 import ch.epfl.biop.operetta.OperettaManager
 import ch.epfl.biop.operetta.utils.HyperRange
-import groovyx.gpars.GParsPool
-import ij.IJ
-import ij.ImagePlus
-import ij.plugin.ChannelSplitter
-import ij.plugin.RGBStackMerge
+import ch.epfl.biop.operetta.utils.PatchExporter
 
 
 // Start the Operetta Manager
@@ -25,55 +25,18 @@ def opm = new OperettaManager.Builder( )
 def sources = HyperRange.parseString( sources_str )
 def targets = HyperRange.parseString( targets_str )
 
-
-def allWells = opm.getAvailableWells( )
-
 // Grab pixel size
 def cal = opm.getCalibration()
 
 // Round the calibration
 def rounded_px_size = cal.pixelWidth.round(2)
 
+// Sample patches from all wells in parallel. They are saved in a few chunked .npy files,
+// 'source' and 'target' at the same index, with a manifest of where each patch comes from
+def count = new PatchExporter( opm, sources, targets )
+		.setPatchSize( patch_size )
+		.setPatchesPerField( patches_per_field )
+		.setStrategy( PatchExporter.Strategy.valueOf( strategy ) )
+		.export( save_dir, dataset_name + "-" + rounded_px_size )
 
-// Create the directories
-def source_dir = new File ( save_dir, "source/" + dataset_name + "-"+rounded_px_size )
-def target_dir = new File ( save_dir, "target/" + dataset_name + "-"+rounded_px_size )
-
-source_dir.mkdirs()
-target_dir.mkdirs()
-
-
-//Process all wells
-
-allWells.each{ well ->
-	def fields = opm.getAvailableSamples( well )
-
-
-	fields.each { field ->
-		def image = opm.getFieldImage( field )
-		//image.show()
-
-		ImagePlus[] channels = ChannelSplitter.split( image )
-
-		def source_images = sources.collect{ return channels[ it-1 ] }
-		def target_images = targets.collect{ return channels[ it-1 ] }
-
-		def source = source_images[0]
-		def target = target_images[0]
-
-		if (source_images.size() > 1 )
-			source = RGBStackMerge.mergeChannels( source_images as ImagePlus[], false )
-
-		if (target_images.size() > 1 )
-			target = RGBStackMerge.mergeChannels( target_images as ImagePlus[], false )
-
-		//def hash = image.getTitle().digest('SHA-1')
-
-		def hash = image.getTitle()
-
-		IJ.saveAsTiff( source, new File( source_dir, hash ).getAbsolutePath() )
-
-		IJ.saveAsTiff( target, new File( target_dir, hash ).getAbsolutePath() )
-		println ( sprintf( "Field %s done, saved as %s", image.getTitle(), hash ) )
-	}
-}
\ No newline at end of file
+println( sprintf( "%d patches saved in %s", count, save_dir ) )
@@ -0,0 +1,55 @@
+//#@File id (label="Selected File")
+//#@File save_dir (label="Save Location", style="directory")
+//#@Integer downsample (label="Downsample Factor", value=4)
+//#@Integer n_wells (label="Number of Wells to Export", value=4)
+//#@Integer n_threads (label="Number of Threads", value=8)
+
+import ch.epfl.biop.operetta.OperettaManager
+import ch.epfl.biop.operetta.utils.ExportPlanner
+import ij.IJ
+import ij.measure.ResultsTable
+
+// Compares the parallelism granularities of the export on a few representative layouts of the same plate
+// Each export is written to its own folder, which is deleted afterwards
+// The level chosen by AUTO for each export is written to the log
+
+def modes = [ ExportPlanner.Granularity.WELL, ExportPlanner.Granularity.FIELD, ExportPlanner.Granularity.PLANE, ExportPlanner.Granularity.AUTO ]
+
+// Few planes per field, stitched wells; all slices, stitched wells; few planes per field, individual fields
+def layouts = [
+        [ name: "Stitched, 1 slice", z: "1:1", is_fields_individual: false ],
+        [ name: "Stitched, all slices", z: "", is_fields_individual: false ],
+        [ name: "Fields, 1 slice", z: "1:1", is_fields_individual: true ]
+]
+
+def rt = new ResultsTable()
+
+layouts.each { layout ->
+    modes.each { mode ->
+        def folder = new File( save_dir, "benchmark " + layout.name + " " + mode )
+        def opm = new OperettaManager.Builder()
+                .setId( id )
+                .setSaveFolder( folder )
+                .setExportThreads( 1, n_threads, 1, 2 )
+                .setParallelism( mode )
+                .build()
+
+        if ( layout.z ) opm.getRange().updateZRange( layout.z )
+        def wells = opm.getAvailableWells().take( n_wells )
+
+        def start = System.currentTimeMillis()
+        opm.process( wells, null, downsample, null, layout.is_fields_individual )
+        def seconds = ( System.currentTimeMillis() - start ) / 1000.0
+
+        rt.incrementCounter()
+        rt.addValue( "Layout", layout.name )
+        rt.addValue( "Mode", mode.toString() )
+        rt.addValue( "Time (s)", seconds )
+        rt.addValue( "Files/s", opm.getIoThrottle().getFiles() / seconds )
+        rt.show( "Parallelism Benchmark" )
+
+        IJ.log( layout.name + ", " + mode + ": " + seconds + " s" )
+        opm.close()
+        folder.deleteDir()
+    }
+}
@@ -21,27 +21,15 @@ def ypos = [300, 14500, 29500, 45000, 74000 ]
 def width_full = 17500
 def height_full = 5000
 
-// Process all wells
-allWells.each { well ->
-	
-
-	// Process Each ROI
-	ypos.eachWithIndex { y, i ->
-		def fields = opm.getAvailableSamples(well)
-
-		def roi = new Roi( xpos[i], ypos[i], width_full, height_full )
-
-		// Get only the fields that intersect with the ROI
-		fields = opm.getIntersectingFields(fields, roi)
+def rois = ypos.withIndex().collect { y, i -> new Roi( xpos[i], y, width_full, height_full ) }
 
-		// Save each field
-		fields.each { field ->
-			def one_field = opm.getFieldImage( field, downsample )
-
-			IJ.saveAsTiff(one_field, new File(save_dir, one_field.getTitle()).getAbsolutePath())
-
-		}
-		//Save the positions file
-		opm.writeWellPositionsFile(fields, new File(save_dir, sprintf("ROI-%2d.txt", i)), downsample)
-	}
-}
\ No newline at end of file
+// Process all wells, each field is read only once even if it is shared by several ROIs
+allWells.each { well ->
+	// Save the fields of all ROIs and one positions file per ROI
+	opm.exportWellRoiFields( well, rois, downsample )
+
+	// To get the stitched ROIs directly instead
+	// opm.getWellRoiImages( well, rois, downsample ).each { roi_image ->
+	//	if ( roi_image != null ) IJ.saveAsTiff( roi_image, new File( save_dir, roi_image.getTitle() + ".tif" ).getAbsolutePath() )
+	// }
+}
@@ -1,16 +1,30 @@
 package ch.epfl.biop.operetta;
 
+import ch.epfl.biop.operetta.utils.DatasetWatcher;
+import ch.epfl.biop.operetta.utils.ExportPipeline;
+import ch.epfl.biop.operetta.utils.ExportPlanner;
+import ch.epfl.biop.operetta.utils.FieldArchive;
+import ch.epfl.biop.operetta.utils.GcMonitor;
+import ch.epfl.biop.operetta.utils.HedgedReader;
 import ch.epfl.biop.operetta.utils.HyperRange;
+import ch.epfl.biop.operetta.utils.IoThrottle;
+import ch.epfl.biop.operetta.utils.MappedStack;
+import ch.epfl.biop.operetta.utils.MemoCache;
+import ch.epfl.biop.operetta.utils.NormalizationEstimator;
+import ch.epfl.biop.operetta.utils.PixelConverter;
+import ch.epfl.biop.operetta.utils.PlanePool;
+import ch.epfl.biop.operetta.utils.ReadScheduler;
+import ch.epfl.biop.operetta.utils.ReaderPool;
+import ch.epfl.biop.operetta.utils.TiffPlaneReader;
+import ch.epfl.biop.operetta.utils.TimelapseTiffWriter;
+import ch.epfl.biop.operetta.utils.WellLayout;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
-import ij.gui.Overlay;
 import ij.gui.Roi;
-import ij.io.Opener;
 import ij.measure.Calibration;
 import ij.plugin.HyperStackConverter;
 import ij.plugin.ZProjector;
-import ij.process.Blitter;
 import ij.process.ImageProcessor;
 import loci.formats.*;
 import loci.formats.in.OperettaReader;
@@ -30,19 +44,37 @@ import java.awt.*;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Supplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -52,7 +84,7 @@ import java.util.stream.IntStream;
  *
  * The entry point is to call the {@link Builder} class to create the correct OperettaManager object
  */
-public class OperettaManager {
+public class OperettaManager implements AutoCloseable {
 
     private static Logger log = LoggerFactory.getLogger( OperettaManager.class );
 
@@ -66,6 +98,9 @@ public class OperettaManager {
     private double norm_min;
     private double norm_max;
 
+    // Bit depth of the exported images, 8, 16 or 32
+    private final int bit_depth;
+
     private boolean is_projection;
     private int projection_type;
 
@@ -79,6 +114,59 @@ public class OperettaManager {
 
     private double correction_factor = 0.995;
 
+    // Thread budgets for the export pipeline, see {@link ExportPipeline}
+    private final int read_threads;
+    private final int write_threads;
+    private final int queue_capacity;
+    private final int decode_threads;
+
+    // Memory the export may use, in bytes. 0 means it is decided when the export starts
+    private final long memory_budget;
+
+    // Where stitched wells larger than the memory budget are assembled, null to disable
+    private final File scratch_folder;
+
+    // Wells and fields of the plate, indexed once so that lookups do not scan the metadata
+    private final List<Well> wells;
+    private final Well[][] well_grid;
+    private final WellSample[][][] field_grid;
+    private final List<String> wells_string;
+    private final List<String> fields_string;
+
+    // Geometry of each well, by well ID, built when first needed
+    private final Map<String, WellLayout> layouts = new ConcurrentHashMap<>( );
+
+    // Shared work-stealing pool that runs the well, field and plane tasks of exports
+    private final ForkJoinPool plane_pool;
+
+    // Level at which exports run in parallel, as requested, and as used by the current export
+    private final ExportPlanner.Granularity granularity;
+
+    // Planes of fields that are only kept until they are copied into their well
+    private final PlanePool plane_buffers = new PlanePool( Math.min( 256L << 20, Runtime.getRuntime( ).maxMemory( ) / 8 ) );
+
+    // Readers on this dataset, one per thread, so that wells and fields can be read concurrently
+    private final ReaderPool reader_pool;
+
+    // Whether time-lapses are exported one timepoint at a time, see {@link TimelapseTiffWriter}
+    private final boolean is_streaming;
+
+    // Orders file reads the way they are on disk and reads the next field ahead of time
+    private final ReadScheduler read_scheduler;
+
+    // Limits how hard reads hit the storage, shared by all the reads of this dataset
+    private final IoThrottle io_throttle;
+
+    // Bounds the time a single file can take, see {@link HedgedReader}
+    private final HedgedReader file_reader;
+
+    // Whether individually exported fields are packed in one ZIP per well, see {@link FieldArchive}
+    private final boolean is_field_archive;
+    private final boolean is_archive_compressed;
+
+    // Whether stitched wells too large for the budget are exported as individual fields instead of being skipped
+    private final boolean is_field_fallback;
+
     /**
      * returns the minimum value to use for the normalization of images,
      * in case you have 32-bit (digital phase contrast) images in this Operetta Database
@@ -107,17 +195,51 @@ public class OperettaManager {
      * @param range the range of the data in channels slices and frames
      * @param norm_min the intensity which will be rescaled to 0
      * @param norm_max the intensity which will be rescaled to 65535
+     * @param bit_depth the bit depth of the exported images
      * @param is_projection whether we will perform a Z projection
      * @param projection_type the String type of the Z projection
      * @param save_folder the folder where the exported data should go
+     * @param read_threads the number of wells or fields read at the same time during an export
+     * @param decode_threads the number of planes decoded in parallel
+     * @param write_threads the number of images written at the same time during an export
+     * @param queue_capacity the number of read images that can wait to be written
+     * @param memory_budget the number of bytes an export can use, 0 to use {@link ExportPlanner#getDefaultBudget()}
+     * @param scratch_folder the folder for file-backed well canvases, can be null
+     * @param reader_pool_size the maximum number of readers used at the same time, 0 to use one per read thread
+     * @param is_streaming whether time-lapses are read and written one timepoint at a time
+     * @param read_batch_size the number of consecutive files read by a single thread
+     * @param read_ahead the number of files that can be read ahead of time, 0 to disable read-ahead
+     * @param io_throttle the limits on reads from the storage
+     * @param file_reader reads files with a timeout, retries and hedging
+     * @param is_field_archive whether individually exported fields are packed in one ZIP file per well
+     * @param is_archive_compressed whether the entries of the ZIP files are deflated
+     * @param is_field_fallback whether stitched wells too large for the memory budget are exported as individual fields
+     * @param granularity the level at which exports run in parallel
      */
     private OperettaManager( IFormatReader reader,
                              HyperRange range,
                              double norm_min,
                              double norm_max,
+                             int bit_depth,
                              boolean is_projection,
                              int projection_type,
-                             File save_folder ) {
+                             File save_folder,
+                             int read_threads,
+                             int decode_threads,
+                             int write_threads,
+                             int queue_capacity,
+                             long memory_budget,
+                             File scratch_folder,
+                             int reader_pool_size,
+                             boolean is_streaming,
+                             int read_batch_size,
+                             int read_ahead,
+                             IoThrottle io_throttle,
+                             HedgedReader file_reader,
+                             boolean is_field_archive,
+                             boolean is_archive_compressed,
+                             boolean is_field_fallback,
+                             ExportPlanner.Granularity granularity ) {
 
         this.id = new File( reader.getCurrentFile( ) );
         this.main_reader = reader;
@@ -125,12 +247,73 @@ public class OperettaManager {
         this.range = range;
         this.norm_max = norm_max;
         this.norm_min = norm_min;
+        this.bit_depth = bit_depth;
         this.is_projection = is_projection;
         this.projection_type = projection_type;
         this.save_folder = save_folder;
+        this.read_threads = read_threads;
+        this.write_threads = write_threads;
+        this.queue_capacity = queue_capacity;
+        this.decode_threads = decode_threads;
+        this.memory_budget = memory_budget;
+        this.scratch_folder = scratch_folder;
+        this.is_streaming = is_streaming;
+        this.io_throttle = io_throttle;
+        this.file_reader = file_reader;
+        this.is_field_archive = is_field_archive;
+        this.is_archive_compressed = is_archive_compressed;
+        this.is_field_fallback = is_field_fallback;
+        this.granularity = granularity;
+        this.read_scheduler = new ReadScheduler( read_batch_size, read_ahead, io_throttle );
+        this.plane_pool = new ForkJoinPool( decode_threads );
+        // Wells and fields read in parallel on the pool each need a reader, all loaded from the memo of the first one
+        final File memo_directory = MemoCache.getDirectory( this.id );
+        final File memo_file = reader instanceof Memoizer ? ( (Memoizer) reader ).getMemoFile( this.id.getAbsolutePath( ) ) : null;
+        this.reader_pool = new ReaderPool( reader, reader_pool_size > 0 ? reader_pool_size
+                        : granularity == ExportPlanner.Granularity.PLANE ? read_threads : Math.max( read_threads, decode_threads ),
+                ( ) -> MemoCache.openFromMemo( this.id, memo_directory, memo_file ) );
 
         this.px_size = metadata.getPixelsPhysicalSizeX( 0 );
 
+        // Index wells by row and column, and their fields by position, so that lookups are direct
+        OMEXMLMetadataRoot r = (OMEXMLMetadataRoot) metadata.getRoot( );
+        this.wells = Collections.unmodifiableList( r.getPlate( 0 ).copyWellList( ) );
+
+        int n_rows = wells.stream( ).mapToInt( w -> w.getRow( ).getValue( ) + 1 ).max( ).orElse( 0 );
+        int n_columns = wells.stream( ).mapToInt( w -> w.getColumn( ).getValue( ) + 1 ).max( ).orElse( 0 );
+        this.well_grid = new Well[ n_rows ][ n_columns ];
+        this.field_grid = new WellSample[ n_rows ][ n_columns ][];
+        for ( Well well : wells ) {
+            int row = well.getRow( ).getValue( );
+            int column = well.getColumn( ).getValue( );
+            well_grid[ row ][ column ] = well;
+            field_grid[ row ][ column ] = well.copyWellSampleList( ).toArray( new WellSample[ 0 ] );
+        }
+
+        this.wells_string = Collections.unmodifiableList( wells.stream( )
+                .map( w -> "R" + ( w.getRow( ).getValue( ) + 1 ) + "-C" + ( w.getColumn( ).getValue( ) + 1 ) )
+                .collect( Collectors.toList( ) ) );
+
+        int n_fields = wells.isEmpty( ) ? 0 : metadata.getWellSampleCount( 0, 0 );
+        this.fields_string = Collections.unmodifiableList( IntStream.range( 0, n_fields )
+                .mapToObj( f -> "Field " + ( f + 1 ) )
+                .collect( Collectors.toList( ) ) );
+    }
+
+    /**
+     * returns the bit depth of the exported images
+     * @return 8, 16 or 32
+     */
+    public int getBitDepth( ) {
+        return bit_depth;
+    }
+
+    /**
+     * Returns the 'Index.idx.xml' file of this dataset
+     * @return the file that was used to open the dataset
+     */
+    public File getId( ) {
+        return this.id;
     }
 
     /**
@@ -142,6 +325,66 @@ public class OperettaManager {
         return this.main_reader;
     }
 
+    /**
+     * Returns the pool of readers used to read this dataset from several threads.
+     * Use it rather than {@link #getReader()} when changing the series from a thread that might not be the only one
+     * @return the reader pool, which also keeps metrics on how readers were used
+     */
+    public ReaderPool getReaderPool( ) {
+        return this.reader_pool;
+    }
+
+    /**
+     * Returns the limits on reads from the storage, which can be changed while an export runs, for instance
+     * {@code opm.getIoThrottle( ).setBytesPerSecond( 50 * 1024 * 1024 )}
+     * @return the I/O throttle of this dataset, which also keeps metrics on what was read
+     */
+    public IoThrottle getIoThrottle( ) {
+        return this.io_throttle;
+    }
+
+    /**
+     * Returns the reader that bounds the time each file can take to read
+     * @return the file reader of this dataset, which also keeps metrics on slow files
+     */
+    public HedgedReader getFileReader( ) {
+        return this.file_reader;
+    }
+
+    /**
+     * Returns the level at which wells, fields and planes are read in parallel, as it was set with
+     * {@link Builder#setParallelism(ExportPlanner.Granularity)}. With {@link ExportPlanner.Granularity#AUTO}, each
+     * export chooses its own level and writes it to the log
+     * @return the requested granularity
+     */
+    public ExportPlanner.Granularity getGranularity( ) {
+        return this.granularity;
+    }
+
+    /**
+     * Returns the scheduler that orders the reads of image files, so that other readers of this dataset read files in
+     * the same order
+     * @return the read scheduler of this dataset
+     */
+    public ReadScheduler getReadScheduler( ) {
+        return this.read_scheduler;
+    }
+
+    /**
+     * Reads the plane of a TIFF file of this dataset the way exports do, within the limits of {@link #getIoThrottle()}
+     * and with the timeouts of {@link #getFileReader()}. Files that {@link #getReadScheduler()} read ahead were already
+     * paid for, so they are read without waiting for the throttle
+     * @param file the TIFF file
+     * @param pool where to take the pixel array from, null to allocate a new one. Give it back to the pool once done
+     * @return the plane, or null if it could not be read
+     */
+    public ImageProcessor openPlane( String file, PlanePool pool ) {
+        // Each attempt of the reader takes its own slot of the throttle
+        IoThrottle throttle = read_scheduler.takePrefetched( file ) ? null : io_throttle;
+        return file_reader.read( file, f -> TiffPlaneReader.open( f, pool ),
+                unused -> { if ( pool != null ) pool.release( unused.getPixels( ) ); }, throttle, TiffPlaneReader::getBytes );
+    }
+
     /**
      * This Builder class handles creating {@link OperettaManager} objects for you
      *
@@ -166,6 +409,12 @@ public class OperettaManager {
         private double norm_min = 0;
         private double norm_max = Math.pow( 2, 16 );
 
+        private int bit_depth = 16;
+
+        private boolean is_auto_normalization = false;
+        private double low_percentile = 0.1;
+        private double high_percentile = 99.9;
+
         private HyperRange range = null;
 
         private boolean is_projection = false;
@@ -175,6 +424,37 @@ public class OperettaManager {
 
         private IFormatReader reader = null;
 
+        private int read_threads = 1;
+        private int decode_threads = 10;
+        private int write_threads = 1;
+        private int queue_capacity = 2;
+
+        private long memory_budget = 0;
+
+        private File scratch_folder = null;
+
+        private int reader_pool_size = 0;
+
+        private boolean is_streaming = false;
+
+        private int read_batch_size = 4;
+        private int read_ahead = 32;
+
+        private double read_bytes_per_second = 0;
+        private double read_files_per_second = 0;
+        private int max_open_files = 0;
+
+        private long read_timeout_ms = 60_000;
+        private int read_retries = 2;
+        private boolean is_hedged_reads = true;
+
+        private boolean is_field_archive = false;
+        private boolean is_archive_compressed = false;
+
+        private boolean is_field_fallback = false;
+
+        private ExportPlanner.Granularity granularity = ExportPlanner.Granularity.AUTO;
+
         /**
          * Determines whether the OperettaManager will Z Project the data before saving it, using {@link Builder#setProjectionMethod(String)}
          * @param do_projection true if we wish to perform a Z projection
@@ -209,6 +489,40 @@ public class OperettaManager {
         public Builder setNormalization( int min, int max ) {
             this.norm_min = min;
             this.norm_max = max;
+            this.is_auto_normalization = false;
+            return this;
+        }
+
+        /**
+         * Estimates the normalization values from the data instead of {@link Builder#setNormalization(int, int)}.
+         * When building, a subset of fields spread over the plate is sampled and the given percentiles of the
+         * digital phase channels become the min and max values, see {@link NormalizationEstimator}.
+         * The estimate is cached per plate, so it is only computed the first time.
+         * @param low_percentile the percentile that will be set to 0, eg. 0.1
+         * @param high_percentile the percentile that will be set to 65535, eg. 99.9
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder setAutoNormalization( double low_percentile, double high_percentile ) {
+            this.low_percentile = low_percentile;
+            this.high_percentile = high_percentile;
+            this.is_auto_normalization = true;
+            return this;
+        }
+
+        /**
+         * Sets the bit depth of the exported images. The default, 16-bit, is the native bit depth of the Operetta,
+         * with digital phase images rescaled using {@link Builder#setNormalization(int, int)}.
+         * Use 32-bit to keep digital phase images as they are, at the cost of doubling the size of the export.
+         * With 8-bit, digital phase images are rescaled using the normalization values, and 16-bit images from their full
+         * range, 0 to 65535, to 0 to 255.
+         * @param bit_depth 8, 16 or 32
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder setBitDepth( int bit_depth ) {
+            if ( bit_depth == 8 || bit_depth == 16 || bit_depth == 32 )
+                this.bit_depth = bit_depth;
+            else
+                log.warn( "Bit depth {} is not supported, keeping {}-bit", bit_depth, this.bit_depth );
             return this;
         }
 
@@ -257,6 +571,167 @@ public class OperettaManager {
             return this;
         }
 
+        /**
+         * Sets the thread budget of each stage of the export done by {@link OperettaManager#process(List, List, int, Roi, boolean)}.
+         * Reading the next well overlaps with writing the previous one, and the queue capacity caps how many
+         * images are held in memory between both stages, see {@link ExportPipeline}
+         * @param read_threads number of wells or fields that are read at the same time
+         * @param decode_threads number of planes of a single field that are decoded in parallel
+         * @param write_threads number of images that are written at the same time
+         * @param queue_capacity number of read images that can wait to be written before reading pauses
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder setExportThreads( int read_threads, int decode_threads, int write_threads, int queue_capacity ) {
+            this.read_threads = Math.max( 1, read_threads );
+            this.decode_threads = Math.max( 1, decode_threads );
+            this.write_threads = Math.max( 1, write_threads );
+            this.queue_capacity = Math.max( 1, queue_capacity );
+            return this;
+        }
+
+        /**
+         * Sets how many Bio-Formats readers can be used at the same time on this dataset, see {@link ReaderPool}.
+         * Each reader keeps its own current series, so each thread that reads wells or fields needs its own.
+         * The extra readers are loaded from the memo file of the reader given to {@link Builder#reader(IFormatReader)}, the dataset is never parsed again.
+         * If not set, there is one reader per read thread of {@link Builder#setExportThreads(int, int, int, int)}, or per
+         * decode thread if there are more and wells or fields can be read in parallel, see {@link Builder#setParallelism(ExportPlanner.Granularity)}
+         * @param reader_pool_size the maximum number of readers
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder setReaderPoolSize( int reader_pool_size ) {
+            this.reader_pool_size = Math.max( 0, reader_pool_size );
+            return this;
+        }
+
+        /**
+         * Exports time-lapses one timepoint at a time. Each timepoint is read, stitched and appended to the final TIFF
+         * before the next one is read, see {@link TimelapseTiffWriter}, so an export only needs the memory of a single
+         * timepoint, and the file can be opened while the export runs
+         * @param is_streaming true to stream timepoints, false to read the whole hyperstack before saving it
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder setStreamTimepoints( boolean is_streaming ) {
+            this.is_streaming = is_streaming;
+            return this;
+        }
+
+        /**
+         * Sets how files are read, see {@link ReadScheduler}. Files are always read in the order in which they are on
+         * disk, cut in batches of consecutive files that are each read by a single thread, and the files of the next
+         * field can be read ahead of time while the current one is decoded. Larger batches and more read-ahead help on
+         * spinning disks and network shares, which are slow at jumping between files. Defaults are 4 and 32
+         * @param batch_size the number of consecutive files read by a single thread
+         * @param read_ahead the number of files that can be read ahead of time, 0 to disable read-ahead
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder setReadAhead( int batch_size, int read_ahead ) {
+            this.read_batch_size = Math.max( 1, batch_size );
+            this.read_ahead = Math.max( 0, read_ahead );
+            return this;
+        }
+
+        /**
+         * Limits how hard this dataset is read, so that an export can run on the storage the Operetta is writing to
+         * without slowing down the acquisition, see {@link IoThrottle}. The limits can be changed while an export
+         * runs with {@link OperettaManager#getIoThrottle()}. Files read ahead, see {@link Builder#setReadAhead(int, int)},
+         * count once, when they are read ahead. By default there is no limit
+         * @param mb_per_second the number of megabytes read per second, 0 for no limit
+         * @param files_per_second the number of files opened per second, 0 for no limit
+         * @param max_open_files the number of files open at the same time, 0 for no limit
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder setIoLimits( double mb_per_second, double files_per_second, int max_open_files ) {
+            this.read_bytes_per_second = Math.max( 0, mb_per_second ) * 1024 * 1024;
+            this.read_files_per_second = Math.max( 0, files_per_second );
+            this.max_open_files = Math.max( 0, max_open_files );
+            return this;
+        }
+
+        /**
+         * Bounds the time a single file can take to read, see {@link HedgedReader}. A read that takes longer than the
+         * timeout is cancelled and tried again, and a file is left black after all retries failed, so that one stuck
+         * file on a network share does not stall the export. With hedging, a read slower than 99% of the reads so far
+         * is issued a second time in parallel and the first to finish is used. Defaults are 60 seconds, 2 retries
+         * and hedging
+         * @param timeout_ms the time a single read can take, in milliseconds, 0 for no limit
+         * @param retries the number of times a read that timed out or failed is tried again
+         * @param is_hedged true to issue slow reads a second time
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder setReadTimeout( long timeout_ms, int retries, boolean is_hedged ) {
+            this.read_timeout_ms = Math.max( 0, timeout_ms );
+            this.read_retries = Math.max( 0, retries );
+            this.is_hedged_reads = is_hedged;
+            return this;
+        }
+
+        /**
+         * Packs the fields of each well in a single ZIP file when they are exported individually, instead of writing
+         * one TIFF file per field, see {@link FieldArchive}. The ZIP file also holds the positions file of the well.
+         * Time-lapses streamed one timepoint at a time are still written as separate files, {@link Builder#build()}
+         * warns when both are set
+         * @param is_field_archive true to write one ZIP file per well
+         * @param is_compressed true to deflate the fields, false to store them as they are, which is faster
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder setFieldArchive( boolean is_field_archive, boolean is_compressed ) {
+            this.is_field_archive = is_field_archive;
+            this.is_archive_compressed = is_compressed;
+            return this;
+        }
+
+        /**
+         * Sets the level at which exports run in parallel: whole wells, the fields of a well or the planes of a field,
+         * see {@link ExportPlanner.Granularity}. All of them run on a single pool of decode threads, see
+         * {@link Builder#setExportThreads(int, int, int, int)}. By default it is chosen for each export from the shape
+         * of the plate and the memory budget
+         * @param granularity the level to run in parallel, {@link ExportPlanner.Granularity#AUTO} to choose it
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder setParallelism( ExportPlanner.Granularity granularity ) {
+            this.granularity = granularity == null ? ExportPlanner.Granularity.AUTO : granularity;
+            return this;
+        }
+
+        /**
+         * Sets how much memory an export is allowed to use. Before exporting, the footprint of every well and field
+         * is computed from the metadata, see {@link ExportPlanner}. Jobs only run concurrently while they fit
+         * in this budget. Wells too large to be stitched in memory are stitched in the scratch folder if there is one,
+         * see {@link Builder#setScratchFolder(File)}, otherwise they are skipped, see {@link Builder#setFieldFallback(boolean)}.
+         * If not set, three quarters of the free memory when the export starts is used.
+         * @param bytes the memory budget, in bytes
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder setMemoryBudget( long bytes ) {
+            this.memory_budget = bytes;
+            return this;
+        }
+
+        /**
+         * Exports the fields of stitched wells that do not fit in the memory budget individually, with a positions file,
+         * instead of skipping these wells. This changes what is written for them, so it is off by default. Either way,
+         * the wells concerned are listed at the end of the export
+         * @param is_field_fallback true to export the fields of wells too large to be stitched
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder setFieldFallback( boolean is_field_fallback ) {
+            this.is_field_fallback = is_field_fallback;
+            return this;
+        }
+
+        /**
+         * Sets a scratch folder where stitched wells that do not fit in the memory budget are assembled,
+         * in files (see {@link MappedStack}), rather than exported as individual fields.
+         * The folder needs as much free space as the largest stitched well
+         * @param scratch_folder the folder. If not created, this method will try to create it.
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder setScratchFolder( File scratch_folder ) {
+            scratch_folder.mkdirs( );
+            this.scratch_folder = scratch_folder;
+            return this;
+        }
+
         /**
          * The build method handles creating an {@link OperettaManager} object from all the settings that were provided.
          * This is done so that everything, like the {@link HyperRange} that is defined is valid.
@@ -290,13 +765,52 @@ public class OperettaManager {
                     //TODO
                 }
 
-                return new OperettaManager( reader,
+                // Streamed time-lapses write each field as it goes, they cannot be packed in the ZIP file of their well
+                if ( this.is_field_archive && this.is_streaming && this.range.getRangeT( ).size( ) > 1 ) {
+                    log.warn( "Time-lapses are streamed, fields will be written as separate files instead of one ZIP file per well" );
+                    IJ.log( "Warning: time-lapses are streamed one timepoint at a time, their fields are written as separate files, not packed in a ZIP file per well" );
+                }
+
+                OperettaManager opm = new OperettaManager( reader,
                         this.range,
                         this.norm_min,
                         this.norm_max,
+                        this.bit_depth,
                         this.is_projection,
                         this.projection_method,
-                        this.save_folder );
+                        this.save_folder,
+                        this.read_threads,
+                        this.decode_threads,
+                        this.write_threads,
+                        this.queue_capacity,
+                        this.memory_budget,
+                        this.scratch_folder,
+                        this.reader_pool_size,
+                        this.is_streaming,
+                        this.read_batch_size,
+                        this.read_ahead,
+                        new IoThrottle( this.read_bytes_per_second, this.read_files_per_second, this.max_open_files ),
+                        new HedgedReader( this.read_timeout_ms, this.read_retries, this.is_hedged_reads ),
+                        this.is_field_archive,
+                        this.is_archive_compressed,
+                        this.is_field_fallback,
+                        this.granularity );
+
+                if ( this.is_auto_normalization ) {
+                    try {
+                        NormalizationEstimator.Estimate estimate = new NormalizationEstimator( opm )
+                                .setThreads( this.decode_threads )
+                                .estimate( this.low_percentile, this.high_percentile );
+                        // Phase values are often fractional, so they are not rounded like with setNormalization()
+                        opm.norm_min = estimate.getMin( );
+                        opm.norm_max = estimate.getMax( );
+                        log.info( "Automatic normalization from {} to {}", opm.norm_min, opm.norm_max );
+                    } catch ( Exception e ) {
+                        log.error( "Could not estimate the normalization, keeping {} - {}", this.norm_min, this.norm_max );
+                    }
+                }
+
+                return opm;
 
             } catch ( Exception e ) {
                 log.error( "Issue when creating reader for file {}", id );
@@ -320,12 +834,10 @@ public class OperettaManager {
      * Returns the list of all Wells in the Experiment
      * This is currently configured to work only with one plate, but this method could be extended to work with
      * Experiments containing multiple plates.
-     * @return a List of wells
+     * @return a List of wells, which cannot be modified
      */
     public List<Well> getAvailableWells( ) {
-
-        OMEXMLMetadataRoot r = (OMEXMLMetadataRoot) metadata.getRoot( );
-        return r.getPlate( 0 ).copyWellList( );
+        return this.wells;
     }
 
     /**
@@ -335,7 +847,11 @@ public class OperettaManager {
      * @return the well that matches the provided Row, Column indexes
      */
     public Well getWell( int row, int column ) {
-        Well well = getAvailableWells( ).stream( ).filter( w -> w.getRow( ).getValue( ) == row-1 && w.getColumn( ).getValue( ) == column-1 ).findFirst( ).get( );
+        Well well = null;
+        if ( row > 0 && row <= well_grid.length && column > 0 && column <= well_grid[ row - 1 ].length )
+            well = well_grid[ row - 1 ][ column - 1 ];
+
+        if ( well == null ) throw new NoSuchElementException( "There is no well at R" + row + "-C" + column );
         log.info( "Well at R{}-C{} is {}", row, column, well.getID( ) );
         return well;
     }
@@ -365,15 +881,41 @@ public class OperettaManager {
     /**
      * Get the Field ({@link WellSample}) corresponding to the provided field_id in the given well
      * @param well the well to query
-     * @param field_id the id of the field
+     * @param field_id the id of the field, starting at 1, as listed by {@link #getAvailableFieldsString()}
      * @return the field corresponding to the ID
      */
     public WellSample getField( Well well, int field_id ) {
-        WellSample field = getAvailableSamples( well ).stream( ).filter( s -> s.getIndex( ).getValue( ) == field_id-1 ).findFirst( ).get( );
+        WellSample[] fields = field_grid[ well.getRow( ).getValue( ) ][ well.getColumn( ).getValue( ) ];
+        if ( field_id < 1 || field_id > fields.length )
+            throw new NoSuchElementException( "Well " + well.getID( ) + " has no field " + field_id );
+
+        WellSample field = fields[ field_id - 1 ];
         log.info( "Field with ID {} is {}", field_id, field.getID( ) );
         return field;
     }
 
+    /**
+     * Returns the TIFF files that hold the planes of a field, one file per C Z T plane.
+     * Use {@link HyperRange#getIndexes(String)} to know which plane a file is
+     * @param field the field
+     * @return the absolute paths of the files of this field
+     */
+    public List<String> getFieldFiles( WellSample field ) {
+        return reader_pool.apply( field.getIndex( ).getValue( ), r -> Arrays.stream( r.getSeriesUsedFiles( false ) )
+                .filter( f -> f.endsWith( ".tiff" ) )
+                .collect( Collectors.toList( ) ) );
+    }
+
+    /**
+     * Returns the TIFF files of a field that hold planes in the given range
+     * @param field the field
+     * @param range the range in C Z T
+     * @return the absolute paths of the files of this field in the range
+     */
+    public List<String> getFieldFiles( WellSample field, HyperRange range ) {
+        return getFieldFiles( field ).stream( ).filter( range::includes ).collect( Collectors.toList( ) );
+    }
+
     /**
      * Convenience method to get the final name of a well based on all the user parameters passed
      * Useful for when the fields in a well are stitched together
@@ -421,15 +963,7 @@ public class OperettaManager {
      * @return a list of field ids as Strings
      */
     public List<String> getAvailableFieldsString( ) {
-        // find one well
-        int n_fields = (metadata).getWellSampleCount( 0, 0 );
-
-        List<String> availableFields = IntStream.range( 0, n_fields ).mapToObj( f -> {
-            String s = "Field " + (f + 1);
-            return s;
-        } ).collect( Collectors.toList( ) );
-
-        return availableFields;
+        return this.fields_string;
     }
 
     /**
@@ -437,15 +971,7 @@ public class OperettaManager {
      * @return aa list of Strings with the Well names
      */
     public List<String> getAvailableWellsString( ) {
-        List<String> wells = getAvailableWells( ).stream( )
-                .map( w -> {
-                    int row = w.getRow( ).getValue( )+1;
-                    int col = w.getColumn( ).getValue( )+1;
-
-                    return "R" + row + "-C" + col;
-
-                } ).collect( Collectors.toList( ) );
-        return wells;
+        return this.wells_string;
     }
 
     /**
@@ -461,7 +987,7 @@ public class OperettaManager {
      * @return the resulting ImagePlus ( C,Z,T Hyperstack ), calibrated
      */
     public ImagePlus getWellImage( Well well ) {
-        return makeImagePlus( readSingleWell( well, null, 1, this.range, null ), well, null, getFinalWellImageName( well ) );
+        return makeImagePlus( readSingleWell( well, null, 1, this.range, null, false, getDefaultGranularity( ) ), well, null, getFinalWellImageName( well ) );
     }
     /**
      * Overloaded method, for simplification
@@ -471,7 +997,7 @@ public class OperettaManager {
      * @return the resulting ImagePlus ( C,Z,T Hyperstack ), calibrated
      */
     public ImagePlus getWellImage( Well well, int downscale ) {
-        return makeImagePlus( readSingleWell( well, null, downscale, this.range, null ), well, null, getFinalWellImageName( well ) );
+        return makeImagePlus( readSingleWell( well, null, downscale, this.range, null, false, getDefaultGranularity( ) ), well, null, getFinalWellImageName( well ) );
     }
 
     /**
@@ -483,7 +1009,7 @@ public class OperettaManager {
      * @return the resulting ImagePlus ( C,Z,T Hyperstack ), calibrated
      */
     public ImagePlus getWellImage( Well well, int downscale, Roi subregion ) {
-        return makeImagePlus( readSingleWell( well, null, downscale, this.range, subregion ), well, null, getFinalWellImageName( well )  );
+        return makeImagePlus( readSingleWell( well, null, downscale, this.range, subregion, false, getDefaultGranularity( ) ), well, null, getFinalWellImageName( well )  );
     }
 
     /**
@@ -496,7 +1022,7 @@ public class OperettaManager {
      * @return the resulting ImagePlus ( C,Z,T Hyperstack ), calibrated
      */
     public ImagePlus getWellImage( Well well, int downscale, HyperRange range, Roi subregion ) {
-        return makeImagePlus( readSingleWell( well, null, downscale, range, subregion ), well, range, getFinalWellImageName( well )  );
+        return makeImagePlus( readSingleWell( well, null, downscale, range, subregion, false, getDefaultGranularity( ) ), well, range, getFinalWellImageName( well )  );
     }
 
     /**
@@ -511,7 +1037,188 @@ public class OperettaManager {
      */
     public ImagePlus getWellImage( Well well, List<WellSample> fields, int downscale, HyperRange range, Roi subregion ) {
 
-        return makeImagePlus( readSingleWell( well, fields, downscale, range, subregion ), well, range, getFinalWellImageName( well )  );
+        return readWellImage( well, fields, downscale, range, subregion, false, getDefaultGranularity( ) );
+    }
+
+    /**
+     * Same as {@link OperettaManager#getWellImage(Well, List, int, HyperRange, Roi)}, but the well is stitched in a
+     * {@link MappedStack} in the scratch folder, so it can be larger than the heap. Call {@link MappedStack#close()}
+     * on the stack of the result once it is saved, unless a projection was done, in which case the result is in memory
+     * @param well The well to export. All fields will be stitched
+     * @param fields the fields to export
+     * @param downscale the downscale factor
+     * @param range the C Z T range to extract, as a {@link HyperRange}
+     * @param subregion a square ROI to extract
+     * @return a calibrated ImagePlus
+     */
+    public ImagePlus getMappedWellImage( Well well, List<WellSample> fields, int downscale, HyperRange range, Roi subregion ) {
+
+        return readWellImage( well, fields, downscale, range, subregion, true, getDefaultGranularity( ) );
+    }
+
+    private ImagePlus readWellImage( Well well, List<WellSample> fields, int downscale, HyperRange range, Roi subregion, boolean is_mapped, ExportPlanner.Granularity granularity ) {
+        return makeImagePlus( readSingleWell( well, fields, downscale, range, subregion, is_mapped, granularity ), well, range, getFinalWellImageName( well ) );
+    }
+
+    /**
+     * Extracts several regions of a well at once. Each field that intersects at least one region is read and decoded
+     * a single time, then its planes are copied into every region that needs them.
+     * @param well the well to extract the regions from
+     * @param rois the regions, in pixel coordinates relative to the top left corner of the well
+     * @param downscale the downscale factor
+     * @return one calibrated ImagePlus per region, in the same order, or null for regions that contain no field
+     */
+    public List<ImagePlus> getWellRoiImages( Well well, List<Roi> rois, int downscale ) {
+        final HyperRange range2 = this.range.confirmRange( metadata );
+        final int n = range2.getTotalPlanes( );
+
+        WellLayout layout = getLayout( well );
+        Point topleft = layout.getOrigin( );
+        List<WellSample> all_fields = well.copyWellSampleList( );
+
+        // The fields each region needs, and the union of them, in the order of the well
+        List<Set<WellSample>> roi_fields = new ArrayList<>( );
+        Set<WellSample> needed = new LinkedHashSet<>( );
+        List<ImageStack> stacks = new ArrayList<>( );
+        for ( Roi roi : rois ) {
+            List<WellSample> fields = getIntersectingFields( all_fields, roi );
+            roi_fields.add( new HashSet<>( fields ) );
+            needed.addAll( fields );
+            stacks.add( fields.isEmpty( ) ? null : ImageStack.create( roi.getBounds( ).width / downscale, roi.getBounds( ).height / downscale, n, bit_depth ) );
+        }
+
+        log.info( "Well {}: {} regions need {} fields", well.getID( ), rois.size( ), needed.size( ) );
+
+        forEachFieldInFileOrder( needed, range2, getDefaultGranularity( ), field -> {
+            // Part of the field in each region that needs it, and where it goes, like readSingleWell( ) does
+            List<Integer> targets = new ArrayList<>( );
+            List<Point> positions = new ArrayList<>( );
+            List<Rectangle> crops = new ArrayList<>( );
+            for ( int r = 0; r < rois.size( ); r++ ) {
+                if ( !roi_fields.get( r ).contains( field ) ) continue;
+                Roi subregion = getFieldSubregion( field, rois.get( r ), topleft );
+                Rectangle crop = subregion.getBounds( );
+                if ( crop.width / downscale <= 1 || crop.height / downscale <= 1 ) continue;
+                targets.add( r );
+                positions.add( getFieldAdjustedCoordinates( field, rois.get( r ), subregion, topleft, downscale ) );
+                crops.add( crop );
+            }
+            if ( targets.isEmpty( ) ) return;
+
+            // Each decoded plane goes straight into every region that needs it
+            decodeField( field, range2, getDefaultGranularity( ), ( idx, ip, label ) -> {
+                for ( int i = 0; i < targets.size( ); i++ ) {
+                    ImageStack roi_stack = stacks.get( targets.get( i ) );
+                    PixelConverter.convertRegion( ip.getPixels( ), ip.getWidth( ), ip.getHeight( ), crops.get( i ), downscale,
+                            roi_stack.getPixels( idx ), roi_stack.getWidth( ), roi_stack.getHeight( ), positions.get( i ).x, positions.get( i ).y, norm_min, norm_max );
+                    roi_stack.setSliceLabel( label, idx );
+                }
+            } );
+        } );
+
+        List<ImagePlus> images = new ArrayList<>( );
+        for ( int r = 0; r < rois.size( ); r++ )
+            images.add( makeImagePlus( stacks.get( r ), well, range2, getFinalWellImageName( well ) + " - ROI " + ( r + 1 ) ) );
+        return images;
+    }
+
+    /**
+     * Exports the fields needed by several regions of a well, each field only once, and writes one positions file per
+     * region, see {@link #writeWellPositionsFile(List, File, int)}, so that each region can be stitched on its own
+     * @param well the well to export the regions from
+     * @param rois the regions, in pixel coordinates relative to the top left corner of the well
+     * @param downscale the downscale factor
+     */
+    public void exportWellRoiFields( Well well, List<Roi> rois, int downscale ) {
+        List<WellSample> all_fields = well.copyWellSampleList( );
+        Set<WellSample> exported = new HashSet<>( );
+
+        for ( int r = 0; r < rois.size( ); r++ ) {
+            List<WellSample> fields = getIntersectingFields( all_fields, rois.get( r ) );
+            for ( WellSample field : fields ) {
+                if ( !exported.add( field ) ) continue;
+                ImagePlus imp = getFieldImage( field, downscale );
+                if ( imp == null ) continue;
+                IJ.saveAsTiff( imp, new File( save_folder, imp.getTitle( ) + ".tif" ).getAbsolutePath( ) );
+                imp.close( );
+            }
+
+            try {
+                writeWellPositionsFile( fields, new File( save_folder, getFinalWellImageName( well ) + " - ROI " + ( r + 1 ) + ".txt" ), downscale );
+            } catch ( IOException e ) {
+                log.error( "Could not write the positions of region " + ( r + 1 ) + " of well " + well.getID( ) + ":", e );
+            }
+        }
+        IJ.log( "- Well " + well.getID( ) + ": " + exported.size( ) + " fields exported for " + rois.size( ) + " regions" );
+    }
+
+    /**
+     * Exports a stitched well to a TIFF file one timepoint at a time, so that only one timepoint is ever in memory.
+     * See {@link TimelapseTiffWriter}
+     * @param well the well to export
+     * @param fields the fields to export, null for all
+     * @param downscale the downscale factor
+     * @param subregion a square ROI to extract, null for the whole well
+     * @param target the TIFF file to write
+     */
+    public void exportWellTimelapse( Well well, List<WellSample> fields, int downscale, Roi subregion, File target ) {
+        exportWellTimelapse( well, fields, downscale, subregion, target, false, getDefaultGranularity( ) );
+    }
+
+    private void exportWellTimelapse( Well well, List<WellSample> fields, int downscale, Roi subregion, File target, boolean is_mapped, ExportPlanner.Granularity granularity ) {
+        streamTimelapse( "Well " + well.getID( ), target, t -> readWellImage( well, fields, downscale, t, subregion, is_mapped, granularity ) );
+    }
+
+    /**
+     * Exports a field to a TIFF file one timepoint at a time, so that only one timepoint is ever in memory.
+     * See {@link TimelapseTiffWriter}
+     * @param field the field to export
+     * @param downscale the downscale factor
+     * @param subregion a square ROI to extract, null for the whole field
+     * @param target the TIFF file to write
+     */
+    public void exportFieldTimelapse( WellSample field, int downscale, Roi subregion, File target ) {
+        exportFieldTimelapse( field, downscale, subregion, target, getDefaultGranularity( ) );
+    }
+
+    private void exportFieldTimelapse( WellSample field, int downscale, Roi subregion, File target, ExportPlanner.Granularity granularity ) {
+        streamTimelapse( "Field " + field.getID( ), target, t -> readFieldImage( field, downscale, t, subregion, granularity ) );
+    }
+
+    /**
+     * Reads and writes the timepoints of the range one after the other
+     * @param label the name of what is exported, for logging
+     * @param target the TIFF file to write
+     * @param reader reads the image of the range restricted to one timepoint
+     */
+    private void streamTimelapse( String label, File target, Function<HyperRange, ImagePlus> reader ) {
+        List<Integer> range_t = this.range.confirmRange( metadata ).getRangeT( );
+
+        TimelapseTiffWriter writer = null;
+        try {
+            for ( int i = 0; i < range_t.size( ); i++ ) {
+                ImagePlus imp = reader.apply( this.range.getTimepoint( range_t.get( i ) ) );
+                if ( imp == null ) {
+                    log.warn( "{}: nothing to save at timepoint {}", label, range_t.get( i ) );
+                    continue;
+                }
+                if ( writer == null ) writer = TimelapseTiffWriter.create( target, imp, range_t.size( ) );
+                writer.writeTimepoint( i, imp.getStack( ) );
+                if ( imp.getStack( ) instanceof MappedStack ) ( (MappedStack) imp.getStack( ) ).close( );
+                imp.flush( );
+                log.info( "{}: timepoint {} of {} written", label, i + 1, range_t.size( ) );
+            }
+        } catch ( IOException e ) {
+            log.error( "Could not write " + label + " to " + target + ":", e );
+        } finally {
+            if ( writer != null ) {
+                try {
+                    writer.close( );
+                } catch ( IOException e ) {
+                    log.error( "Could not close " + target + ":", e );
+                }
+            }
+        }
     }
 
     /**
@@ -533,7 +1240,11 @@ public class OperettaManager {
 
     public ImagePlus getFieldImage( WellSample field, int downscale, HyperRange range, Roi subregion ) {
 
-        return makeImagePlus( readSingleStack( field, downscale, range, subregion ), field.getWell( ), range,getFinalFieldImageName( field ) );
+        return readFieldImage( field, downscale, range, subregion, getDefaultGranularity( ) );
+    }
+
+    private ImagePlus readFieldImage( WellSample field, int downscale, HyperRange range, Roi subregion, ExportPlanner.Granularity granularity ) {
+        return makeImagePlus( readSingleStack( field, downscale, range, subregion, granularity ), field.getWell( ), range, getFinalFieldImageName( field ) );
     }
 
     /**
@@ -545,22 +1256,20 @@ public class OperettaManager {
      * @return an ImageStack
      */
     public ImageStack readSingleStack( WellSample field, final int downscale, HyperRange range, final Roi subregion ) {
+        return readSingleStack( field, downscale, range, subregion, getDefaultGranularity( ) );
+    }
 
-        final int series_id = field.getIndex( ).getValue( ); // This is the series ID
+    private ImageStack readSingleStack( WellSample field, final int downscale, HyperRange range, final Roi subregion, ExportPlanner.Granularity granularity ) {
 
-        final int row = field.getWell( ).getRow( ).getValue( );
-        final int column = field.getWell( ).getColumn( ).getValue( );
-        main_reader.setSeries( series_id );
+        final int series_id = field.getIndex( ).getValue( ); // This is the series ID
 
         final HyperRange range2 = range.confirmRange( metadata );
         final int n = range2.getTotalPlanes( );
 
-        boolean do_norm = main_reader.getBitsPerPixel( ) != 16;
-
         // Get Stack width and height and modify in case there is a subregion
 
-        int stack_width = main_reader.getSizeX( );
-        int stack_height = main_reader.getSizeY( );
+        int stack_width = metadata.getPixelsSizeX( series_id ).getValue( );
+        int stack_height = metadata.getPixelsSizeY( series_id ).getValue( );
 
         if ( subregion != null ) {
             stack_width = subregion.getBounds( ).width;
@@ -574,61 +1283,181 @@ public class OperettaManager {
         // Leave in case the final stack ended up too small
         if ( stack_height <= 1 || stack_width <= 1 ) return null;
 
-        // Create the new stack. We need to create it before because some images might be missing
-        final ImageStack stack = ImageStack.create( stack_width, stack_height, n, 16 );
+        // Create the new stack. Its planes are taken from the pool as the files are read, missing images get an empty plane at the end
+        final ImageStack stack = new ImageStack( stack_width, stack_height, n );
+        final Rectangle crop = subregion != null ? subregion.getBounds( ) : null;
+
+        decodeField( field, range2, granularity, ( idx, ip, label ) -> {
+            // Crop, downscale and convert straight into the plane of the stack, digital phase images get normalized here
+            Object plane = plane_buffers.get( bit_depth, stack.getWidth( ) * stack.getHeight( ) );
+            PixelConverter.convertRegion( ip.getPixels( ), ip.getWidth( ), ip.getHeight( ), crop, downscale,
+                    plane, stack.getWidth( ), stack.getHeight( ), 0, 0, norm_min, norm_max );
+            stack.setPixels( plane, idx );
+            stack.setSliceLabel( label, idx );
+        } );
 
+        // Planes whose file is missing or was not read stay black
+        for ( int s = 1; s <= n; s++ )
+            if ( stack.getPixels( s ) == null ) stack.setPixels( plane_buffers.get( bit_depth, stack.getWidth( ) * stack.getHeight( ) ), s );
 
-        List<String> files = Arrays.stream( main_reader.getSeriesUsedFiles( false ) )
-                .filter( f -> f.endsWith( ".tiff" ) )
-                .collect( Collectors.toList( ) );
+        return stack;
+    }
+
+    /**
+     * Receives the planes of a field as they are decoded, see {@link #decodeField(WellSample, HyperRange, ExportPlanner.Granularity, PlaneConsumer)}
+     */
+    @FunctionalInterface
+    private interface PlaneConsumer {
+        /**
+         * @param index the index of the plane in the range, starting at 1
+         * @param ip the decoded plane, only valid during this call
+         * @param label the slice label of the plane
+         */
+        void accept( int index, ImageProcessor ip, String label );
+    }
+
+    /**
+     * Opens the files of a field that are in the range, in parallel, and hands each decoded plane to the consumer.
+     * The consumer is called from several threads at once, but never twice for the same plane
+     * @param field the field to read
+     * @param range2 the range in C Z T to read, already confirmed
+     * @param granularity the level that runs in parallel, planes are only read in parallel at {@link ExportPlanner.Granularity#PLANE}
+     * @param consumer copies the planes where they are needed
+     */
+    private void decodeField( WellSample field, HyperRange range2, ExportPlanner.Granularity granularity, PlaneConsumer consumer ) {
+
+        final int series_id = field.getIndex( ).getValue( ); // This is the series ID
+
+        final int row = field.getWell( ).getRow( ).getValue( );
+        final int column = field.getWell( ).getColumn( ).getValue( );
+
+        // Files are read in the order they are on disk, each thread going through a batch of consecutive files
+        List<List<String>> batches = read_scheduler.batch( getFieldFiles( field, range2 ) );
         StopWatch sw = new StopWatch( );
         sw.start( );
 
-        ForkJoinPool planeWorkerPool = new ForkJoinPool( 10 );
+        // Planes are only forked when they are the level that runs in parallel
+        final boolean is_parallel = granularity == ExportPlanner.Granularity.PLANE;
+        runInPool( "Reading Stack " + series_id, ( ) -> ( is_parallel ? batches.parallelStream( ) : batches.stream( ) )
+                .forEach( batch -> batch.forEach( file -> {
+                    // Infer C Z T from filename
+                    Map<String, Integer> plane_indexes = range2.getIndexes( file );
+                    // Operetta planes are read straight into a pooled buffer, anything unusual goes through the Opener
+                    // A stuck read is given up after its retries rather than stalling the whole field
+                    ImageProcessor ip = openPlane( file, plane_buffers );
+                    if ( ip == null ) {
+                        log.error( "Could not open {}", file );
+                        //IJ.log( "Could not open "+ file );
+                    } else {
+                        String label = String.format( "R%d-C%d - (c:%d, z:%d, t:%d) - %s", row, column, plane_indexes.get( "C" ), plane_indexes.get( "Z" ), plane_indexes.get( "T" ), new File( file ).getName( ) );
+                        consumer.accept( plane_indexes.get( "I" ), ip, label );
+                        // The plane was copied where it is needed, its buffer can be reused for the next file
+                        plane_buffers.release( ip.getPixels( ) );
+                    }
+                } ) ) );
+
+        sw.stop( );
+        log.info( "Well " + field.getWell( ).getID( ) + " stack " + series_id + " took " + ( (double) sw.getElapsedTime( ) / 1000.0 ) + " seconds" );
+    }
+
+    /**
+     * Goes through fields in the order in which their files are on disk, and reads the files of the next field ahead of
+     * time while the current one is handled, see {@link ReadScheduler}
+     * @param fields the fields to go through
+     * @param range2 the range in C Z T that will be read, already confirmed
+     * @param granularity the level that runs in parallel, fields are only read in parallel at {@link ExportPlanner.Granularity#FIELD}
+     * @param action reads a field
+     */
+    private void forEachFieldInFileOrder( Collection<WellSample> fields, HyperRange range2, ExportPlanner.Granularity granularity, Consumer<WellSample> action ) {
+        Map<WellSample, List<String>> files = new LinkedHashMap<>( );
+        for ( WellSample field : fields ) files.put( field, ReadScheduler.order( getFieldFiles( field, range2 ) ) );
+
+        // Fields without files first, they cost nothing
+        List<WellSample> ordered = new ArrayList<>( files.keySet( ) );
+        ordered.sort( Comparator.comparing( ( WellSample f ) -> files.get( f ).isEmpty( ) ? null : files.get( f ).get( 0 ),
+                Comparator.nullsFirst( ReadScheduler.FILE_ORDER ) ) );
+
+        IntConsumer step = i -> {
+            if ( i + 1 < ordered.size( ) ) read_scheduler.prefetch( files.get( ordered.get( i + 1 ) ) );
+            action.accept( ordered.get( i ) );
+        };
+
+        // Fields are only forked when they are the level that runs in parallel
+        if ( granularity == ExportPlanner.Granularity.FIELD && ordered.size( ) > 1 ) {
+            runInPool( "Reading fields", ( ) -> IntStream.range( 0, ordered.size( ) ).parallel( ).forEach( step ) );
+            return;
+        }
+        for ( int i = 0; i < ordered.size( ); i++ ) step.accept( i );
+    }
+
+    /**
+     * Runs work on the pool and waits for it. Work that already runs on the pool, like an export job, is run directly,
+     * so that the tasks it forks are stolen by idle threads of the pool rather than blocking one of them
+     * @param label what the work does, for logging
+     * @param work the work to run
+     */
+    private void runInPool( String label, Runnable work ) {
+        if ( ForkJoinTask.getPool( ) == plane_pool ) {
+            work.run( );
+            return;
+        }
         try {
-            planeWorkerPool.submit( ( ) -> IntStream.range( 0, files.size( ) )
-                    .parallel( )
-                    .forEach( i -> {
-                        // Check that we want to open it
-                        // Infer C Z T from filename
-
-                        Map<String, Integer> plane_indexes = range2.getIndexes( files.get( i ) );
-                        if ( range2.includes( files.get( i ) ) ) {
-                            //IJ.log("files.get( "+i+" )+"+files.get( i ));
-                            ImagePlus imp = (new Opener()).openImage(files.get( i ));// IJ.openImage( files.get( i ) );
-                            if (imp == null ) {
-                                log.error( "Could not open {}", files.get( i ) );
-                                //IJ.log( "Could not open "+ files.get( i ) );
-                            } else {
-                                ImageProcessor ip = imp.getProcessor( );
-                                if ( do_norm ) {
-                                    ip.setMinAndMax( norm_min, norm_max );
-                                    ip = ip.convertToShort( true );
-                                }
-                                if ( subregion != null ) {
-                                    ip.setRoi( subregion );
-                                    ip = ip.crop( );
-                                }
-
-                                ip = ip.resize( ip.getWidth( ) / downscale, ip.getHeight( ) / downscale );
-                                // logger.info("File {}", files.get( i ));
-                                String label = String.format( "R%d-C%d - (c:%d, z:%d, t:%d) - %s", row, column, plane_indexes.get( "C" ), plane_indexes.get( "Z" ), plane_indexes.get( "T" ), new File( files.get( i ) ).getName( ) );
-                                //IJ.log("plane_indexes.get( \"I\" ): " +plane_indexes.get( "I" ));
-                                stack.setProcessor( ip, plane_indexes.get( "I" ) );
-                                stack.setSliceLabel( label, plane_indexes.get( "I" ) );
-                                imp.close( );
-                                //new ImagePlus("", stack).show();
-                            }
-                        }
-                    } ) ).get( );
+            plane_pool.submit( work ).get( );
         } catch ( InterruptedException e ) {
-            log.error( "Reading Stack " + series_id + " interrupted:", e );
+            log.error( label + " interrupted:", e );
+            Thread.currentThread( ).interrupt( );
         } catch ( ExecutionException e ) {
-            log.error( "Reading Stack " + series_id + " error:", e );
+            log.error( label + " error:", e );
         }
-        sw.stop( );
-        log.info( "Well " + field.getWell( ).getID( ) + " stack " + series_id + " took " + ( (double) sw.getElapsedTime( ) / 1000.0 ) + " seconds" );
-        return stack;
+    }
+
+    /**
+     * Outside of exports, a single field or well is read at a time, so its planes run in parallel unless another level was set
+     */
+    private ExportPlanner.Granularity getDefaultGranularity( ) {
+        return granularity == ExportPlanner.Granularity.AUTO ? ExportPlanner.Granularity.PLANE : granularity;
+    }
+
+    /**
+     * Chooses the level at which an export runs in parallel, see {@link ExportPlanner#planGranularity}
+     * @param planner the planner of the export
+     * @param wells the wells to export
+     * @param fields the Field IDs to process, starting at 0, null for all
+     * @param downscale the downscale factor
+     * @param region an optional Roi to export, set to null for whole image
+     * @param is_fields_individual whether each field is exported individually
+     * @return the granularity of the export, never {@link ExportPlanner.Granularity#AUTO}
+     */
+    private ExportPlanner.Granularity planGranularity( ExportPlanner planner, List<Well> wells, List<Integer> fields, int downscale, Roi region, boolean is_fields_individual ) {
+        List<WellSample> first_fields = wells.isEmpty( ) ? Collections.emptyList( ) : getSelectedFields( wells.get( 0 ), fields, region );
+        if ( first_fields.isEmpty( ) ) return getDefaultGranularity( );
+
+        HyperRange range2 = this.range.confirmRange( metadata );
+        int n_planes = range2.getTotalPlanes( );
+        int n_fields = is_fields_individual ? 1 : first_fields.size( );
+        int n_jobs = is_fields_individual ? wells.size( ) * first_fields.size( ) : wells.size( );
+        long footprint = is_fields_individual ? planner.getFieldFootprint( first_fields.get( 0 ), downscale, range2, this.is_projection )
+                : planner.getWellFootprint( wells.get( 0 ), downscale, range2, region, this.is_projection );
+
+        // Fields stitched in parallel would race where they overlap. Only the first well is checked to plan, exportWell
+        // checks each well
+        boolean is_overlapping = !is_fields_individual && getLayout( wells.get( 0 ) ).isOverlapping( first_fields );
+
+        ExportPlanner.Granularity planned = planner.planGranularity( granularity, n_jobs, n_fields, n_planes, footprint, decode_threads, is_overlapping );
+        log.info( "Parallelism: {} ({} jobs, {} fields per job, {} planes per field, {} threads, overlapping fields: {})", planned, n_jobs, n_fields, n_planes, decode_threads, is_overlapping );
+        return planned;
+    }
+
+    /**
+     * @param granularity the granularity of the export
+     * @param is_fields_individual whether each field is exported individually
+     * @return the number of jobs that can be read at the same time
+     */
+    private int getJobThreads( ExportPlanner.Granularity granularity, boolean is_fields_individual ) {
+        // Jobs whose fields are read one after the other each get a thread, the memory budget still bounds them
+        boolean is_job_parallel = granularity == ExportPlanner.Granularity.WELL
+                || ( granularity == ExportPlanner.Granularity.FIELD && is_fields_individual );
+        return is_job_parallel ? Math.max( read_threads, decode_threads ) : read_threads;
     }
 
     /**
@@ -638,9 +1467,11 @@ public class OperettaManager {
      * @param downscale the downsample factor
      * @param range the CZT range we want to read
      * @param bounds a ROI describing the subregion we want to export (pixel coordinates)
+     * @param is_mapped whether to stitch in a {@link MappedStack} in the scratch folder rather than on the heap
+     * @param granularity the level that runs in parallel while the well is read
      * @return an ImageStack
      */
-    private ImageStack readSingleWell( Well well, List<WellSample> fields, final int downscale, HyperRange range, final Roi bounds ) {
+    private ImageStack readSingleWell( Well well, List<WellSample> fields, final int downscale, HyperRange range, final Roi bounds, boolean is_mapped, ExportPlanner.Granularity granularity ) {
 
         // Get the positions for each field (called a sample by BioFormats) in this well
         if ( fields == null ) fields = well.copyWellSampleList( );
@@ -650,17 +1481,12 @@ public class OperettaManager {
 
         if ( adjusted_fields.size( ) == 0 ) return null;
 
-        int a_field_id = fields.get( 0 ).getIndex( ).getValue( );
-        // We need to know the width and height of a single image
-        int sample_width = metadata.getPixelsSizeX( a_field_id ).getValue( );
-        int sample_height = metadata.getPixelsSizeY( a_field_id ).getValue( );
-
         // Get extents for the final image
-        Point topleft = getTopLeftCoordinates( well.copyWellSampleList( ) );
-        Point bottomright = getBottomRightCoordinates( well.copyWellSampleList( ) );
+        WellLayout layout = getLayout( well );
+        Point topleft = layout.getOrigin( );
 
-        int well_width = bottomright.x - topleft.x + sample_width;
-        int well_height = bottomright.y - topleft.y + sample_height;
+        int well_width = layout.getExtent( ).width;
+        int well_height = layout.getExtent( ).height;
 
         // If there is a region, then the final width and height will be the same
         if ( bounds != null ) {
@@ -677,32 +1503,44 @@ public class OperettaManager {
 
         final int n = range2.getTotalPlanes( );
 
-        // TODO: Bit depth is hard coded here, but it could be made variable
-        final ImageStack wellStack = ImageStack.create( well_width, well_height, n, 16 );
+        final ImageStack wellStack;
+        if ( is_mapped ) {
+            try {
+                wellStack = new MappedStack( well_width, well_height, n, bit_depth, scratch_folder );
+            } catch ( IOException e ) {
+                log.error( "Could not create a mapped canvas for well " + well.getID( ) + ":", e );
+                return null;
+            }
+        } else {
+            wellStack = ImageStack.create( well_width, well_height, n, bit_depth );
+        }
 
         AtomicInteger ai = new AtomicInteger( 0 );
 
-        adjusted_fields.stream( ).forEachOrdered( field -> {
+        forEachFieldInFileOrder( adjusted_fields, range2, granularity, field -> {
             // sample subregion should give the ROI coordinates for the current sample that we want to read
             Roi subregion = getFieldSubregion( field, bounds, topleft );
 
             final Point pos = getFieldAdjustedCoordinates( field, bounds, subregion, topleft, downscale );
             log.info( String.format( "Sample Position: %d, %d", pos.x, pos.y ) );
 
-            final ImageStack stack = readSingleStack( field, downscale, range2, subregion );
-
-            if ( stack != null ) {
-                for ( int s = 0; s < stack.size( ); s++ ) {
-                    wellStack.getProcessor( s + 1 )
-                            .copyBits( stack.getProcessor( s + 1 ), pos.x, pos.y, Blitter.COPY );
-
-                    wellStack.setSliceLabel( stack.getSliceLabel( s + 1 ), s + 1 );
-                }
-
-                // Use an AtomicInteger so that the log looks nice
-                final int field_counter = ai.getAndIncrement( );
-                log.info( String.format( "Field %d of %d Copied to Well", field_counter + 1, adjusted_fields.size( ) ) );
-            }
+            // Leave out fields whose part in the well is too small, like readSingleStack( ) does
+            final Rectangle crop = subregion != null ? subregion.getBounds( ) : null;
+            if ( crop != null && ( crop.width / downscale <= 1 || crop.height / downscale <= 1 ) ) return;
+
+            // Each plane is decoded straight into its place in the well, there is no stack for the field
+            decodeField( field, range2, granularity, ( idx, ip, label ) -> {
+                if ( is_mapped )
+                    ( (MappedStack) wellStack ).blit( ip.getPixels( ), ip.getWidth( ), ip.getHeight( ), crop, downscale, pos.x, pos.y, idx, norm_min, norm_max );
+                else
+                    PixelConverter.convertRegion( ip.getPixels( ), ip.getWidth( ), ip.getHeight( ), crop, downscale,
+                            wellStack.getPixels( idx ), wellStack.getWidth( ), wellStack.getHeight( ), pos.x, pos.y, norm_min, norm_max );
+                wellStack.setSliceLabel( label, idx );
+            } );
+
+            // Use an AtomicInteger so that the log looks nice
+            final int field_counter = ai.getAndIncrement( );
+            log.info( String.format( "Field %d of %d Copied to Well", field_counter + 1, adjusted_fields.size( ) ) );
         } );
 
 
@@ -735,60 +1573,382 @@ public class OperettaManager {
             wells = getAvailableWells( );
         }
 
-        List<WellSample> well_fields;
         int iWell = 0;
 
         Instant global_starts = Instant.now();
+        GcMonitor gc = new GcMonitor( );
+
+        // Decide how much memory each job needs before reading anything
+        ExportPlanner planner = new ExportPlanner( this, memory_budget > 0 ? memory_budget : ExportPlanner.getDefaultBudget( ), decode_threads, bit_depth, scratch_folder );
+        log.info( "{}", planner );
+        ExportPlanner.Granularity planned = planGranularity( planner, wells, fields, downscale, region, is_fields_individual );
+        int job_threads = getJobThreads( planned, is_fields_individual );
+        IJ.log( "- Running " + planned + " tasks in parallel" );
+
+        List<FieldArchive> archives = Collections.synchronizedList( new ArrayList<>( ) );
+        List<String> not_as_requested = new ArrayList<>( );
+
+        // Wells are read, stitched and written in a pipeline, so that reading the next well overlaps with writing the previous one
+        // Jobs are read on the pool, so that wells, fields and planes share its threads
+        try ( ExportPipeline pipeline = new ExportPipeline( job_threads, write_threads, queue_capacity, planner.getBudget( ), plane_pool ) ) {
+            for ( Well well : wells ) {
+                iWell++;
+                log.info( "Well: {}", well );
+                IJ.log( "- Well " + well.getID( ) + " (" + iWell + "/" + wells.size( ) + " )" );
+
+                exportWell( pipeline, planner, planned, well, fields, downscale, region, is_fields_individual, archives, not_as_requested );
+            }
+        }
+        closeArchives( archives );
+        logNotAsRequested( not_as_requested );
+
+        Instant global_ends = Instant.now();
+        log.info( "{}", reader_pool );
+        log.info( "{}", plane_buffers );
+        log.info( TiffPlaneReader.getMetrics( ) );
+        log.info( "{}", read_scheduler );
+        log.info( "{}", io_throttle );
+        log.info( "{}", file_reader );
+        if ( !file_reader.getSlowestFiles( ).isEmpty( ) ) log.info( "Slowest files: {}", file_reader.getSlowestFiles( ) );
+        IJ.log( " - " + gc );
+        IJ.log(" DONE! All wells processed in "+(Duration.between(global_starts, global_ends).getSeconds()/60)+" min.");
+
+    }
+
+    /**
+     * Exports wells while the plate is still being acquired. Each well is exported as soon as all its planes are on
+     * disk, that is all the files that the index lists for its selected fields in the range, instead of waiting for the
+     * end of the acquisition. New files, and those already there, are followed with a {@link DatasetWatcher}. They
+     * only count once they can be read, see {@link TiffPlaneReader#isComplete(String)}, until then they are checked again.
+     *
+     * Only the wells and fields that are in the 'Index.idx.xml' that was opened can be followed.
+     * @param wells all the Wells to process as a list, set to null to process all
+     * @param fields all the Field IDs to process, as a list, set to null to process all
+     * @param downscale the downscale factor
+     * @param region an optional Roi to export, set to null for whole image
+     * @param is_fields_individual export each field individually or as a stitched well
+     * @param timeout_minutes stop waiting when no new image was written for this long. Incomplete wells are not exported
+     */
+    public void processWhileAcquiring( List<Well> wells, List<Integer> fields, int downscale, Roi region, boolean is_fields_individual, long timeout_minutes ) {
+        if ( wells == null ) {
+            wells = getAvailableWells( );
+        }
 
+        final HyperRange range2 = this.range.confirmRange( metadata );
+
+        // For each well still to export, how many of its files are not on disk yet, and the well of each expected file,
+        // by name. Expected files are those the index lists for the selected fields in the range
+        Map<String, Well> pending = new LinkedHashMap<>( );
+        Map<String, Integer> missing = new HashMap<>( );
+        Map<String, String> expected_files = new HashMap<>( );
         for ( Well well : wells ) {
-            iWell++;
-            log.info( "Well: {}", well );
-            IJ.log("- Well "+well.getID()+" ("+iWell+"/"+wells.size()+" )");//);
-            Instant starts = Instant.now();
+            String key = well.getID( );
+            for ( WellSample field : getSelectedFields( well, fields, region ) )
+                for ( String file : getFieldFiles( field, range2 ) )
+                    if ( expected_files.put( new File( file ).getName( ), key ) == null ) missing.merge( key, 1, Integer::sum );
+            if ( !missing.containsKey( key ) ) continue;
+            pending.put( key, well );
+        }
 
-            if ( fields != null ) {
-                well_fields = fields.stream( ).map( well::getWellSample ).collect( Collectors.toList( ) );
-            } else {
-                // Get the samples associates with the current well, by index
-                well_fields = well.copyWellSampleList( );
-            }
+        Instant global_starts = Instant.now( );
+        GcMonitor gc = new GcMonitor( );
+
+        // Files are collected by the watcher, including those that are already there, once they are complete
+        BlockingQueue<String> arrivals = new LinkedBlockingQueue<>( );
+        long timeout = TimeUnit.MINUTES.toMillis( timeout_minutes );
+
+        ExportPlanner planner = new ExportPlanner( this, memory_budget > 0 ? memory_budget : ExportPlanner.getDefaultBudget( ), decode_threads, bit_depth, scratch_folder );
+        log.info( "{}", planner );
+        ExportPlanner.Granularity planned = planGranularity( planner, new ArrayList<>( pending.values( ) ), fields, downscale, region, is_fields_individual );
+        int job_threads = getJobThreads( planned, is_fields_individual );
+        IJ.log( "- Running " + planned + " tasks in parallel" );
+
+        List<FieldArchive> archives = Collections.synchronizedList( new ArrayList<>( ) );
+        List<String> not_as_requested = new ArrayList<>( );
+
+        try ( DatasetWatcher watcher = new DatasetWatcher( id ).setReportExisting( true ).addListener( arrivals::addAll );
+              ExportPipeline pipeline = new ExportPipeline( job_threads, write_threads, queue_capacity, planner.getBudget( ), plane_pool ) ) {
+            watcher.start( );
+
+            IJ.log( "- Waiting for " + pending.size( ) + " wells to be acquired" );
+            long last_arrival = System.currentTimeMillis( );
+            long last_check = last_arrival;
+            // Expected files that were reported but cannot be read yet, with their well, they are checked again every second
+            Map<String, String> unreadable = new LinkedHashMap<>( );
+            while ( !pending.isEmpty( ) ) {
+                List<String> ready = new ArrayList<>( );
+                String file = arrivals.poll( 1, TimeUnit.SECONDS );
+                if ( file != null ) {
+                    last_arrival = System.currentTimeMillis( );
+
+                    // Each expected file only counts once, even if it is reported again
+                    String key = expected_files.remove( new File( file ).getName( ) );
+                    if ( key != null ) {
+                        // A well is exported once, so its files must be readable before they count
+                        if ( TiffPlaneReader.isComplete( file ) ) ready.add( key );
+                        else unreadable.put( file, key );
+                    }
+                } else if ( System.currentTimeMillis( ) - last_arrival > timeout ) {
+                    break;
+                }
 
-            if (region != null)  well_fields = getIntersectingFields( well_fields, region );
-
-            if ( is_fields_individual ) {
-                Point topleft = getTopLeftCoordinates( well_fields );
-                int iField = 0;
-                for ( WellSample field : well_fields ) {
-                    iField++;
-                    IJ.log("\t - Field "+field.getID()+" ("+iField+"/"+well_fields.size()+")");//);
-                    ImagePlus field_image = getFieldImage( field, downscale, this.range, null );
-                    String name = getFinalFieldImageName( field );
-                    if ( field_image != null )
-                        IJ.saveAsTiff( field_image, new File( save_folder, name + ".tif" ).getAbsolutePath( ) );
+                if ( !unreadable.isEmpty( ) && System.currentTimeMillis( ) - last_check >= 1000 ) {
+                    last_check = System.currentTimeMillis( );
+                    unreadable.entrySet( ).removeIf( e -> TiffPlaneReader.isComplete( e.getKey( ) ) && ready.add( e.getValue( ) ) );
                 }
-                // Save the positions file
-                // Get the positions that were used, just compute them again
-                try {
-                    writeWellPositionsFile( well_fields, new File( save_folder, getFinalWellImageName( well ) + ".txt" ), downscale );
-                } catch ( IOException e ) {
-                    e.printStackTrace( );
+
+                for ( String key : ready ) {
+                    if ( missing.merge( key, -1, Integer::sum ) == 0 ) {
+                        Well well = pending.remove( key );
+                        IJ.log( "- Well " + well.getID( ) + " acquired, " + pending.size( ) + " to go" );
+                        exportWell( pipeline, planner, planned, well, fields, downscale, region, is_fields_individual, archives, not_as_requested );
+                    }
                 }
+            }
+            if ( !unreadable.isEmpty( ) ) log.warn( "These files could not be read: {}", unreadable.keySet( ) );
+        } catch ( IOException e ) {
+            log.error( "Could not follow the acquisition of " + id + ":", e );
+        } catch ( InterruptedException e ) {
+            log.error( "Export interrupted:", e );
+        }
+        closeArchives( archives );
+        logNotAsRequested( not_as_requested );
+
+        if ( !pending.isEmpty( ) )
+            IJ.log( "- No new images for " + timeout_minutes + " min. " + pending.size( ) + " incomplete wells were not exported: " + pending.keySet( ) );
+
+        Instant global_ends = Instant.now( );
+        log.info( "{}", reader_pool );
+        log.info( "{}", plane_buffers );
+        log.info( TiffPlaneReader.getMetrics( ) );
+        log.info( "{}", read_scheduler );
+        log.info( "{}", io_throttle );
+        log.info( "{}", file_reader );
+        if ( !file_reader.getSlowestFiles( ).isEmpty( ) ) log.info( "Slowest files: {}", file_reader.getSlowestFiles( ) );
+        IJ.log( " - " + gc );
+        IJ.log( " DONE! Acquired wells processed in " + ( Duration.between( global_starts, global_ends ).getSeconds( ) / 60 ) + " min." );
+    }
+
+    /**
+     * Lists the wells that were not exported as requested, once the export is over, so that they are not missed among
+     * the progress messages
+     * @param not_as_requested what happened to each of these wells
+     */
+    private void logNotAsRequested( List<String> not_as_requested ) {
+        if ( not_as_requested.isEmpty( ) ) return;
+        log.warn( "{} wells were not exported as requested: {}", not_as_requested.size( ), not_as_requested );
+        IJ.log( " - " + not_as_requested.size( ) + " wells were not exported as requested:" );
+        not_as_requested.forEach( w -> IJ.log( "\t - " + w ) );
+    }
+
+    /**
+     * Returns the fields of a well that an export will read
+     * @param well the well
+     * @param fields the Field IDs to process, starting at 0, null for all
+     * @param region an optional Roi to export, only the fields that intersect it are kept
+     * @return the selected fields
+     */
+    private List<WellSample> getSelectedFields( Well well, List<Integer> fields, Roi region ) {
+        List<WellSample> well_fields;
+        if ( fields != null ) {
+            well_fields = fields.stream( ).map( well::getWellSample ).collect( Collectors.toList( ) );
+        } else {
+            // Get the samples associates with the current well, by index
+            well_fields = well.copyWellSampleList( );
+        }
+
+        if ( region != null ) well_fields = getIntersectingFields( well_fields, region );
+        return well_fields;
+    }
+
+    /**
+     * Plans the export of a single well and submits its jobs to the pipeline
+     * @param pipeline the pipeline that reads and writes the images
+     * @param planner decides how the well is exported given its memory footprint
+     * @param granularity the level at which the export runs in parallel
+     * @param well the well to export
+     * @param fields the Field IDs to process, starting at 0, null for all
+     * @param downscale the downscale factor
+     * @param region an optional Roi to export, set to null for whole image
+     * @param is_fields_individual export each field individually or as a stitched well
+     * @param archives the ZIP files of the wells, closed at the end of the export
+     * @param not_as_requested collects the wells that were skipped, or whose fields were exported instead of the well
+     */
+    private void exportWell( ExportPipeline pipeline, ExportPlanner planner, ExportPlanner.Granularity granularity, Well well, List<Integer> fields, int downscale, Roi region, boolean is_fields_individual, List<FieldArchive> archives, List<String> not_as_requested ) {
+        List<WellSample> well_fields = getSelectedFields( well, fields, region );
+
+        if ( well_fields.isEmpty( ) ) return;
 
+        // When streaming a time-lapse, only one timepoint is in memory at a time
+        final boolean is_streamed = this.is_streaming && this.range.confirmRange( metadata ).getRangeT( ).size( ) > 1;
+        final HyperRange plan_range = is_streamed ? this.range.getTimepoint( this.range.getRangeT( ).get( 0 ) ) : this.range;
+
+        long field_footprint = planner.getFieldFootprint( well_fields.get( 0 ), downscale, plan_range, this.is_projection );
+
+        ExportPlanner.Path path;
+        if ( is_fields_individual ) {
+            path = planner.planField( field_footprint );
+        } else {
+            long well_footprint = planner.getWellFootprint( well, downscale, plan_range, region, this.is_projection );
+            long canvas_bytes = planner.getWellCanvasBytes( well, downscale, plan_range, region );
+            path = planner.planWell( well_footprint, canvas_bytes, field_footprint );
+
+            final List<WellSample> selected_fields = well_fields;
+            // The plan only looked at the first well, fields stitched in parallel would race where they overlap
+            final ExportPlanner.Granularity well_granularity;
+            if ( granularity == ExportPlanner.Granularity.FIELD && getLayout( well ).isOverlapping( well_fields ) ) {
+                log.info( "Fields of well {} overlap, reading its planes in parallel instead", well.getID( ) );
+                well_granularity = ExportPlanner.Granularity.PLANE;
             } else {
-                ImagePlus well_image = getWellImage( well, well_fields, downscale, this.range, region );
-                String name = getFinalWellImageName( well );
-                if ( well_image != null ) {
-                    IJ.saveAsTiff( well_image, new File( save_folder, name + ".tif" ).getAbsolutePath( ) );
-                    //well_image.show( );
+                well_granularity = granularity;
+            }
+            final File target = new File( save_folder, getFinalWellImageName( well ) + ".tif" );
+
+            if ( path == ExportPlanner.Path.IN_MEMORY ) {
+                log.info( "Well {} needs {}, {} such wells fit in memory", well.getID( ), ExportPlanner.toMB( well_footprint ), planner.getConcurrency( well_footprint ) );
+                if ( is_streamed ) {
+                    pipeline.submit( "Well " + well.getID( ), well_footprint,
+                            ( ) -> exportWellTimelapse( well, selected_fields, downscale, region, target, false, well_granularity ) );
+                    return;
+                }
+                pipeline.submit( "Well " + well.getID( ), well_footprint,
+                        ( ) -> readWellImage( well, selected_fields, downscale, this.range, region, false, well_granularity ),
+                        target );
+                return;
+            }
+
+            if ( path == ExportPlanner.Path.MAPPED ) {
+                IJ.log( "\t - Well " + well.getID( ) + " needs " + ExportPlanner.toMB( well_footprint ) + ", more than the " + ExportPlanner.toMB( planner.getBudget( ) ) + " available. Stitching it in " + scratch_folder );
+                if ( is_streamed ) {
+                    pipeline.submit( "Well " + well.getID( ), well_footprint - canvas_bytes,
+                            ( ) -> exportWellTimelapse( well, selected_fields, downscale, region, target, true, well_granularity ) );
+                    return;
                 }
+                pipeline.submit( "Well " + well.getID( ), well_footprint - canvas_bytes,
+                        ( ) -> readWellImage( well, selected_fields, downscale, this.range, region, true, well_granularity ),
+                        imp -> {
+                            IJ.saveAsTiff( imp, target.getAbsolutePath( ) );
+                            if ( imp.getStack( ) instanceof MappedStack ) ( (MappedStack) imp.getStack( ) ).close( );
+                        } );
+                return;
+            }
+
+            if ( path == ExportPlanner.Path.FIELDS ) {
+                String message = "Well " + well.getID( ) + " needs " + ExportPlanner.toMB( well_footprint ) + ", more than the " + ExportPlanner.toMB( planner.getBudget( ) ) + " available";
+                if ( !is_field_fallback ) {
+                    // Writing fields instead of the well is only done when asked for, see Builder.setFieldFallback
+                    log.warn( "{}, skipping it. Set a scratch folder or allow exporting its fields instead", message );
+                    IJ.log( "\t - " + message + ". Skipping this well." );
+                    not_as_requested.add( message + ", skipped" );
+                    return;
+                }
+                log.warn( "{}, exporting its fields individually", message );
+                IJ.log( "\t - " + message + ". Exporting its fields individually." );
+                not_as_requested.add( message + ", exported as individual fields" );
             }
-            Instant ends = Instant.now();
-            IJ.log(" - Well processed in "+Duration.between(starts, ends).getSeconds()+" s.");
         }
 
-        Instant global_ends = Instant.now();
-        IJ.log(" DONE! All wells processed in "+(Duration.between(global_starts, global_ends).getSeconds()/60)+" min.");
+        if ( path == ExportPlanner.Path.SKIP ) {
+            IJ.log( "\t - A single field of well " + well.getID( ) + " needs " + ExportPlanner.toMB( field_footprint ) + ", more than the " + ExportPlanner.toMB( planner.getBudget( ) ) + " available. Skipping this well." );
+            not_as_requested.add( "A single field of well " + well.getID( ) + " needs " + ExportPlanner.toMB( field_footprint ) + ", skipped" );
+            return;
+        }
+
+        // Fields go in a single ZIP file for the well, along with the positions file
+        if ( is_field_archive && !is_streamed ) {
+            exportWellArchive( pipeline, granularity, well, well_fields, downscale, field_footprint, archives );
+            return;
+        }
+
+        int iField = 0;
+        for ( WellSample field : well_fields ) {
+            iField++;
+            String name = getFinalFieldImageName( field );
+            if ( is_streamed ) {
+                pipeline.submit( "Field " + field.getID( ) + " (" + iField + "/" + well_fields.size( ) + ")", field_footprint,
+                        ( ) -> exportFieldTimelapse( field, downscale, null, new File( save_folder, name + ".tif" ), granularity ) );
+                continue;
+            }
+            pipeline.submit( "Field " + field.getID( ) + " (" + iField + "/" + well_fields.size( ) + ")", field_footprint,
+                    ( ) -> readFieldImage( field, downscale, this.range, null, granularity ),
+                    new File( save_folder, name + ".tif" ) );
+        }
+        // Save the positions file
+        // Get the positions that were used, just compute them again
+        try {
+            writeWellPositionsFile( well_fields, new File( save_folder, getFinalWellImageName( well ) + ".txt" ), downscale );
+        } catch ( IOException e ) {
+            e.printStackTrace( );
+        }
+    }
 
+    /**
+     * Submits the fields of a well to the pipeline, to be written in a single ZIP file with the positions file of the
+     * well, see {@link FieldArchive}. The ZIP file is closed once its last field was written or could not be read
+     */
+    private void exportWellArchive( ExportPipeline pipeline, ExportPlanner.Granularity granularity, Well well, List<WellSample> well_fields, int downscale, long field_footprint, List<FieldArchive> archives ) {
+        String well_name = getFinalWellImageName( well );
+        final FieldArchive archive;
+        try {
+            archive = new FieldArchive( new File( save_folder, well_name + ".zip" ), is_archive_compressed, well_fields.size( ) );
+            archives.add( archive );
+            StringWriter positions = new StringWriter( );
+            writeWellPositions( well_fields, positions, downscale );
+            archive.addText( well_name + ".txt", positions.toString( ) );
+        } catch ( IOException e ) {
+            log.error( "Could not create the archive of well " + well.getID( ) + ":", e );
+            IJ.log( "\t - Could not create the archive of well " + well.getID( ) + ": " + e.getMessage( ) );
+            return;
+        }
+
+        int iField = 0;
+        for ( WellSample field : well_fields ) {
+            iField++;
+            String name = getFinalFieldImageName( field );
+            pipeline.submit( "Field " + field.getID( ) + " (" + iField + "/" + well_fields.size( ) + ")", field_footprint,
+                    ( ) -> {
+                        ImagePlus imp = null;
+                        try {
+                            imp = readFieldImage( field, downscale, this.range, null, granularity );
+                            return imp;
+                        } finally {
+                            // Fields that will not reach the writer must not keep the archive open
+                            if ( imp == null ) archive.skip( );
+                        }
+                    },
+                    imp -> {
+                        try {
+                            archive.add( name + ".tif", imp );
+                        } catch ( IOException e ) {
+                            log.error( "Could not add " + name + " to " + archive.getFile( ) + ":", e );
+                        }
+                    } );
+        }
+    }
+
+    /**
+     * Closes the archives whose fields did not all come through, after the pipeline finished
+     */
+    private void closeArchives( List<FieldArchive> archives ) {
+        for ( FieldArchive archive : archives ) {
+            try {
+                archive.close( );
+            } catch ( IOException e ) {
+                log.error( "Could not close " + archive.getFile( ) + ":", e );
+            }
+        }
+    }
+
+    /**
+     * Stops the threads of this manager and closes the readers it created. The reader it was built with stays open,
+     * as the {@link Builder} can build other managers with it. This manager cannot be used afterwards
+     */
+    @Override
+    public void close( ) {
+        reader_pool.close( );
+        plane_pool.shutdown( );
+        file_reader.close( );
+        read_scheduler.close( );
     }
 
     @Override
@@ -810,39 +1970,41 @@ public class OperettaManager {
      * @throws IOException error in case of problem working with the positions file
      */
     public void writeWellPositionsFile( List<WellSample> samples, File position_file, int downscale ) throws IOException {
-        int dim = range.getRangeZ( ).size( ) > 1 && !is_projection ? 3 : 2;
-
-        String z = dim == 3 ? ", 0.0" : "";
-
         Path path = Paths.get( position_file.getAbsolutePath( ) );
 
         //Use try-with-resource to get auto-closeable writer instance
         try ( BufferedWriter writer = Files.newBufferedWriter( path ) ) {
-            writer.write( "#Define the number of dimensions we are working on:\n" );
-            writer.write( "dim = " + dim + "\n" );
-            writer.write( "# Define the image coordinates\n" );
-            writer.write( "#Define the number of dimensions we are working on:\n" );
-
-            for ( WellSample sample : samples ) {
-                String name = getFinalFieldImageName( sample );
-                Point pos = getUncalibratedCoordinates( sample );
-                writer.write( String.format( "%s.tif;      ;               (%d.0, %d.0%s)\n", name, pos.x / downscale, pos.y / downscale, z ) );
-            }
+            writeWellPositions( samples, writer, downscale );
         }
     }
 
     /**
-     * Check Rois for overlap, as rectangles only
-     * @param one the first roi
-     * @param other the second roi
-     * @return true if thereis an overlap
+     * Writes the positions of fields in the format of {@link #writeWellPositionsFile(List, File, int)}
+     * @param samples the list of samples (Fields) whose positions are written
+     * @param writer where to write the positions
+     * @param downscale the downscale with which to adjust the coordinates
+     * @throws IOException error in case of problem writing the positions
      */
-    private boolean isOverlapping( Roi one, Roi other ) {
-        return one.getBounds( ).intersects( other.getBounds( ) );
+    private void writeWellPositions( List<WellSample> samples, Writer writer, int downscale ) throws IOException {
+        int dim = range.getRangeZ( ).size( ) > 1 && !is_projection ? 3 : 2;
+
+        String z = dim == 3 ? ", 0.0" : "";
+
+        writer.write( "#Define the number of dimensions we are working on:\n" );
+        writer.write( "dim = " + dim + "\n" );
+        writer.write( "# Define the image coordinates\n" );
+        writer.write( "#Define the number of dimensions we are working on:\n" );
+
+        for ( WellSample sample : samples ) {
+            String name = getFinalFieldImageName( sample );
+            Point pos = getUncalibratedCoordinates( sample );
+            writer.write( String.format( "%s.tif;      ;               (%d.0, %d.0%s)\n", name, pos.x / downscale, pos.y / downscale, z ) );
+        }
     }
 
     /**
      * Initializes the reader for this series and makes sure to use Memoization
+     * The memo file is kept in the cache folder of the dataset, see {@link MemoCache}, as the data is often read-only
      * @param id the String path to the xml file
      * @return a BioFormats Reader with memoization
      * @throws IOException an error while reading the data
@@ -852,7 +2014,7 @@ public class OperettaManager {
         log.debug("Getting new reader for " + id);
         IFormatReader reader = new ImageReader();
         reader.setFlattenedResolutions(false); // For compatibility with bdv-playground
-        Memoizer memo = new Memoizer(reader);
+        Memoizer memo = MemoCache.createMemoizer( reader, new File( id ) );
         IMetadata omeMetaIdxOmeXml = MetadataTools.createOMEXMLMetadata();
         memo.setMetadataStore(omeMetaIdxOmeXml);
         try {
@@ -878,45 +2040,69 @@ public class OperettaManager {
         // Coordinates are in pixels
         // bounds are in pixels
 
-        ImagePlus imp = IJ.createImage( "", 500, 500, 1, 8 );
-        imp.setOverlay( new Overlay( ) );
         // Coordinates are set to 0 for each well
-        if ( bounds == null ) return fields;
+        if ( bounds == null || fields.isEmpty( ) ) return fields;
         log.info( "Looking for samples intersecting with {}, ", bounds );
 
-        // We are selecting bounds
-        imp.getOverlay( ).add( resampleRoi( bounds, 30 ) );
-
+        // The bounds are relative to the top left of the given fields, the index to the top left of the whole well
+        Well well = fields.get( 0 ).getWell( );
         Point topleft = getTopLeftCoordinates( fields );
+        Point well_topleft = getLayout( well ).getOrigin( );
+        Rectangle query = new Rectangle( bounds.getBounds( ) );
+        query.translate( topleft.x - well_topleft.x, topleft.y - well_topleft.y );
 
-        List<WellSample> selected = fields.stream( ).filter( s -> {
+        Set<WellSample> hits = new HashSet<>( getLayout( well ).getFieldIndex( ).getIntersectingFields( query ) );
 
-            int sample_id = s.getIndex( ).getValue( );
-            int x = getUncalibratedPositionX( s ) - topleft.x;
-            int y = getUncalibratedPositionY( s ) - topleft.y;
-            int w = metadata.getPixelsSizeX( sample_id ).getValue( );
-            int h = metadata.getPixelsSizeY( sample_id ).getValue( );
-
-            Roi other = new Roi( x, y, w, h );
-            imp.getOverlay( ).add( resampleRoi( other, 30 ) );
-
-            return isOverlapping( bounds, other );
-
-        } ).collect( Collectors.toList( ) );
-        //imp.show();
-        // Sort through them
+        // Keep the order of the fields that were given
+        List<WellSample> selected = fields.stream( ).filter( hits::contains ).collect( Collectors.toList( ) );
         log.info( "Selected Samples: " + selected.toString( ) );
         return selected;
     }
 
     /**
-     * reduces or enlarges ROI coordinates to match resampling
-     * @param r the roi
-     * @param s the downsample factor
-     * @return a new Roi with adjusted size
+     * Finds the fields of a well that intersect a rectangle
+     * @param well the well
+     * @param bounds a rectangle in pixels, relative to the top left corner of the well
+     * @return the intersecting fields
+     */
+    public List<WellSample> getIntersectingFields( Well well, Rectangle bounds ) {
+        return getLayout( well ).getFieldIndex( ).getIntersectingFields( bounds );
+    }
+
+    /**
+     * Finds the fields of a well that cover a point, useful for viewers
+     * @param well the well
+     * @param position a point in pixels, relative to the top left corner of the well
+     * @return the fields that contain this point, several if fields overlap
      */
-    private Roi resampleRoi( Roi r, int s ) {
-        return new Roi( r.getBounds( ).x / s, r.getBounds( ).y / s, r.getBounds( ).width / s, r.getBounds( ).height / s );
+    public List<WellSample> getFieldsAt( Well well, Point position ) {
+        return getLayout( well ).getFieldIndex( ).getFieldsAt( position );
+    }
+
+    /**
+     * Returns the layout of a well: the position and size of its fields in pixels, its top left corner and extent
+     * It is computed the first time it is needed, then reused
+     * @param well the well
+     * @return the layout of the well
+     */
+    public WellLayout getLayout( Well well ) {
+        return layouts.computeIfAbsent( well.getID( ), k -> {
+            List<WellSample> fields = well.copyWellSampleList( ).stream( )
+                    .filter( sample -> sample.getPositionX( ) != null )
+                    .collect( Collectors.toList( ) );
+
+            int n = fields.size( );
+            int[] x = new int[ n ], y = new int[ n ], w = new int[ n ], h = new int[ n ];
+            for ( int i = 0; i < n; i++ ) {
+                WellSample field = fields.get( i );
+                int sample_id = field.getIndex( ).getValue( );
+                x[ i ] = getUncalibratedPositionX( field );
+                y[ i ] = getUncalibratedPositionY( field );
+                w[ i ] = metadata.getPixelsSizeX( sample_id ).getValue( );
+                h[ i ] = metadata.getPixelsSizeY( sample_id ).getValue( );
+            }
+            return new WellLayout( fields, x, y, w, h );
+        } );
     }
 
     /**
@@ -958,6 +2144,8 @@ public class OperettaManager {
             if ( result.getNSlices( ) > 1 || result.getNFrames( ) > 1 ) {
                 zp.doHyperStackProjection( false );
                 result = zp.getProjection( );
+                // The projection lives on the heap, the canvas on disk is no longer needed
+                if ( stack instanceof MappedStack ) ( (MappedStack) stack ).close( );
             }
         }
         result.setCalibration( cal );
@@ -979,12 +2167,13 @@ public class OperettaManager {
         x = 0;
         y = 0;
 
-        int sample_id = field.getIndex( ).getValue( );
+        WellLayout layout = getLayout( field.getWell( ) );
+        int slot = layout.indexOf( field );
 
-        w = metadata.getPixelsSizeX( sample_id ).getValue( );
-        h = metadata.getPixelsSizeY( sample_id ).getValue( );
+        w = layout.getWidth( slot );
+        h = layout.getHeight( slot );
 
-        Point coordinates = getUncalibratedCoordinates( field );
+        Point coordinates = new Point( layout.getX( slot ), layout.getY( slot ) );
         coordinates.translate( -topleft.x, -topleft.y );
         if ( bounds != null ) {
 
@@ -1035,6 +2224,10 @@ public class OperettaManager {
      * @return a 2D Point with the xy pixel position of the fieldgit staguit
      */
     private Point getUncalibratedCoordinates( WellSample field ) {
+        WellLayout layout = getLayout( field.getWell( ) );
+        int slot = layout.indexOf( field );
+        if ( slot >= 0 ) return new Point( layout.getX( slot ), layout.getY( slot ) );
+
         Integer px = getUncalibratedPositionX( field );
         Integer py = getUncalibratedPositionY( field );
         return new Point( px, py );
@@ -1076,14 +2269,16 @@ public class OperettaManager {
      * @return a point with the xy pixel coordinates
      */
     public Point getTopLeftCoordinates( java.util.List<WellSample> fields ) {
-        fields = fields.stream().filter( sample -> sample.getPositionX() != null ).collect( Collectors.toList());
-
-        WellSample minx = fields.stream( ).min( Comparator.comparing( WellSample::getPositionX ) ).get( );
-        WellSample miny = fields.stream( ).min( Comparator.comparing( WellSample::getPositionY ) ).get( );
-
-        int px = getUncalibratedPositionX( minx );
-        int py = getUncalibratedPositionY( miny );
+        int px = Integer.MAX_VALUE, py = Integer.MAX_VALUE;
+        for ( WellSample field : fields ) {
+            WellLayout layout = getLayout( field.getWell( ) );
+            int slot = layout.indexOf( field );
+            if ( slot < 0 ) continue;
+            px = Math.min( px, layout.getX( slot ) );
+            py = Math.min( py, layout.getY( slot ) );
+        }
 
+        if ( px == Integer.MAX_VALUE ) throw new NoSuchElementException( "None of the fields have a position" );
         return new Point( px, py );
     }
 
@@ -1093,16 +2288,16 @@ public class OperettaManager {
      * @return a point with the xy pixel coordinates
      */
     public Point getBottomRightCoordinates( List<WellSample> fields ) {
-        fields = fields.stream().filter( sample -> sample.getPositionX() != null ).collect( Collectors.toList());
-
-        WellSample maxx = fields.stream( ).max( Comparator.comparing( WellSample::getPositionX ) ).get( );
-        WellSample maxy = fields.stream( ).max( Comparator.comparing( WellSample::getPositionY ) ).get( );
-        // Might need something like this ( ( OMEXMLMetadata) metadata.getRoot() ).getPlanePositionX(  )
-
-        Integer px = getUncalibratedPositionX( maxx );
-        Integer py = getUncalibratedPositionY( maxy );
+        int px = Integer.MIN_VALUE, py = Integer.MIN_VALUE;
+        for ( WellSample field : fields ) {
+            WellLayout layout = getLayout( field.getWell( ) );
+            int slot = layout.indexOf( field );
+            if ( slot < 0 ) continue;
+            px = Math.max( px, layout.getX( slot ) );
+            py = Math.max( py, layout.getY( slot ) );
+        }
 
-        if (px != null && py!= null) {
+        if ( px != Integer.MIN_VALUE ) {
             return new Point( px, py );
         } else {
             return new Point( 0,0 );
@@ -1,6 +1,8 @@
 package ch.epfl.biop.operetta.commands;
 
 import ch.epfl.biop.operetta.OperettaManager;
+import ch.epfl.biop.operetta.utils.MemoCache;
+import ch.epfl.biop.operetta.utils.MemoPrewarmer;
 import ij.IJ;
 import loci.formats.IFormatReader;
 import org.apache.commons.io.FileUtils;
@@ -11,6 +13,7 @@ import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 import java.io.File;
+import java.util.Properties;
 
 /**
  * Entry point to command {@link OperettaImporterInteractive}.
@@ -42,14 +45,39 @@ public class OperettaImporter implements Command {
         int sizeInMb = (int) ((double) FileUtils.sizeOf(f)/(double)(1024*1024));
         IJ.log("- Opening Operetta dataset "+f.getAbsolutePath()+" (" + sizeInMb + " Mb)");
 
-        File fmemo = new File(folder, ".Index.idx.xml.bfmemo");
+        // Memos are kept in the cache folder of the dataset, see MemoCache
+        if (MemoPrewarmer.isWarming(f)) {
+            IJ.log("- A memo is being built for this dataset in the background, waiting for it...");
+            while (MemoPrewarmer.isWarming(f)) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    IJ.log("Operetta dataset opening interrupted!");
+                    return;
+                }
+            }
+        }
+
+        File fmemo = MemoCache.getMemoFile(f);
+        Properties plateIndex = MemoPrewarmer.readPlateIndex(f);
         int estimatedOpeningTimeInMin;
-        if (!fmemo.exists()) {
-            estimatedOpeningTimeInMin = sizeInMb / 30; // 30 Mb per minute
+        if (fmemo == null || !fmemo.exists()) {
+            if (plateIndex != null) {
+                // The plate was parsed before, but its memo is gone
+                estimatedOpeningTimeInMin = Integer.parseInt(plateIndex.getProperty("parse.seconds", "0")) / 60;
+            } else {
+                estimatedOpeningTimeInMin = sizeInMb / 30; // 30 Mb per minute
+            }
             IJ.log("- No memo file, the first opening will take longer.");
         } else {
-            estimatedOpeningTimeInMin = sizeInMb / 600; // 60 Mb per minute
-            IJ.log("- Memo file detected.");
+            int memoSizeInMb = (int) ((double) fmemo.length()/(double)(1024*1024));
+            estimatedOpeningTimeInMin = memoSizeInMb / 600; // 600 Mb per minute
+            IJ.log("- Memo file detected (" + memoSizeInMb + " Mb).");
+        }
+
+        if (plateIndex != null) {
+            IJ.log("- Plate " + plateIndex.getProperty("plate") + ": " + plateIndex.getProperty("wells") + " wells, "
+                    + plateIndex.getProperty("fields") + " fields per well.");
         }
 
         if (estimatedOpeningTimeInMin==0) {
@@ -1,10 +1,15 @@
 package ch.epfl.biop.operetta.commands;
 
 import ch.epfl.biop.operetta.OperettaManager;
+import ch.epfl.biop.operetta.commands.utils.ImageFetcher;
 import ch.epfl.biop.operetta.commands.utils.ListChooser;
 import ch.epfl.biop.operetta.commands.utils.TiledCellReader;
+import ch.epfl.biop.operetta.utils.BigStitcherExporter;
+import ch.epfl.biop.operetta.utils.DatasetWatcher;
 import ch.epfl.biop.operetta.utils.HyperRange;
+import ch.epfl.biop.operetta.utils.PlateOverview;
 import ij.IJ;
+import ij.ImageListener;
 import ij.ImagePlus;
 import ij.gui.Roi;
 import net.imagej.ImageJ;
@@ -21,10 +26,15 @@ import org.scijava.plugin.Plugin;
 import org.scijava.widget.Button;
 import org.scijava.widget.FileWidget;
 
+import java.awt.EventQueue;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -47,6 +57,15 @@ public class OperettaImporterInteractive extends InteractiveCommand {
     @Parameter( label = "Fuse Fields", required = false )
     private boolean is_fuse_fields = true;
 
+    @Parameter( label = "Pack Individual Fields In One ZIP Per Well", required = false )
+    private boolean is_zip_fields = false;
+
+    @Parameter( label = "Export Fields Of Wells Too Large To Fuse", required = false )
+    private boolean is_field_fallback = false;
+
+    @Parameter( label = "Write BigStitcher Datasets Instead (No Fusion)", required = false )
+    private boolean is_bigstitcher = false;
+
     @Parameter( label = "Choose Fields", callback = "fieldChooser", required = false, persist = false )
     private Button chooseFields;
 
@@ -59,6 +78,12 @@ public class OperettaImporterInteractive extends InteractiveCommand {
     @Parameter( label = "Get Roi From Open Well", callback = "roiSelector", required = false, persist = false )
     private Button selectRoi;
 
+    @Parameter( label = "Open Plate Overview", callback = "plateOverview", required = false, persist = false )
+    private Button openOverview;
+
+    @Parameter( label = "Watch Acquisition (Start/Stop)", callback = "watchAcquisition", required = false, persist = false )
+    private Button watchAcquisition;
+
     @Parameter( label = "Select Range", visibility = ItemVisibility.MESSAGE, persist = false, required = false)
     String range = "You can use commas or colons to separate ranges. eg. '1:10' or '1,3,5,8' ";
 
@@ -83,12 +108,30 @@ public class OperettaImporterInteractive extends InteractiveCommand {
     @Parameter( label = "Choose Data Range", visibility = ItemVisibility.MESSAGE, persist = false, required = false)
     String norm = "Important if you have digital phase images";
 
+    @Parameter( label = "Estimate Range From Data (0.1% - 99.9%)" )
+    boolean is_auto_normalization = false;
+
     @Parameter( label = "Min Value" )
     Integer norm_min = 0;
 
     @Parameter( label = "Max Value" )
     Integer norm_max = (int) Math.pow( 2, 16 ) - 1;
 
+    @Parameter( label = "Output Bit Depth", choices = {"8", "16", "32"} )
+    String bit_depth = "16";
+
+    @Parameter( label = "Write Time-Lapses One Timepoint at a Time" )
+    boolean is_stream_timepoints = false;
+
+    @Parameter( label = "Limit Reads To (MB/s, 0 for no limit)", min = "0" )
+    double read_limit_mb = 0;
+
+    @Parameter( label = "Export Wells As They Are Acquired" )
+    boolean is_follow_acquisition = false;
+
+    @Parameter( label = "Stop Waiting After (min without new images)" )
+    int acquisition_timeout = 30;
+
     @Parameter( label = "Process", callback = "doProcess", persist = false )
     Button process;
 
@@ -97,11 +140,67 @@ public class OperettaImporterInteractive extends InteractiveCommand {
 
     OperettaManager opm;
 
+    // Managers still read by an export or a lazy view, they are closed once the last of their users is done
+    private final Map<OperettaManager, Integer> in_use = new HashMap<>( );
+
     List<String> selected_wells_string = new ArrayList<>( );
     List<String> selected_fields_string = new ArrayList<>( );
 
     private ImagePlus roiImage;
 
+    // Live view of a well of a plate that is still being acquired
+    private DatasetWatcher watcher;
+    private volatile ImageFetcher live_fetcher;
+    private volatile ImgPlus<UnsignedShortType> live_image;
+    private volatile ImagePlus live_imp;
+    private volatile Well live_well;
+    private volatile OperettaManager live_opm;
+
+    /**
+     * Replaces the current manager, closing the previous one unless an export or a view still reads from it
+     * @param next the manager to use from now on
+     */
+    private synchronized void setManager( OperettaManager next ) {
+        OperettaManager previous = opm;
+        opm = next;
+        if ( previous != null && previous != next && !in_use.containsKey( previous ) ) previous.close( );
+    }
+
+    private synchronized OperettaManager hold( OperettaManager manager ) {
+        in_use.merge( manager, 1, Integer::sum );
+        return manager;
+    }
+
+    private synchronized void release( OperettaManager manager ) {
+        if ( in_use.merge( manager, -1, Integer::sum ) > 0 ) return;
+        in_use.remove( manager );
+        if ( manager != opm ) manager.close( );
+    }
+
+    /**
+     * Keeps the manager open for as long as the lazy image that reads from it is displayed
+     * @param imp the displayed image
+     * @param manager the manager its pixels are read from
+     */
+    private void holdWhileOpen( ImagePlus imp, OperettaManager manager ) {
+        hold( manager );
+        ImagePlus.addImageListener( new ImageListener( ) {
+            @Override
+            public void imageOpened( ImagePlus image ) { }
+
+            @Override
+            public void imageUpdated( ImagePlus image ) { }
+
+            @Override
+            public void imageClosed( ImagePlus image ) {
+                if ( image != imp ) return;
+                // ImageJ is still iterating over its listeners
+                EventQueue.invokeLater( ( ) -> ImagePlus.removeImageListener( this ) );
+                release( manager );
+            }
+        } );
+    }
+
     private void roiSelector( ) {
         if ( this.roiImage != null ) {
             Roi roi = this.roiImage.getRoi( );
@@ -117,13 +216,13 @@ public class OperettaImporterInteractive extends InteractiveCommand {
     }
 
     private void wellChooser( ) {
-        opm = opmBuilder.build( );
+        setManager( opmBuilder.build( ) );
         ListChooser.create( "Wells", opm.getAvailableWellsString( ), selected_wells_string );
         selected_wells_str = selected_wells_string.toString( );
     }
 
     private void fieldChooser( ) {
-        opm = opmBuilder.build( );
+        setManager( opmBuilder.build( ) );
         ListChooser.create( "Fields", opm.getAvailableFieldsString( ), selected_fields_string );
         selected_fields_str = selected_fields_string.toString( );
     }
@@ -137,10 +236,10 @@ public class OperettaImporterInteractive extends InteractiveCommand {
     }
 
     private void roiChooser( ) {
-        opm = opmBuilder
+        setManager( opmBuilder
                 .doProjection( is_projection )
                 .setProjectionMethod( z_projection_method )
-                .build( );
+                .build( ) );
 
         // If there is a range, update it, otherwise choose the first timepoint and the first z
         if( !this.selected_slices_str.equals( "" ) ) {
@@ -185,11 +284,81 @@ public class OperettaImporterInteractive extends InteractiveCommand {
 
     }
 
+    private void plateOverview( ) {
+        setManager( opmBuilder.build( ) );
+        // Thumbnails are cached, so this is only slow the first time a plate is opened
+        new PlateOverview( opm ).getOverview( ).show( );
+    }
+
+    private void watchAcquisition( ) {
+        if ( watcher != null ) {
+            watcher.close( );
+            watcher = null;
+            IJ.log( "- Stopped watching the acquisition." );
+            return;
+        }
+
+        live_opm = opmBuilder.build( );
+        setManager( live_opm );
+        String selected_well = selected_wells_str.length( ) != 0 ? stringToList( selected_wells_str ).get( 0 ) : opm.getAvailableWellsString( ).get( 0 );
+        openLiveView( selected_well );
+
+        // New images are added to the fetcher as they are written, only the well being displayed is read again
+        watcher = new DatasetWatcher( opm.getId( ) ).addListener( new DatasetWatcher.Listener( ) {
+            @Override
+            public void filesAdded( List<String> files ) {
+                Set<WellSample> updated = live_fetcher.addFiles( files );
+                updated.stream( ).map( WellSample::getWell ).distinct( ).forEach( w -> PlateOverview.invalidate( live_opm, w ) );
+
+                if ( updated.stream( ).anyMatch( f -> f.getWell( ).getID( ).equals( live_well.getID( ) ) ) ) {
+                    TiledCellReader.invalidate( live_image );
+                    live_imp.updateAndDraw( );
+                }
+            }
+
+            // New wells or fields are only known once the index is parsed again
+            @Override
+            public void indexChanged( File id ) {
+                IJ.log( "- The index of the plate changed, reading it again..." );
+                opmBuilder.reader( OperettaManager.createReader( id.getAbsolutePath( ) ) );
+                live_opm = opmBuilder.build( );
+                setManager( live_opm );
+                live_imp.close( );
+                openLiveView( selected_well );
+            }
+        } );
+
+        try {
+            watcher.start( );
+            IJ.log( "- Watching " + opm.getId( ).getParent( ) + " for new images." );
+        } catch ( IOException e ) {
+            IJ.log( "Could not watch " + opm.getId( ).getParent( ) + ": " + e.getMessage( ) );
+            watcher = null;
+        }
+    }
+
+    private void openLiveView( String selected_well ) {
+        OperettaManager manager = live_opm;
+        Well well = manager.getWell( getRow( selected_well ), getColumn( selected_well ) );
+        live_well = well;
+        live_fetcher = new ImageFetcher( manager );
+        live_image = TiledCellReader.createLazyImage( manager, well, 16, live_fetcher );
+        ImagePlus imp = ImageJFunctions.wrap( live_image, "Live: " + getWellName( well ) );
+        holdWhileOpen( imp, manager );
+        imp.show( );
+        live_imp = imp;
+        this.roiImage = imp;
+    }
+
+    private static String getWellName( Well well ) {
+        return "R" + ( well.getRow( ).getValue( ) + 1 ) + "-C" + ( well.getColumn( ).getValue( ) + 1 );
+    }
+
     private void roiChooserLazy( ) {
-        opm = opmBuilder
+        setManager( opmBuilder
                 .doProjection( is_projection )
                 .setProjectionMethod( z_projection_method )
-                .build( );
+                .build( ) );
 
         IJ.log("Current Range: "+opm.getRange().toString());
         // If there is a range, update it, otherwise choose the first timepoint and the first z
@@ -229,6 +398,7 @@ public class OperettaImporterInteractive extends InteractiveCommand {
 
         sample = ImageJFunctions.wrap(image, "test" );
         sample.setTitle( "Well: "+selected_well );
+        holdWhileOpen( sample, opm );
         sample.show();
         this.roiImage = sample;
 
@@ -267,14 +437,24 @@ public class OperettaImporterInteractive extends InteractiveCommand {
                 .setRangeT( this.selected_timepoints_str )
                 .build( );
 
-        opm = opmBuilder
+        opmBuilder
                 .setRange( range )
                 .setProjectionMethod( this.z_projection_method )
                 .doProjection( this.is_projection )
                 .setSaveFolder( this.save_directory )
-                .setNormalization( norm_min, norm_max )
+                .setBitDepth( Integer.parseInt( bit_depth ) )
+                .setStreamTimepoints( this.is_stream_timepoints )
+                .setIoLimits( this.read_limit_mb, 0, 0 )
+                .setFieldArchive( this.is_zip_fields, false )
+                .setFieldFallback( this.is_field_fallback );
 
-                .build( );
+        if ( is_auto_normalization )
+            opmBuilder.setAutoNormalization( 0.1, 99.9 );
+        else
+            opmBuilder.setNormalization( norm_min, norm_max );
+
+        setManager( opmBuilder.build( ) );
+        OperettaManager manager = hold( opm );
 
         // Get Wells and Fields
 
@@ -295,7 +475,7 @@ public class OperettaImporterInteractive extends InteractiveCommand {
         List<Well> wells = selected_wells.stream().map( w -> {
             int row = getRow( w );
             int col = getColumn( w );
-            return opm.getWell( row, col);
+            return manager.getWell( row, col);
         } ).collect( Collectors.toList());
 
         List<Integer> field_ids = selected_fields.stream().map( w -> Integer.parseInt( w.trim( ).split( " " )[ 1 ]) - 1 ).collect( Collectors.toList());
@@ -303,8 +483,29 @@ public class OperettaImporterInteractive extends InteractiveCommand {
 
         Roi roi = parseRoi( roi_bounds );
 
+        if ( is_bigstitcher ) {
+            new Thread( ( ) -> {
+                try {
+                    new BigStitcherExporter( manager ).setFields( field_ids ).writeWells( wells, save_directory );
+                    IJ.log( "BigStitcher datasets written to " + save_directory );
+                } finally {
+                    release( manager );
+                }
+            } ).start( );
+            return;
+        }
+
         // Write the associated macro command in new thread to allow for proper logging
-        new Thread(()->opm.process( wells, field_ids, this.downsample, roi, !is_fuse_fields)).start();
+        new Thread( ( ) -> {
+            try {
+                if ( is_follow_acquisition )
+                    manager.processWhileAcquiring( wells, field_ids, this.downsample, roi, !is_fuse_fields, acquisition_timeout );
+                else
+                    manager.process( wells, field_ids, this.downsample, roi, !is_fuse_fields );
+            } finally {
+                release( manager );
+            }
+        } ).start( );
 
     }
 
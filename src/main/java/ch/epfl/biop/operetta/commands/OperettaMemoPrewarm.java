@@ -0,0 +1,62 @@
+package ch.epfl.biop.operetta.commands;
+
+import ch.epfl.biop.operetta.utils.MemoCache;
+import ch.epfl.biop.operetta.utils.MemoPrewarmer;
+import ij.IJ;
+import org.scijava.ItemVisibility;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the memo files of new Operetta datasets in the background, see {@link MemoPrewarmer}.
+ * Plates arriving in the selected folder are parsed before anyone opens them with {@link OperettaImporter},
+ * which then only needs to load the memo
+ */
+@Plugin( type = Command.class, menuPath = "Plugins>BIOP > Operetta Memo Prewarm..." )
+public class OperettaMemoPrewarm implements Command {
+
+    // Only one background prewarmer per session
+    private static MemoPrewarmer running = null;
+
+    @Parameter(visibility = ItemVisibility.MESSAGE)
+    String message = "Build memos of new Operetta datasets in the background";
+
+    @Parameter(label = "Folder where new plates arrive", style = "directory")
+    File folder;
+
+    @Parameter(label = "Memo folder. Leave blank for the default cache", style = "directory", required = false)
+    File memo_folder;
+
+    @Parameter(label = "Scan every (min), 0 to scan once")
+    int interval = 10;
+
+    @Parameter(label = "Stop prewarming")
+    boolean is_stop = false;
+
+    @Override
+    public void run() {
+        synchronized (OperettaMemoPrewarm.class) {
+            if (running != null) {
+                running.close();
+                running = null;
+                IJ.log("- Stopped prewarming memos.");
+            }
+            if (is_stop) return;
+
+            if (memo_folder != null && !memo_folder.getPath().isEmpty()) MemoCache.setRoot(memo_folder);
+
+            MemoPrewarmer prewarmer = new MemoPrewarmer(folder);
+            if (interval > 0) {
+                running = prewarmer;
+                prewarmer.start(interval, TimeUnit.MINUTES);
+                IJ.log("- Prewarming memos under " + folder.getAbsolutePath() + " every " + interval + " min.");
+            } else {
+                new Thread(prewarmer::run, "Operetta memo prewarmer").start();
+            }
+        }
+    }
+}
@@ -4,9 +4,14 @@ package ch.epfl.biop.operetta.commands.utils;
 
 import ch.epfl.biop.operetta.OperettaManager;
 import ch.epfl.biop.operetta.utils.FCZT;
-import ij.IJ;
+import ch.epfl.biop.operetta.utils.HedgedReader;
+import ch.epfl.biop.operetta.utils.IoThrottle;
+import ch.epfl.biop.operetta.utils.PixelConverter;
+import ch.epfl.biop.operetta.utils.TiffPlaneReader;
 import ij.ImagePlus;
 import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
@@ -16,7 +21,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -27,26 +37,40 @@ public class ImageFetcher{
 
     Hashtable<FCZT, String> files_hash;
 
+    // Fields by row, column and position in the well, as numbered in the file names
+    Map<String, WellSample> fields_by_name = new ConcurrentHashMap<>( );
+
     double min_scale;
     double max_scale;
 
+    // Reads share the limits of the export, so that browsing a plate during an acquisition does not slow it down
+    IoThrottle throttle;
+    HedgedReader file_reader;
+
 
     public ImageFetcher(OperettaManager opm) {
         this.max_scale = opm.getNorm_max();
         this.min_scale = opm.getNorm_min();
+        this.throttle = opm.getIoThrottle();
+        this.file_reader = opm.getFileReader();
 
         generateHash(opm);
     }
 
     private void generateHash( OperettaManager opm ) {
 
-        this.files_hash = new Hashtable<>( opm.getReader().getUsedFiles(true).length );
+        int n_files = opm.getReaderPool( ).apply( r -> r.getUsedFiles( true ).length );
+        this.files_hash = new Hashtable<>( n_files );
 
 
         opm.getAvailableWells().stream().forEach( w -> {
-            w.copyWellSampleList( ).stream( ).forEach( s -> {
-                opm.getReader( ).setSeries( s.getIndex( ).getValue( ) );
-                Arrays.stream( opm.getReader( ).getSeriesUsedFiles( true ) ).parallel( ).forEach( f -> {
+            List<WellSample> samples = w.copyWellSampleList( );
+            for ( int i = 0; i < samples.size( ); i++ )
+                fields_by_name.put( fieldName( w.getRow( ).getValue( ) + 1, w.getColumn( ).getValue( ) + 1, i + 1 ), samples.get( i ) );
+
+            samples.stream( ).forEach( s -> {
+                String[] files = opm.getReaderPool( ).apply( s.getIndex( ).getValue( ), r -> r.getSeriesUsedFiles( true ) );
+                Arrays.stream( files ).parallel( ).forEach( f -> {
                     // Parse the file name
                     Matcher m = operetta_pattern.matcher( f );
                     if ( m.matches( ) ) {
@@ -67,18 +91,78 @@ public class ImageFetcher{
     }
 
 
+    /**
+     * Adds files that were written after this fetcher was created, see {@link ch.epfl.biop.operetta.utils.DatasetWatcher}
+     * Files of wells or fields that are not in the metadata yet are ignored, they need a new reader
+     * @param files the new files
+     * @return the fields that have new images
+     */
+    public Set<WellSample> addFiles( List<String> files ) {
+        Set<WellSample> updated = new HashSet<>( );
+        for ( String f : files ) {
+            Matcher m = operetta_pattern.matcher( f );
+            if ( !m.matches( ) ) continue;
+
+            WellSample s = fields_by_name.get( fieldName( Integer.parseInt( m.group( 1 ) ), Integer.parseInt( m.group( 2 ) ), Integer.parseInt( m.group( 3 ) ) ) );
+            if ( s == null ) {
+                logger.debug( "{} is not in the index yet", f );
+                continue;
+            }
+
+            int ci = Integer.parseInt( m.group( 5 ) );
+            int zi = Integer.parseInt( m.group( 4 ) );
+            int ti = Integer.parseInt( m.group( 6 ) );
+            files_hash.put( new FCZT( s.getIndex().getValue(), ci-1, zi-1, ti-1 ), f );
+            updated.add( s );
+        }
+        return updated;
+    }
+
+    private static String fieldName( int row, int column, int field ) {
+        return row + "-" + column + "-" + field;
+    }
+
+    /**
+     * Returns the file that holds a plane of a field
+     * @param field the field
+     * @param c the channel, starting at 0
+     * @param z the slice, starting at 0
+     * @param t the timepoint, starting at 0
+     * @return the path of the file, or null if there is no image for this plane
+     */
+    public String getFile( WellSample field, int c, int z, int t ) {
+        return this.files_hash.get( new FCZT( field.getIndex( ).getValue( ), c, z, t ) );
+    }
+
+    /**
+     * Reads a plane of a field
+     * @param field the field
+     * @param c the channel, starting at 0
+     * @param z the slice, starting at 0
+     * @param t the timepoint, starting at 0
+     * @return the plane as 16-bit, or null if it has no file yet or its file could not be read
+     */
     public RandomAccessibleInterval<UnsignedShortType> getImageFile( WellSample field, int c, int z, int t ) {
-        String the_file = this.files_hash.get( new FCZT(field.getIndex().getValue(), c, z, t ));
+        String the_file = getFile( field, c, z, t );
         if (the_file == null ){
+            // Normal while the plate is being acquired
             Well well = field.getWell( );
-            logger.warn( "Well R{}C{} has no image at c{} z{} t{} for Fields {}", well.getRow(), well.getColumn(), c,z,t, field.getID() );
-
+            logger.debug( "Well R{}C{} has no image at c{} z{} t{} for Fields {}", well.getRow(), well.getColumn(), c,z,t, field.getID() );
+            return null;
+        }
+        ImageProcessor read = file_reader.read( the_file, f -> TiffPlaneReader.open( f, null ), unused -> { }, throttle, TiffPlaneReader::getBytes );
+        if ( read == null ) {
+            logger.error( "Could not open {}", the_file );
+            return null;
         }
-        ImagePlus imp = IJ.openImage( the_file );
+        ImagePlus imp = new ImagePlus( the_file, read );
 
         if (imp.getProcessor() instanceof FloatProcessor ) {
-            imp.getProcessor().setMinAndMax( min_scale, max_scale );
-            imp.setProcessor( imp.getProcessor().convertToShortProcessor( true ) );
+            // Same normalization as the export, in a single pass
+            ImageProcessor ip = imp.getProcessor();
+            short[] pixels = new short[ ip.getWidth() * ip.getHeight() ];
+            PixelConverter.convert( ip, pixels, min_scale, max_scale );
+            imp.setProcessor( new ShortProcessor( ip.getWidth(), ip.getHeight(), pixels ) );
         }
 
         RandomAccessibleInterval<UnsignedShortType> img = ImageJFunctions.wrap( imp );
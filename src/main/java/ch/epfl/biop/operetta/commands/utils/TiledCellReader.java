@@ -1,10 +1,13 @@
 package ch.epfl.biop.operetta.commands.utils;
 
 import ch.epfl.biop.operetta.OperettaManager;
+import ch.epfl.biop.operetta.utils.ReadScheduler;
+import ch.epfl.biop.operetta.utils.WellLayout;
 import ij.IJ;
 import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
 import net.imglib2.cache.img.CellLoader;
 import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
 import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
@@ -22,8 +25,10 @@ import org.slf4j.LoggerFactory;
 
 import java.awt.*;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * This is an implementation of ImgLib2's CellLoader to see how to best load data in a lazy way
@@ -43,9 +48,21 @@ public class TiledCellReader implements CellLoader <UnsignedShortType> {
 
 
     public TiledCellReader(OperettaManager manager, Well well, int downscale) {
+        this( manager, well, downscale, new ImageFetcher( manager ) );
+    }
+
+    /**
+     * Creates a cell loader that finds its files with the given fetcher, so that files added to the fetcher
+     * while the plate is being acquired are seen by this loader
+     * @param manager the manager of the plate
+     * @param well the well to load
+     * @param downscale the downscale factor
+     * @param image_fetcher the fetcher to use
+     */
+    public TiledCellReader(OperettaManager manager, Well well, int downscale, ImageFetcher image_fetcher) {
         this.downscale = downscale;
         this.manager = manager;
-        image_fetcher = new ImageFetcher( manager );
+        this.image_fetcher = image_fetcher;
         this.well = well;
 
     }
@@ -66,26 +83,35 @@ public class TiledCellReader implements CellLoader <UnsignedShortType> {
 
 
         // We will load the entire stack so we will then make sure we can do this plane by plane
-        // So we need all the fields associated with the current well
-        List<WellSample> samples = well.copyWellSampleList( );
-
-        // Need information on the coordinates, thanks to the manager
-        Point topleft = manager.getTopLeftCoordinates( samples );
+        // So we need all the fields associated with the current well, and their coordinates, thanks to the manager
+        WellLayout layout = manager.getLayout( well );
+        Point topleft = layout.getOrigin( );
 
         // Because this *Could* be a 5D image, we drop the dimensions that are equal to 1 before doing the copy
         IntervalView<UnsignedShortType> full_well_plane = (IntervalView<UnsignedShortType>) Views.dropSingletonDimensions( cell );
 
-        // Load the images in parallel for each sample at each plane
-        samples.parallelStream().forEach( sample -> {
+        // Load the images in parallel for each sample at each plane, in the order their files are on disk,
+        // each thread going through a batch of consecutive files, see ReadScheduler
+        List<Integer> ordered = IntStream.range( 0, layout.size( ) ).boxed( )
+                .sorted( Comparator.comparing( ( Integer f ) -> image_fetcher.getFile( layout.getField( f ), c, z, t ),
+                        Comparator.nullsFirst( ReadScheduler.FILE_ORDER ) ) )
+                .collect( Collectors.toList( ) );
+        int batch_size = manager.getReadScheduler( ).getBatchSize( );
+
+        IntStream.range( 0, ( ordered.size( ) + batch_size - 1 ) / batch_size ).parallel( ).forEach( b ->
+                ordered.subList( b * batch_size, Math.min( ordered.size( ), ( b + 1 ) * batch_size ) ).forEach( f -> {
+            WellSample sample = layout.getField( f );
 
             // Get the positions of the sample for the full well
-            final Point pos = manager.getFieldAdjustedCoordinates( sample, null, null, topleft, downscale );
+            final Point pos = new Point( ( layout.getX( f ) - topleft.x ) / downscale, ( layout.getY( f ) - topleft.y ) / downscale );
 
             // Pick up the image, from a file hash
             RandomAccessibleInterval<UnsignedShortType> single_field;
             //Make sure it is converted to 16-bit without an OP
             //Converters.convert( single_field, RealUnsignedShortConverter)
             single_field = image_fetcher.getImageFile( sample, c, z, t);
+            // Planes that are not acquired yet or could not be read stay black, like in readSingleStack( )
+            if ( single_field == null ) return;
             // Nice functionality, you can downscale and translate the image very easily
             single_field = Views.subsample( single_field, downscale, downscale );
             single_field = Views.translate( single_field, pos.x, pos.y);
@@ -93,7 +119,7 @@ public class TiledCellReader implements CellLoader <UnsignedShortType> {
             // This copies the pixels in the right position
             LoopBuilder.setImages( single_field, Views.interval( full_well_plane , single_field) ).forEachPixel( ( i, o ) -> o.set( i ) );
 
-        } );
+        } ) );
 
         String stop = stopWatch.stop( );
         logger.info( stop );
@@ -109,6 +135,18 @@ public class TiledCellReader implements CellLoader <UnsignedShortType> {
 
 
     public static ImgPlus<UnsignedShortType> createLazyImage( OperettaManager opm, Well well, int downscale ) {
+        return createLazyImage( opm, well, downscale, new ImageFetcher( opm ) );
+    }
+
+    /**
+     * Creates a lazy image of a well whose files are found with the given fetcher
+     * @param opm the manager of the plate
+     * @param well the well
+     * @param downscale the downscale factor
+     * @param fetcher the fetcher, which can be shared with other lazy images and updated with new files
+     * @return the lazy image, planes are only read when they are first displayed
+     */
+    public static ImgPlus<UnsignedShortType> createLazyImage( OperettaManager opm, Well well, int downscale, ImageFetcher fetcher ) {
         int[] czt =  opm.getRange().getCZTDimensions();
         IJ.log( "CZT:"+czt[0]+","+czt[1]+","+czt[2]);
         long[] xy = getWellTileSize(opm, well, downscale);
@@ -121,7 +159,7 @@ public class TiledCellReader implements CellLoader <UnsignedShortType> {
         ReadOnlyCachedCellImgFactory roccif = new ReadOnlyCachedCellImgFactory(ReadOnlyCachedCellImgOptions.options()
                 .cellDimensions((int) xy[0], (int) xy[1], 1));
 
-        Img<UnsignedShortType> image = roccif.create(dimensions, new UnsignedShortType(), new TiledCellReader(opm, well, downscale));
+        Img<UnsignedShortType> image = roccif.create(dimensions, new UnsignedShortType(), new TiledCellReader(opm, well, downscale, fetcher));
 
         ImgPlus<UnsignedShortType> img = new ImgPlus<>( image );
         img.axis( 0 ).setType( Axes.X );
@@ -133,21 +171,22 @@ public class TiledCellReader implements CellLoader <UnsignedShortType> {
         return img;
     }
 
-    private static long[] getWellTileSize( OperettaManager opm, Well well, int downscale) {
-        // Get the positions for each field (called a sample by BioFormats) in this well
-        List<WellSample> fields = well.copyWellSampleList( );
-
-        int a_field_id = fields.get( 0 ).getIndex( ).getValue( );
-        // We need to know the width and height of a single image
-        int sample_width = opm.getMetadata().getPixelsSizeX( a_field_id ).getValue( );
-        int sample_height = opm.getMetadata().getPixelsSizeY( a_field_id ).getValue( );
+    /**
+     * Forgets the planes that were already loaded by a lazy image, so that they are read again with the files that
+     * were added to its fetcher since
+     * @param image a lazy image made by {@link #createLazyImage(OperettaManager, Well, int, ImageFetcher)}
+     */
+    public static void invalidate( ImgPlus<?> image ) {
+        if ( image.getImg( ) instanceof CachedCellImg )
+            ( (CachedCellImg<?, ?>) image.getImg( ) ).getCache( ).invalidateAll( );
+    }
 
+    private static long[] getWellTileSize( OperettaManager opm, Well well, int downscale) {
         // Get extents for the final image
-        Point topleft = opm.getTopLeftCoordinates( fields );
-        Point bottomright = opm.getBottomRightCoordinates( fields );
+        Dimension extent = opm.getLayout( well ).getExtent( );
 
-        int well_width = bottomright.x - topleft.x + sample_width;
-        int well_height = bottomright.y - topleft.y + sample_height;
+        int well_width = extent.width;
+        int well_height = extent.height;
 
         // Finally, correct for downscaling
         well_width /= downscale;
@@ -0,0 +1,278 @@
+package ch.epfl.biop.operetta.utils;
+
+import ch.epfl.biop.operetta.OperettaManager;
+import loci.formats.meta.IMetadata;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
+import ome.xml.model.Well;
+import ome.xml.model.WellSample;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+/**
+ * Writes the wells of a plate as BigStitcher datasets, so that they can be stitched and fused in BigStitcher without
+ * exporting any image.
+ *
+ * Each well gets its own SpimData XML, which BigDataViewer and BigStitcher open directly. Every field of the well is a
+ * tile, and every channel of the range a channel, so each field and channel is a view, placed at the stage position of
+ * its field by a translation. The images are not copied: the XML points to the 'Index.idx.xml' of the plate through
+ * BigStitcher's Bio-Formats loader ('spimreconstruction.filemap2'), where each field is a series.
+ *
+ * BigStitcher reads whole stacks, so all slices are part of the views. Only the channels and timepoints of the range of
+ * the manager are written.
+ *
+ * Use
+ * <pre>
+ * {@code
+ * new BigStitcherExporter( opm ).writeWells( opm.getAvailableWells( ), save_folder );
+ * }
+ * </pre>
+ */
+public class BigStitcherExporter {
+
+    private static final Logger log = LoggerFactory.getLogger( BigStitcherExporter.class );
+
+    private final OperettaManager opm;
+    private List<Integer> field_ids = null;
+
+    /**
+     * Creates an exporter for a plate
+     * @param opm the manager of the plate. Its range gives the channels and timepoints to write
+     */
+    public BigStitcherExporter( OperettaManager opm ) {
+        this.opm = opm;
+    }
+
+    /**
+     * @param field_ids the fields to write, starting at 0, null for all. Default is all
+     * @return this exporter
+     */
+    public BigStitcherExporter setFields( List<Integer> field_ids ) {
+        this.field_ids = field_ids == null ? null : new ArrayList<>( field_ids );
+        return this;
+    }
+
+    /**
+     * Writes one XML per well, named like the stitched well would be, see {@link OperettaManager#getFinalWellImageName(Well)}
+     * @param wells the wells to write
+     * @param folder the folder where the XML files are written
+     */
+    public void writeWells( List<Well> wells, File folder ) {
+        for ( Well well : wells ) {
+            File xml = new File( folder, opm.getFinalWellImageName( well ) + ".xml" );
+            try {
+                writeWell( well, xml );
+            } catch ( IOException e ) {
+                log.error( "Could not write " + xml + ":", e );
+            }
+        }
+    }
+
+    /**
+     * Writes the BigStitcher dataset of a well
+     * @param well the well
+     * @param xml the XML file to write
+     * @throws IOException if the file could not be written
+     */
+    public void writeWell( Well well, File xml ) throws IOException {
+        IMetadata metadata = opm.getMetadata( );
+        HyperRange range = opm.getRange( ).confirmRange( metadata );
+        WellLayout layout = opm.getLayout( well );
+        Point origin = layout.getOrigin( );
+
+        List<WellSample> all_fields = well.copyWellSampleList( );
+        List<Integer> tiles = new ArrayList<>( );
+        for ( int f = 0; f < layout.size( ); f++ ) {
+            if ( field_ids == null || field_ids.contains( all_fields.indexOf( layout.getField( f ) ) ) )
+                tiles.add( f );
+        }
+        if ( tiles.isEmpty( ) ) {
+            log.warn( "Well {} has no field to write", well.getID( ) );
+            return;
+        }
+
+        List<Integer> channels = range.getRangeC( );
+        List<Integer> timepoints = range.getRangeT( );
+
+        // BigStitcher works in units of the X pixel size, Y and Z are scaled to it
+        double px_x = micrometers( metadata.getPixelsPhysicalSizeX( 0 ) );
+        double px_y = micrometers( metadata.getPixelsPhysicalSizeY( 0 ) );
+        double px_z = micrometers( metadata.getPixelsPhysicalSizeZ( 0 ) );
+
+        try {
+            Document doc = DocumentBuilderFactory.newInstance( ).newDocumentBuilder( ).newDocument( );
+            Element root = add( doc, doc, "SpimData" );
+            root.setAttribute( "version", "0.2" );
+            add( doc, root, "BasePath", "." ).setAttribute( "type", "relative" );
+
+            Element sequence = add( doc, root, "SequenceDescription" );
+
+            // The images stay where they are, read by Bio-Formats from the index of the plate
+            Element loader = add( doc, sequence, "ImageLoader" );
+            loader.setAttribute( "format", "spimreconstruction.filemap2" );
+            add( doc, loader, "imglib2container", "ArrayImgFactory" );
+            add( doc, loader, "ZGrouped", "false" );
+            Element files = add( doc, loader, "files" );
+
+            Element setups = add( doc, sequence, "ViewSetups" );
+            Element registrations = doc.createElement( "ViewRegistrations" );
+
+            int setup_id = 0;
+            for ( int tile : tiles ) {
+                WellSample field = layout.getField( tile );
+                int series = field.getIndex( ).getValue( );
+                int size_x = metadata.getPixelsSizeX( series ).getValue( );
+                int size_y = metadata.getPixelsSizeY( series ).getValue( );
+                int size_z = metadata.getPixelsSizeZ( series ).getValue( );
+
+                for ( int c : channels ) {
+                    Element setup = add( doc, setups, "ViewSetup" );
+                    add( doc, setup, "id", String.valueOf( setup_id ) );
+                    add( doc, setup, "name", opm.getFinalFieldImageName( field ) + " - C" + c );
+                    add( doc, setup, "size", size_x + " " + size_y + " " + size_z );
+                    Element voxel_size = add( doc, setup, "voxelSize" );
+                    add( doc, voxel_size, "unit", "\u00B5m" );
+                    add( doc, voxel_size, "size", format( px_x ) + " " + format( px_y ) + " " + format( px_z ) );
+                    Element attributes = add( doc, setup, "attributes" );
+                    add( doc, attributes, "illumination", "0" );
+                    add( doc, attributes, "channel", String.valueOf( c - 1 ) );
+                    add( doc, attributes, "tile", String.valueOf( tile ) );
+                    add( doc, attributes, "angle", "0" );
+
+                    for ( int t : timepoints ) {
+                        Element mapping = add( doc, files, "FileMapping" );
+                        mapping.setAttribute( "view_setup", String.valueOf( setup_id ) );
+                        mapping.setAttribute( "timepoint", String.valueOf( t - 1 ) );
+                        mapping.setAttribute( "series", String.valueOf( series ) );
+                        mapping.setAttribute( "channel", String.valueOf( c - 1 ) );
+                        add( doc, mapping, "file", opm.getId( ).getAbsolutePath( ) ).setAttribute( "type", "absolute" );
+
+                        // The stage position, relative to the top left field, then the calibration
+                        Element registration = add( doc, registrations, "ViewRegistration" );
+                        registration.setAttribute( "timepoint", String.valueOf( t - 1 ) );
+                        registration.setAttribute( "setup", String.valueOf( setup_id ) );
+                        addAffine( doc, registration, "Translation from the stage position",
+                                1, 0, 0, layout.getX( tile ) - origin.x,
+                                0, 1, 0, layout.getY( tile ) - origin.y,
+                                0, 0, 1, 0 );
+                        addAffine( doc, registration, "calibration",
+                                1, 0, 0, 0,
+                                0, px_y / px_x, 0, 0,
+                                0, 0, px_z / px_x, 0 );
+                    }
+                    setup_id++;
+                }
+            }
+
+            addAttributes( doc, setups, "illumination", "Illumination", new int[]{ 0 }, new String[]{ "0" }, null );
+            addAttributes( doc, setups, "channel", "Channel",
+                    channels.stream( ).mapToInt( c -> c - 1 ).toArray( ),
+                    channels.stream( ).map( c -> channelName( metadata, layout.getField( tiles.get( 0 ) ).getIndex( ).getValue( ), c ) ).toArray( String[]::new ),
+                    null );
+            addAttributes( doc, setups, "tile", "Tile",
+                    tiles.stream( ).mapToInt( Integer::intValue ).toArray( ),
+                    tiles.stream( ).map( f -> opm.getFinalFieldImageName( layout.getField( f ) ) ).toArray( String[]::new ),
+                    tiles.stream( ).map( f -> ( layout.getX( f ) - origin.x ) + " " + ( layout.getY( f ) - origin.y ) + " 0" ).toArray( String[]::new ) );
+            addAttributes( doc, setups, "angle", "Angle", new int[]{ 0 }, new String[]{ "0" }, null );
+
+            addTimepoints( doc, sequence, timepoints );
+
+            root.appendChild( registrations );
+            for ( String empty : new String[]{ "ViewInterestPoints", "BoundingBoxes", "PointSpreadFunctions", "StitchingResults", "IntensityAdjustments" } )
+                add( doc, root, empty );
+
+            Transformer transformer = TransformerFactory.newInstance( ).newTransformer( );
+            transformer.setOutputProperty( OutputKeys.INDENT, "yes" );
+            transformer.setOutputProperty( OutputKeys.ENCODING, "UTF-8" );
+            transformer.setOutputProperty( "{http://xml.apache.org/xslt}indent-amount", "2" );
+            transformer.transform( new DOMSource( doc ), new StreamResult( xml ) );
+
+        } catch ( ParserConfigurationException | TransformerException e ) {
+            throw new IOException( "Could not write " + xml, e );
+        }
+
+        log.info( "Well {}: BigStitcher dataset with {} tiles, {} channels and {} timepoints written to {}",
+                well.getID( ), tiles.size( ), channels.size( ), timepoints.size( ), xml );
+    }
+
+    private static Element add( Document doc, Node parent, String name ) {
+        Element element = doc.createElement( name );
+        parent.appendChild( element );
+        return element;
+    }
+
+    private static Element add( Document doc, Node parent, String name, String text ) {
+        Element element = add( doc, parent, name );
+        element.setTextContent( text );
+        return element;
+    }
+
+    private static void addAffine( Document doc, Element registration, String name, double... affine ) {
+        Element transform = add( doc, registration, "ViewTransform" );
+        transform.setAttribute( "type", "affine" );
+        add( doc, transform, "Name", name );
+        add( doc, transform, "affine", Arrays.stream( affine ).mapToObj( BigStitcherExporter::format ).collect( Collectors.joining( " " ) ) );
+    }
+
+    /**
+     * The attributes of the views, each with an id and a name, and a location for tiles
+     */
+    private static void addAttributes( Document doc, Element setups, String attribute, String element, int[] ids, String[] names, String[] locations ) {
+        Element attributes = add( doc, setups, "Attributes" );
+        attributes.setAttribute( "name", attribute );
+        for ( int i = 0; i < ids.length; i++ ) {
+            Element e = add( doc, attributes, element );
+            add( doc, e, "id", String.valueOf( ids[ i ] ) );
+            add( doc, e, "name", names[ i ] );
+            if ( locations != null ) add( doc, e, "location", locations[ i ] );
+        }
+    }
+
+    private static void addTimepoints( Document doc, Element sequence, List<Integer> timepoints ) {
+        Element element = add( doc, sequence, "Timepoints" );
+        int first = timepoints.get( 0 ) - 1;
+        int last = timepoints.get( timepoints.size( ) - 1 ) - 1;
+        if ( last - first + 1 == timepoints.size( ) ) {
+            element.setAttribute( "type", "range" );
+            add( doc, element, "first", String.valueOf( first ) );
+            add( doc, element, "last", String.valueOf( last ) );
+        } else {
+            // Timepoints that do not follow each other are listed
+            element.setAttribute( "type", "pattern" );
+            add( doc, element, "integerpattern", timepoints.stream( ).map( t -> String.valueOf( t - 1 ) ).collect( Collectors.joining( "," ) ) );
+        }
+    }
+
+    private static String channelName( IMetadata metadata, int series, int c ) {
+        String name = c - 1 < metadata.getChannelCount( series ) ? metadata.getChannelName( series, c - 1 ) : null;
+        return name != null ? name : "C" + c;
+    }
+
+    private static double micrometers( Length length ) {
+        return length != null ? length.value( UNITS.MICROMETER ).doubleValue( ) : 1.0;
+    }
+
+    private static String format( double value ) {
+        return String.format( Locale.US, "%s", value );
+    }
+}
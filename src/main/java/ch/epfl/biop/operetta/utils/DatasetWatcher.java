@@ -0,0 +1,257 @@
+package ch.epfl.biop.operetta.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows an Operetta dataset that is still being acquired, so that only the new data needs to be read.
+ *
+ * The 'Images' folder is watched with a {@link WatchService}. Each new TIFF is reported once it has been completely
+ * written, that is once its size did not change for {@link #setFileSettleTime(long)}, so listeners can add it to what
+ * they already know about the plate instead of listing all files again. Each file is only reported once, later events
+ * on a reported file are ignored. The 'Index.idx.xml' is only written again when the acquisition adds wells or
+ * fields; listeners are told once it has settled, so they can refresh the reader.
+ *
+ * When too many files arrive at once, the system drops their events. The folder is then listed again, and the files
+ * that were not reported yet are reported like new ones.
+ *
+ * Use
+ * <pre>
+ * {@code
+ * DatasetWatcher watcher = new DatasetWatcher( opm.getId( ) );
+ * watcher.addListener( new DatasetWatcher.Listener( ) { ... } );
+ * watcher.start( );
+ * ...
+ * watcher.close( );
+ * }
+ * </pre>
+ */
+public class DatasetWatcher implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger( DatasetWatcher.class );
+
+    /**
+     * Gets told about new data in the dataset. Called from the thread of the watcher
+     */
+    public interface Listener {
+        /**
+         * New image files were completely written
+         * @param files the absolute paths of the new files
+         */
+        void filesAdded( List<String> files );
+
+        /**
+         * The 'Index.idx.xml' file changed, so there might be new wells or fields
+         * @param id the 'Index.idx.xml' file
+         */
+        default void indexChanged( File id ) {
+        }
+    }
+
+    private final File id;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>( );
+
+    private long settle_time = 5_000;
+    private long file_settle_time = 2_000;
+    private boolean is_report_existing = false;
+
+    // Files that were created or modified, with their size when last checked and when it last changed
+    private final Map<Path, PendingFile> pending = new LinkedHashMap<>( );
+
+    // Files that were already there or already reported, so that listing the folder again only reports the others
+    private final Set<Path> reported = new HashSet<>( );
+    private long index_changed = -1;
+
+    private WatchService watch_service = null;
+    private Thread thread = null;
+
+    /**
+     * Creates a watcher for a dataset
+     * @param id the 'Index.idx.xml' file of the dataset, the images are expected in the same folder
+     */
+    public DatasetWatcher( File id ) {
+        this.id = id.getAbsoluteFile( );
+    }
+
+    /**
+     * @param settle_time how long, in milliseconds, the 'Index.idx.xml' must stay unchanged before listeners are told. Default is 5 seconds
+     * @return this watcher
+     */
+    public DatasetWatcher setSettleTime( long settle_time ) {
+        this.settle_time = Math.max( 0, settle_time );
+        return this;
+    }
+
+    /**
+     * @param file_settle_time how long, in milliseconds, the size of a new image must stay the same before it is
+     * reported as completely written. Default is 2 seconds
+     * @return this watcher
+     */
+    public DatasetWatcher setFileSettleTime( long file_settle_time ) {
+        this.file_settle_time = Math.max( 0, file_settle_time );
+        return this;
+    }
+
+    /**
+     * @param is_report_existing whether the files that are already in the folder when watching starts are reported too,
+     * once they are completely written. The folder is listed after the watch starts, so no file can fall in between.
+     * Default is false
+     * @return this watcher
+     */
+    public DatasetWatcher setReportExisting( boolean is_report_existing ) {
+        this.is_report_existing = is_report_existing;
+        return this;
+    }
+
+    /**
+     * @param listener gets told about new data
+     * @return this watcher
+     */
+    public DatasetWatcher addListener( Listener listener ) {
+        listeners.add( listener );
+        return this;
+    }
+
+    /**
+     * Starts watching the dataset in a background thread
+     * @throws IOException if the folder cannot be watched
+     */
+    public synchronized void start( ) throws IOException {
+        if ( thread != null ) return;
+
+        watch_service = FileSystems.getDefault( ).newWatchService( );
+        id.getParentFile( ).toPath( ).register( watch_service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY );
+
+        // Listed once the watch is registered, so files written in between are seen one way or the other
+        for ( Path file : listImages( ) ) {
+            if ( is_report_existing ) pending.put( file, new PendingFile( ) );
+            else reported.add( file );
+        }
+
+        thread = new Thread( this::watch, "Operetta watcher " + id.getParentFile( ).getName( ) );
+        thread.setDaemon( true );
+        thread.start( );
+        log.info( "Watching {}", id.getParentFile( ) );
+    }
+
+    /**
+     * Stops watching
+     */
+    @Override
+    public synchronized void close( ) {
+        if ( thread == null ) return;
+        try {
+            watch_service.close( );
+        } catch ( IOException e ) {
+            log.warn( "Could not close the watcher of {}: {}", id, e.getMessage( ) );
+        }
+        thread.interrupt( );
+        thread = null;
+    }
+
+    private void watch( ) {
+        Path folder = id.getParentFile( ).toPath( );
+        try {
+            while ( !Thread.currentThread( ).isInterrupted( ) ) {
+                WatchKey key = watch_service.poll( 1, TimeUnit.SECONDS );
+                if ( key != null ) {
+                    for ( WatchEvent<?> event : key.pollEvents( ) ) {
+                        if ( event.kind( ) == StandardWatchEventKinds.OVERFLOW ) {
+                            // Events were lost, whatever is not known yet is new, and the index might have changed
+                            log.warn( "Too many changes in {}, listing it again", folder );
+                            for ( Path file : listImages( ) )
+                                if ( !reported.contains( file ) ) pending.putIfAbsent( file, new PendingFile( ) );
+                            index_changed = System.currentTimeMillis( );
+                            continue;
+                        }
+                        Path file = folder.resolve( (Path) event.context( ) );
+                        String name = file.getFileName( ).toString( );
+
+                        if ( name.equals( id.getName( ) ) ) index_changed = System.currentTimeMillis( );
+                        // Files that were reported are not reported again, the size of those pending is checked anyway
+                        else if ( name.endsWith( ".tiff" ) && !reported.contains( file ) ) pending.putIfAbsent( file, new PendingFile( ) );
+                    }
+                    key.reset( );
+                }
+                notifyListeners( );
+            }
+        } catch ( InterruptedException | ClosedWatchServiceException e ) {
+            log.info( "Stopped watching {}", id.getParentFile( ) );
+        }
+    }
+
+    private List<Path> listImages( ) {
+        List<Path> images = new ArrayList<>( );
+        File[] files = id.getParentFile( ).listFiles( ( dir, name ) -> name.endsWith( ".tiff" ) );
+        if ( files != null ) for ( File f : files ) images.add( f.toPath( ).toAbsolutePath( ) );
+        return images;
+    }
+
+    private void notifyListeners( ) {
+        // Files are complete once their size did not change for the settle time, however often this is called
+        List<String> added = new ArrayList<>( );
+        long now = System.currentTimeMillis( );
+        pending.entrySet( ).removeIf( e -> {
+            PendingFile file = e.getValue( );
+            long size = e.getKey( ).toFile( ).length( );
+            if ( size != file.size ) {
+                file.size = size;
+                file.changed = now;
+                return false;
+            }
+            if ( size > 0 && now - file.changed >= file_settle_time ) {
+                added.add( e.getKey( ).toString( ) );
+                reported.add( e.getKey( ) );
+                return true;
+            }
+            return false;
+        } );
+
+        if ( !added.isEmpty( ) ) {
+            log.debug( "{} new files in {}", added.size( ), id.getParentFile( ) );
+            listeners.forEach( l -> {
+                try {
+                    l.filesAdded( added );
+                } catch ( Exception e ) {
+                    log.error( "Could not add new files:", e );
+                }
+            } );
+        }
+
+        if ( index_changed > 0 && System.currentTimeMillis( ) - index_changed >= settle_time ) {
+            index_changed = -1;
+            log.info( "{} changed", id );
+            listeners.forEach( l -> {
+                try {
+                    l.indexChanged( id );
+                } catch ( Exception e ) {
+                    log.error( "Could not refresh the index:", e );
+                }
+            } );
+        }
+    }
+
+    private static class PendingFile {
+        // Not checked yet
+        long size = -1;
+        long changed = 0;
+    }
+}
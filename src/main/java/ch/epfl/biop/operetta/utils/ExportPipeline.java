@@ -0,0 +1,304 @@
+package ch.epfl.biop.operetta.utils;
+
+import ij.IJ;
+import ij.ImagePlus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Staged export pipeline. Jobs go through two stages, each with its own thread budget:
+ * <ul>
+ *     <li>the <b>read</b> stage opens the files, decodes, normalizes, stitches and projects the data into an ImagePlus</li>
+ *     <li>the <b>write</b> stage encodes and saves the resulting ImagePlus</li>
+ * </ul>
+ * Both stages are connected by a bounded queue. When the writers fall behind, the readers block until there is room
+ * in the queue, so the number of images held in memory never exceeds read threads + queue capacity + write threads.
+ * This lets reading well N+1 overlap with writing well N.
+ *
+ * Jobs can also declare their memory footprint, see {@link ExportPlanner}. A job only starts reading once its footprint
+ * fits in the memory budget of the pipeline, and gives it back after it was written. Large jobs therefore run one
+ * at a time while small ones run concurrently.
+ *
+ * The reading itself can run as a task of a work-stealing pool, see {@link ExportPlanner.Granularity}. The read threads
+ * then only wait for memory and for room in the queue, and the wells, fields and planes of all jobs share the threads
+ * of the pool.
+ *
+ * Use
+ * <pre>
+ * {@code
+ * try ( ExportPipeline pipeline = new ExportPipeline( 1, 1, 2 ) ) {
+ *     pipeline.submit( "Well 1", ( ) -> opm.getWellImage( well ), new File( save_folder, "well.tif" ) );
+ * } // close() waits for all jobs to be written
+ * }
+ * </pre>
+ */
+public class ExportPipeline implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger( ExportPipeline.class );
+
+    private final ExecutorService readers;
+    private final List<Thread> writers = new ArrayList<>( );
+    private final BlockingQueue<Pending> queue;
+
+    // Where jobs are read, null to read them on the read threads
+    private final ForkJoinPool pool;
+
+    // Memory budget, one permit per MB
+    private final Semaphore memory;
+    private final int memory_permits;
+    private static final long MB = 1024 * 1024;
+
+    // Marks the end of the queue for the write stage
+    private static final Pending POISON = new Pending( null, null, null, null, 0 );
+
+    /**
+     * Creates a new pipeline and starts the writer threads
+     * @param read_threads number of jobs that can be read at the same time
+     * @param write_threads number of images that can be written at the same time
+     * @param queue_capacity number of read images that can wait to be written before the readers block
+     */
+    public ExportPipeline( int read_threads, int write_threads, int queue_capacity ) {
+        this( read_threads, write_threads, queue_capacity, Long.MAX_VALUE );
+    }
+
+    /**
+     * Creates a new pipeline with a memory budget and starts the writer threads
+     * @param read_threads number of jobs that can be read at the same time
+     * @param write_threads number of images that can be written at the same time
+     * @param queue_capacity number of read images that can wait to be written before the readers block
+     * @param memory_budget number of bytes that the jobs in flight can use together
+     */
+    public ExportPipeline( int read_threads, int write_threads, int queue_capacity, long memory_budget ) {
+        this( read_threads, write_threads, queue_capacity, memory_budget, null );
+    }
+
+    /**
+     * Creates a new pipeline with a memory budget whose jobs are read on a pool, and starts the writer threads
+     * @param read_threads number of jobs that can be read at the same time
+     * @param write_threads number of images that can be written at the same time
+     * @param queue_capacity number of read images that can wait to be written before the readers block
+     * @param memory_budget number of bytes that the jobs in flight can use together
+     * @param pool the pool the jobs are read on, null to read them on the read threads
+     */
+    public ExportPipeline( int read_threads, int write_threads, int queue_capacity, long memory_budget, ForkJoinPool pool ) {
+        this.pool = pool;
+        this.memory_permits = (int) Math.max( 1, Math.min( Integer.MAX_VALUE, memory_budget / MB ) );
+        this.memory = new Semaphore( memory_permits, true );
+        this.readers = Executors.newFixedThreadPool( Math.max( 1, read_threads ) );
+        this.queue = new ArrayBlockingQueue<>( Math.max( 1, queue_capacity ) );
+
+        for ( int i = 0; i < Math.max( 1, write_threads ); i++ ) {
+            Thread t = new Thread( this::writeLoop, "Operetta Export Writer " + i );
+            t.start( );
+            writers.add( t );
+        }
+    }
+
+    /**
+     * Submits a job that saves its result as a TIFF file
+     * @param label the name of the job, for logging
+     * @param reader produces the image, returns null if there is nothing to save
+     * @param target the TIFF file to write
+     */
+    public void submit( String label, Supplier<ImagePlus> reader, File target ) {
+        submit( label, 0, reader, target );
+    }
+
+    /**
+     * Submits a job that saves its result as a TIFF file
+     * @param label the name of the job, for logging
+     * @param footprint the number of bytes this job needs while it is in flight
+     * @param reader produces the image, returns null if there is nothing to save
+     * @param target the TIFF file to write
+     */
+    public void submit( String label, long footprint, Supplier<ImagePlus> reader, File target ) {
+        submit( label, footprint, reader, imp -> IJ.saveAsTiff( imp, target.getAbsolutePath( ) ) );
+    }
+
+    /**
+     * Submits a job to the pipeline. This call does not block, the job is queued for the read stage
+     * @param label the name of the job, for logging
+     * @param reader produces the image, returns null if there is nothing to save
+     * @param writer saves the image that was produced
+     */
+    public void submit( String label, Supplier<ImagePlus> reader, Consumer<ImagePlus> writer ) {
+        submit( label, 0, reader, writer );
+    }
+
+    /**
+     * Submits a job to the pipeline. This call does not block, the job is queued for the read stage
+     * and starts once its footprint fits in the memory budget
+     * @param label the name of the job, for logging
+     * @param footprint the number of bytes this job needs while it is in flight
+     * @param reader produces the image, returns null if there is nothing to save
+     * @param writer saves the image that was produced
+     */
+    public void submit( String label, long footprint, Supplier<ImagePlus> reader, Consumer<ImagePlus> writer ) {
+        // A job larger than the whole budget takes all of it, so it runs alone
+        final int permits = (int) Math.max( 0, Math.min( memory_permits, ( footprint + MB - 1 ) / MB ) );
+
+        readers.submit( ( ) -> {
+            boolean queued = false;
+            try {
+                memory.acquire( permits );
+            } catch ( InterruptedException e ) {
+                log.error( "Waiting for memory for {} interrupted", label );
+                Thread.currentThread( ).interrupt( );
+                return;
+            }
+            Instant starts = Instant.now( );
+            try {
+                ImagePlus image = compute( reader );
+                if ( image == null ) {
+                    log.warn( "Nothing to save for {}", label );
+                    return;
+                }
+                // Blocks while the write stage is full, this is the backpressure
+                queue.put( new Pending( label, image, writer, starts, permits ) );
+                queued = true;
+            } catch ( InterruptedException e ) {
+                log.error( "Reading {} interrupted", label );
+                Thread.currentThread( ).interrupt( );
+            } catch ( Exception | OutOfMemoryError e ) {
+                log.error( "Error reading " + label + ":", e );
+                IJ.log( "Could not read " + label + ": " + e.getMessage( ) );
+            } finally {
+                // Once queued, the writer gives the memory back
+                if ( !queued ) memory.release( permits );
+            }
+        } );
+    }
+
+    /**
+     * Submits a job that reads and writes its result by itself, a time-lapse streamed one timepoint at a time for
+     * example. It runs in the read stage, once its footprint fits in the memory budget
+     * @param label the name of the job, for logging
+     * @param footprint the number of bytes this job needs while it runs
+     * @param job reads and writes the data
+     */
+    public void submit( String label, long footprint, Runnable job ) {
+        final int permits = (int) Math.max( 0, Math.min( memory_permits, ( footprint + MB - 1 ) / MB ) );
+
+        readers.submit( ( ) -> {
+            try {
+                memory.acquire( permits );
+            } catch ( InterruptedException e ) {
+                log.error( "Waiting for memory for {} interrupted", label );
+                Thread.currentThread( ).interrupt( );
+                return;
+            }
+            Instant starts = Instant.now( );
+            try {
+                compute( ( ) -> {
+                    job.run( );
+                    return null;
+                } );
+                IJ.log( " - " + label + " processed in " + Duration.between( starts, Instant.now( ) ).getSeconds( ) + " s." );
+            } catch ( InterruptedException e ) {
+                log.error( "Processing {} interrupted", label );
+                Thread.currentThread( ).interrupt( );
+            } catch ( Exception | OutOfMemoryError e ) {
+                log.error( "Error processing " + label + ":", e );
+                IJ.log( "Could not process " + label + ": " + e.getMessage( ) );
+            } finally {
+                memory.release( permits );
+            }
+        } );
+    }
+
+    /**
+     * Reads a job on the pool, if there is one, and waits for it
+     */
+    private <T> T compute( Supplier<T> job ) throws InterruptedException {
+        if ( pool == null ) return job.get( );
+        try {
+            return pool.submit( job::get ).get( );
+        } catch ( ExecutionException e ) {
+            // Errors of the job are handled as if it had run on this thread
+            if ( e.getCause( ) instanceof RuntimeException ) throw (RuntimeException) e.getCause( );
+            if ( e.getCause( ) instanceof Error ) throw (Error) e.getCause( );
+            throw new RuntimeException( e.getCause( ) );
+        }
+    }
+
+    private void writeLoop( ) {
+        while ( true ) {
+            Pending pending;
+            try {
+                pending = queue.take( );
+            } catch ( InterruptedException e ) {
+                log.error( "Writer interrupted" );
+                return;
+            }
+            if ( pending == POISON ) return;
+
+            try {
+                pending.writer.accept( pending.image );
+                IJ.log( " - " + pending.label + " processed in " + Duration.between( pending.starts, Instant.now( ) ).getSeconds( ) + " s." );
+            } catch ( Exception | OutOfMemoryError e ) {
+                // Encoding a large image can run out of memory while its pixels are still held. If this thread died,
+                // the readers would wait forever for room in the queue, so it keeps going: the job is not retried, it is
+                // reported, and its image and memory are given back below so that the next jobs have the room
+                log.error( "Error writing " + pending.label + ":", e );
+                IJ.log( "Could not write " + pending.label + ": " + e.getMessage( ) );
+            } finally {
+                // Release the pixels now rather than waiting for the garbage collector to find the ImagePlus
+                pending.image.flush( );
+                memory.release( pending.permits );
+            }
+        }
+    }
+
+    /**
+     * Waits for all submitted jobs to be read and written, then stops the threads of the pipeline
+     */
+    @Override
+    public void close( ) {
+        readers.shutdown( );
+        try {
+            readers.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
+            for ( int i = 0; i < writers.size( ); i++ ) queue.put( POISON );
+            for ( Thread t : writers ) t.join( );
+        } catch ( InterruptedException e ) {
+            log.error( "Export pipeline interrupted" );
+            readers.shutdownNow( );
+            writers.forEach( Thread::interrupt );
+            Thread.currentThread( ).interrupt( );
+        }
+    }
+
+    /**
+     * An image that was read and waits to be written
+     */
+    private static class Pending {
+        final String label;
+        final ImagePlus image;
+        final Consumer<ImagePlus> writer;
+        final Instant starts;
+        final int permits;
+
+        Pending( String label, ImagePlus image, Consumer<ImagePlus> writer, Instant starts, int permits ) {
+            this.label = label;
+            this.image = image;
+            this.writer = writer;
+            this.starts = starts;
+            this.permits = permits;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package ch.epfl.biop.operetta.utils;
+
+import ch.epfl.biop.operetta.OperettaManager;
+import ij.gui.Roi;
+import loci.formats.meta.IMetadata;
+import ome.xml.model.Well;
+import ome.xml.model.WellSample;
+
+import java.awt.*;
+import java.io.File;
+import java.util.List;
+
+/**
+ * Computes how much memory each export job needs before anything is read, based on the metadata only.
+ * This lets {@link OperettaManager#process(List, List, int, Roi, boolean)} decide how many jobs can be in flight at once
+ * and which jobs need to take a path that does not hold the whole stitched well in memory.
+ *
+ * All footprints are in bytes and are deliberately on the pessimistic side.
+ */
+public class ExportPlanner {
+
+    /**
+     * How a job will be exported
+     */
+    public enum Path {
+        /** The whole image is assembled in memory, then saved */
+        IN_MEMORY,
+        /** The stitched well does not fit in memory, it is assembled in a {@link MappedStack} on disk */
+        MAPPED,
+        /** The well is too large to be stitched in memory, its fields are saved individually with a positions file */
+        FIELDS,
+        /** Even a single field does not fit in the budget, the job cannot be exported */
+        SKIP
+    }
+
+    /**
+     * At which level an export is run in parallel. Wells, fields and planes are all tasks of the same work-stealing
+     * pool, the granularity decides which of them are forked, the others run one after the other inside their task
+     */
+    public enum Granularity {
+        /**
+         * Export jobs run in parallel, a stitched well or an individually exported field each, and their fields and
+         * planes are read one after the other. Best for many jobs that fit in memory together, with few planes each
+         */
+        WELL,
+        /**
+         * The fields of a stitched well are read in parallel, their planes one after the other. Where neighbouring fields
+         * overlap, the field that ends on top is not fixed, so {@link #AUTO} never chooses this level for them.
+         * Individually exported fields are jobs of their own and run like {@link #WELL}
+         */
+        FIELD,
+        /**
+         * The planes of a field are read in parallel, one field and one job at a time. Needs the least memory, best for
+         * large Z stacks
+         */
+        PLANE,
+        /** Chosen from the shape of the plate and the memory budget when the export starts, see {@link #planGranularity} */
+        AUTO
+    }
+
+    private final OperettaManager opm;
+    private final IMetadata metadata;
+    private final long budget;
+    private final int decode_threads;
+    private final int bytes_per_pixel;
+    private final File scratch_folder;
+
+    /**
+     * Creates a planner for the given manager
+     * @param opm the manager whose data will be exported
+     * @param budget the number of bytes the export is allowed to use, see {@link #getDefaultBudget()}
+     * @param decode_threads the number of planes that are decoded in parallel
+     * @param bit_depth the bit depth of the exported images
+     */
+    public ExportPlanner( OperettaManager opm, long budget, int decode_threads, int bit_depth ) {
+        this( opm, budget, decode_threads, bit_depth, null );
+    }
+
+    /**
+     * Creates a planner for the given manager, that can stitch wells larger than the budget on disk
+     * @param opm the manager whose data will be exported
+     * @param budget the number of bytes the export is allowed to use, see {@link #getDefaultBudget()}
+     * @param decode_threads the number of planes that are decoded in parallel
+     * @param bit_depth the bit depth of the exported images
+     * @param scratch_folder the folder for file-backed canvases, null to never use them
+     */
+    public ExportPlanner( OperettaManager opm, long budget, int decode_threads, int bit_depth, File scratch_folder ) {
+        this.opm = opm;
+        this.metadata = opm.getMetadata( );
+        this.budget = budget;
+        this.decode_threads = decode_threads;
+        this.bytes_per_pixel = bit_depth / 8;
+        this.scratch_folder = scratch_folder;
+    }
+
+    /**
+     * The default budget is three quarters of the memory that is still available to the JVM
+     * @return a budget in bytes
+     */
+    public static long getDefaultBudget( ) {
+        Runtime rt = Runtime.getRuntime( );
+        long used = rt.totalMemory( ) - rt.freeMemory( );
+        return (long) ( ( rt.maxMemory( ) - used ) * 0.75 );
+    }
+
+    /**
+     * @return the memory budget of this planner, in bytes
+     */
+    public long getBudget( ) {
+        return budget;
+    }
+
+    /**
+     * Bytes needed to export a stitched well: the well canvas, the planes being decoded straight into it
+     * and the projection, if any
+     * @param well the well to export
+     * @param downscale the downscale factor
+     * @param range the C Z T range to export
+     * @param region the subregion to export, null for the whole well
+     * @param is_projection whether the stack will be Z projected
+     * @return the footprint in bytes
+     */
+    public long getWellFootprint( Well well, int downscale, HyperRange range, Roi region, boolean is_projection ) {
+        int series = well.copyWellSampleList( ).get( 0 ).getIndex( ).getValue( );
+        int field_width = metadata.getPixelsSizeX( series ).getValue( );
+        int field_height = metadata.getPixelsSizeY( series ).getValue( );
+
+        Dimension size = getWellSize( well, downscale, region );
+        long projection = is_projection ? getProjectionFootprint( size.width, size.height, range ) : 0;
+
+        return getWellCanvasBytes( well, downscale, range, region ) + projection + getDecodingFootprint( field_width, field_height );
+    }
+
+    /**
+     * Bytes of the stitched well canvas alone, which can live either on the heap or in a {@link MappedStack}
+     * @param well the well to export
+     * @param downscale the downscale factor
+     * @param range the C Z T range to export
+     * @param region the subregion to export, null for the whole well
+     * @return the size of the canvas in bytes
+     */
+    public long getWellCanvasBytes( Well well, int downscale, HyperRange range, Roi region ) {
+        Dimension size = getWellSize( well, downscale, region );
+        return (long) size.width * size.height * range.getTotalPlanes( ) * bytes_per_pixel;
+    }
+
+    private Dimension getWellSize( Well well, int downscale, Roi region ) {
+        if ( region != null )
+            return new Dimension( region.getBounds( ).width / downscale, region.getBounds( ).height / downscale );
+
+        Dimension extent = opm.getLayout( well ).getExtent( );
+        return new Dimension( extent.width / downscale, extent.height / downscale );
+    }
+
+    /**
+     * Bytes needed to export a single field: the field stack, the planes being decoded and the projection, if any
+     * @param field the field to export
+     * @param downscale the downscale factor
+     * @param range the C Z T range to export
+     * @param is_projection whether the stack will be Z projected
+     * @return the footprint in bytes
+     */
+    public long getFieldFootprint( WellSample field, int downscale, HyperRange range, boolean is_projection ) {
+        int series = field.getIndex( ).getValue( );
+        int field_width = metadata.getPixelsSizeX( series ).getValue( );
+        int field_height = metadata.getPixelsSizeY( series ).getValue( );
+
+        long projection = is_projection ? getProjectionFootprint( field_width / downscale, field_height / downscale, range ) : 0;
+
+        return getFieldFootprint( field_width, field_height, downscale, range ) + projection;
+    }
+
+    /**
+     * Decides how a stitched well should be exported, given its footprint and that of its largest field.
+     * Wells that do not fit are stitched on disk if there is a scratch folder with enough space,
+     * otherwise their fields are exported individually
+     * @param well_footprint the footprint of the stitched well
+     * @param canvas_bytes the part of the footprint taken by the well canvas
+     * @param field_footprint the footprint of one field
+     * @return the path to use for this well
+     */
+    public Path planWell( long well_footprint, long canvas_bytes, long field_footprint ) {
+        if ( well_footprint <= budget ) return Path.IN_MEMORY;
+        if ( scratch_folder != null
+                && well_footprint - canvas_bytes <= budget
+                && getUsableSpace( ) >= canvas_bytes ) return Path.MAPPED;
+        if ( field_footprint <= budget ) return Path.FIELDS;
+        return Path.SKIP;
+    }
+
+    private long getUsableSpace( ) {
+        scratch_folder.mkdirs( );
+        return scratch_folder.getUsableSpace( );
+    }
+
+    /**
+     * Decides how a single field should be exported
+     * @param field_footprint the footprint of the field
+     * @return the path to use for this field
+     */
+    public Path planField( long field_footprint ) {
+        return field_footprint <= budget ? Path.IN_MEMORY : Path.SKIP;
+    }
+
+    /**
+     * Decides at which level an export runs in parallel. Unless one was requested, fields with at least as many planes
+     * as there are threads are read one at a time, as this keeps all threads busy with the least memory. Otherwise
+     * whole jobs run in parallel if there are enough of them and they fit in the budget together, else the fields of
+     * each well do, unless they overlap
+     * @param requested the requested granularity, {@link Granularity#AUTO} to choose one
+     * @param n_jobs the number of export jobs, wells or individual fields
+     * @param n_fields the number of fields read by each job
+     * @param n_planes the number of planes of each field
+     * @param job_footprint the footprint of one job
+     * @param threads the number of threads of the pool
+     * @param is_overlapping whether the fields of a job overlap, in which case they are never read in parallel
+     * @return the granularity to use, never {@link Granularity#AUTO}
+     */
+    public Granularity planGranularity( Granularity requested, int n_jobs, int n_fields, int n_planes, long job_footprint, int threads, boolean is_overlapping ) {
+        if ( requested != Granularity.AUTO ) return requested;
+
+        int in_flight = Math.min( n_jobs, getConcurrency( job_footprint ) );
+        if ( n_planes >= threads ) return Granularity.PLANE;
+        if ( in_flight >= threads ) return Granularity.WELL;
+        if ( n_fields > 1 && !is_overlapping ) return Granularity.FIELD;
+        if ( in_flight > 1 ) return Granularity.WELL;
+        return Granularity.PLANE;
+    }
+
+    /**
+     * @param footprint the footprint of one job
+     * @return how many jobs of this size fit in the budget at the same time
+     */
+    public int getConcurrency( long footprint ) {
+        if ( footprint <= 0 ) return Integer.MAX_VALUE;
+        return (int) Math.min( Integer.MAX_VALUE, budget / footprint );
+    }
+
+    private long getFieldFootprint( int field_width, int field_height, int downscale, HyperRange range ) {
+        long stack = (long) ( field_width / downscale ) * ( field_height / downscale ) * range.getTotalPlanes( ) * bytes_per_pixel;
+        return stack + getDecodingFootprint( field_width, field_height );
+    }
+
+    private long getDecodingFootprint( int field_width, int field_height ) {
+        // Each decoding thread holds an opened plane, up to 32-bit, which is converted straight into its destination
+        return (long) decode_threads * field_width * field_height * 4;
+    }
+
+    private long getProjectionFootprint( long width, long height, HyperRange range ) {
+        int[] czt = range.getCZTDimensions( );
+        // Projections can be 32-bit, and the hyperstack projection also holds a projected copy per timepoint
+        return width * height * czt[ 0 ] * czt[ 2 ] * 4 * 2;
+    }
+
+    /**
+     * Formats a number of bytes for the log
+     * @param bytes the size
+     * @return the size in MB, as a String
+     */
+    public static String toMB( long bytes ) {
+        return String.format( "%.1f MB", bytes / ( 1024.0 * 1024.0 ) );
+    }
+
+    @Override
+    public String toString( ) {
+        return "Export Planner, budget " + toMB( budget );
+    }
+}
@@ -0,0 +1,147 @@
+package ch.epfl.biop.operetta.utils;
+
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Packs the individually exported fields of a well into a single ZIP file instead of one TIFF file per field, so that
+ * a plate is written as a few large sequential files rather than hundreds of thousands of small ones.
+ *
+ * Each field is added as a TIFF entry, serialized in memory by ImageJ, along with the positions file of the well. The
+ * central directory at the end of the ZIP is the index of the entries. Entries are stored as they are by default, so
+ * that the archive costs no CPU, or deflated if space matters more than time. ImageJ can open TIFF entries straight
+ * from a ZIP, and the archive can be extracted to get the usual TIFF and positions files for Grid/Collection Stitching.
+ *
+ * Fields of a well are written by several threads at different times, so the archive counts the fields it still
+ * expects and closes itself once the last one was added or given up.
+ *
+ * Use
+ * <pre>
+ * {@code
+ * FieldArchive archive = new FieldArchive( file, false, fields.size( ) );
+ * archive.add( "field 1.tif", imp ); // or archive.skip( ) if the field could not be read
+ * ...
+ * }
+ * </pre>
+ */
+public class FieldArchive implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger( FieldArchive.class );
+
+    private final File file;
+    private final boolean is_compressed;
+    private final ZipOutputStream zip;
+    private final AtomicInteger pending;
+
+    private boolean is_closed = false;
+    private long bytes = 0;
+    private int entries = 0;
+
+    /**
+     * Creates the ZIP file
+     * @param file the ZIP file to write
+     * @param is_compressed true to deflate the entries, false to store them as they are
+     * @param expected the number of fields that will be added or skipped before the archive closes itself
+     * @throws IOException if the file could not be created
+     */
+    public FieldArchive( File file, boolean is_compressed, int expected ) throws IOException {
+        this.file = file;
+        this.is_compressed = is_compressed;
+        this.pending = new AtomicInteger( expected );
+        this.zip = new ZipOutputStream( new BufferedOutputStream( new FileOutputStream( file ), 1 << 20 ) );
+        this.zip.setMethod( is_compressed ? ZipOutputStream.DEFLATED : ZipOutputStream.STORED );
+    }
+
+    /**
+     * Adds a field as a TIFF entry, and closes the archive if it was the last field expected
+     * @param name the name of the entry
+     * @param imp the field
+     * @throws IOException if the entry could not be written
+     */
+    public void add( String name, ImagePlus imp ) throws IOException {
+        try {
+            byte[] tiff = new FileSaver( imp ).serialize( );
+            if ( tiff == null ) throw new IOException( "Could not encode " + name + " as a TIFF" );
+            addEntry( name, tiff );
+        } finally {
+            done( );
+        }
+    }
+
+    /**
+     * Adds a text entry, like a positions file. It does not count as a field
+     * @param name the name of the entry
+     * @param text the content of the entry
+     * @throws IOException if the entry could not be written
+     */
+    public void addText( String name, String text ) throws IOException {
+        addEntry( name, text.getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    /**
+     * Gives up an expected field that could not be read, and closes the archive if it was the last one
+     */
+    public void skip( ) {
+        done( );
+    }
+
+    /**
+     * @return the ZIP file
+     */
+    public File getFile( ) {
+        return file;
+    }
+
+    /**
+     * Writes the index of the entries and closes the file. Does nothing if the archive is already closed
+     * @throws IOException if the file could not be closed
+     */
+    @Override
+    public synchronized void close( ) throws IOException {
+        if ( is_closed ) return;
+        is_closed = true;
+        zip.close( );
+        log.info( "{}: {} entries, {} MB", file.getName( ), entries, bytes / 1024 / 1024 );
+    }
+
+    private synchronized void addEntry( String name, byte[] data ) throws IOException {
+        if ( is_closed ) throw new IOException( file.getName( ) + " is already closed, cannot add " + name );
+
+        ZipEntry entry = new ZipEntry( name );
+        if ( !is_compressed ) {
+            // Stored entries need their size and checksum before their data
+            CRC32 crc = new CRC32( );
+            crc.update( data );
+            entry.setSize( data.length );
+            entry.setCompressedSize( data.length );
+            entry.setCrc( crc.getValue( ) );
+        }
+        zip.putNextEntry( entry );
+        zip.write( data );
+        zip.closeEntry( );
+
+        entries++;
+        bytes += data.length;
+    }
+
+    private void done( ) {
+        if ( pending.decrementAndGet( ) != 0 ) return;
+        try {
+            close( );
+        } catch ( IOException e ) {
+            log.error( "Could not close " + file + ":", e );
+        }
+    }
+}
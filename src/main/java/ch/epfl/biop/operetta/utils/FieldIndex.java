@@ -0,0 +1,129 @@
+package ch.epfl.biop.operetta.utils;
+
+import ome.xml.model.WellSample;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Spatial index of the fields of a well, to find which fields cover a point or intersect a rectangle
+ * without testing every field.
+ *
+ * Field rectangles, in pixels, are sorted into a uniform grid whose cells are the size of a field, so each field
+ * falls in at most four cells and a query only looks at the cells it covers. Results are returned in the order
+ * the fields were given, which is the order in which they are stitched.
+ */
+public class FieldIndex {
+
+    private final WellSample[] fields;
+    private final int[] x, y, w, h;
+
+    private final int origin_x, origin_y;
+    private final int cell_width, cell_height;
+    private final int n_columns, n_rows;
+
+    // Indexes of the fields that overlap each cell, cells are stored row by row
+    private final int[][] cells;
+
+    /**
+     * Builds the index
+     * @param fields the fields of the well
+     * @param bounds the rectangle of each field, in pixels, in the same order as the fields
+     */
+    public FieldIndex( List<WellSample> fields, List<Rectangle> bounds ) {
+        int n = fields.size( );
+        this.fields = fields.toArray( new WellSample[ 0 ] );
+        this.x = new int[ n ];
+        this.y = new int[ n ];
+        this.w = new int[ n ];
+        this.h = new int[ n ];
+
+        int min_x = Integer.MAX_VALUE, min_y = Integer.MAX_VALUE, max_x = Integer.MIN_VALUE, max_y = Integer.MIN_VALUE;
+        int max_w = 1, max_h = 1;
+        for ( int i = 0; i < n; i++ ) {
+            Rectangle r = bounds.get( i );
+            x[ i ] = r.x;
+            y[ i ] = r.y;
+            w[ i ] = r.width;
+            h[ i ] = r.height;
+            min_x = Math.min( min_x, r.x );
+            min_y = Math.min( min_y, r.y );
+            max_x = Math.max( max_x, r.x + r.width );
+            max_y = Math.max( max_y, r.y + r.height );
+            max_w = Math.max( max_w, r.width );
+            max_h = Math.max( max_h, r.height );
+        }
+        if ( n == 0 ) {
+            min_x = min_y = max_x = max_y = 0;
+        }
+
+        this.origin_x = min_x;
+        this.origin_y = min_y;
+        this.cell_width = max_w;
+        this.cell_height = max_h;
+        this.n_columns = Math.max( 1, ( max_x - min_x + max_w - 1 ) / max_w );
+        this.n_rows = Math.max( 1, ( max_y - min_y + max_h - 1 ) / max_h );
+
+        List<List<Integer>> lists = new ArrayList<>( n_columns * n_rows );
+        for ( int i = 0; i < n_columns * n_rows; i++ ) lists.add( new ArrayList<>( 4 ) );
+
+        for ( int i = 0; i < n; i++ ) {
+            for ( int row = row( y[ i ] ); row <= row( y[ i ] + h[ i ] - 1 ); row++ )
+                for ( int col = column( x[ i ] ); col <= column( x[ i ] + w[ i ] - 1 ); col++ )
+                    lists.get( row * n_columns + col ).add( i );
+        }
+
+        this.cells = new int[ lists.size( ) ][];
+        for ( int i = 0; i < lists.size( ); i++ )
+            cells[ i ] = lists.get( i ).stream( ).mapToInt( Integer::intValue ).toArray( );
+    }
+
+    /**
+     * Finds the fields that intersect the given rectangle. Fields that only touch its edges are not included
+     * @param r the rectangle, in the same pixel coordinates as the field bounds
+     * @return the intersecting fields, in the order they were given to the index
+     */
+    public List<WellSample> getIntersectingFields( Rectangle r ) {
+        if ( r.width <= 0 || r.height <= 0 || fields.length == 0 ) return new ArrayList<>( );
+
+        // Cells are as large as the largest field, so a field is in at most four cells
+        int[] hits = new int[ fields.length * 4 ];
+        int n_hits = 0;
+
+        for ( int row = row( r.y ); row <= row( r.y + r.height - 1 ); row++ ) {
+            for ( int col = column( r.x ); col <= column( r.x + r.width - 1 ); col++ ) {
+                for ( int i : cells[ row * n_columns + col ] ) {
+                    if ( x[ i ] < r.x + r.width && r.x < x[ i ] + w[ i ] && y[ i ] < r.y + r.height && r.y < y[ i ] + h[ i ] )
+                        hits[ n_hits++ ] = i;
+                }
+            }
+        }
+
+        // A field that spans several cells is found several times
+        Arrays.sort( hits, 0, n_hits );
+        List<WellSample> result = new ArrayList<>( n_hits );
+        for ( int i = 0; i < n_hits; i++ ) {
+            if ( i == 0 || hits[ i ] != hits[ i - 1 ] ) result.add( fields[ hits[ i ] ] );
+        }
+        return result;
+    }
+
+    /**
+     * Finds the fields that cover the given point
+     * @param p the point, in the same pixel coordinates as the field bounds
+     * @return the fields that contain the point, in the order they were given to the index
+     */
+    public List<WellSample> getFieldsAt( Point p ) {
+        return getIntersectingFields( new Rectangle( p.x, p.y, 1, 1 ) );
+    }
+
+    private int column( int px ) {
+        return Math.max( 0, Math.min( n_columns - 1, Math.floorDiv( px - origin_x, cell_width ) ) );
+    }
+
+    private int row( int py ) {
+        return Math.max( 0, Math.min( n_rows - 1, Math.floorDiv( py - origin_y, cell_height ) ) );
+    }
+}
@@ -0,0 +1,71 @@
+package ch.epfl.biop.operetta.utils;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * Measures how much work the garbage collector did during an export, so that changes to the way planes are read
+ * can be compared on the same plate.
+ *
+ * Use
+ * <pre>
+ * {@code
+ * GcMonitor gc = new GcMonitor( );
+ * ... export ...
+ * log.info( "{}", gc );
+ * }
+ * </pre>
+ */
+public class GcMonitor {
+
+    private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans( );
+    private final long start_count;
+    private final long start_time;
+    private final long start_nanos;
+
+    /**
+     * Starts measuring from now
+     */
+    public GcMonitor( ) {
+        this.start_count = getTotalCount( );
+        this.start_time = getTotalTime( );
+        this.start_nanos = System.nanoTime( );
+    }
+
+    /**
+     * @return the number of collections since this monitor was created, for all collectors
+     */
+    public long getCollections( ) {
+        return getTotalCount( ) - start_count;
+    }
+
+    /**
+     * @return the time spent collecting since this monitor was created, in milliseconds, for all collectors
+     */
+    public long getCollectionMillis( ) {
+        return getTotalTime( ) - start_time;
+    }
+
+    /**
+     * @return the fraction of the time since this monitor was created that was spent collecting, between 0 and 1
+     */
+    public double getCollectionRatio( ) {
+        double elapsed = ( System.nanoTime( ) - start_nanos ) / 1e6;
+        return elapsed > 0 ? getCollectionMillis( ) / elapsed : 0;
+    }
+
+    @Override
+    public String toString( ) {
+        return String.format( "Garbage collection: %d collections, %d ms (%.1f%% of the time)", getCollections( ), getCollectionMillis( ), getCollectionRatio( ) * 100 );
+    }
+
+    // Collectors report -1 when they do not know
+    private long getTotalCount( ) {
+        return collectors.stream( ).mapToLong( c -> Math.max( 0, c.getCollectionCount( ) ) ).sum( );
+    }
+
+    private long getTotalTime( ) {
+        return collectors.stream( ).mapToLong( c -> Math.max( 0, c.getCollectionTime( ) ) ).sum( );
+    }
+}
@@ -0,0 +1,351 @@
+package ch.epfl.biop.operetta.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+/**
+ * Reads files with a time limit, so that a single stuck file on a network share cannot stall a whole well.
+ *
+ * Each read runs on a thread of its own while the caller waits for it. A read that takes longer than the timeout is
+ * cancelled and tried again, a few times at most, after which the file is given up and the read returns null, like
+ * a file that could not be opened.
+ *
+ * With hedging, a read that is slower than 99% of the reads so far is issued a second time in parallel, and the first
+ * of both to finish is used. Storage that is slow once in a while, rather than a single slow file, then only costs
+ * the time of a normal read. The result of the other read is thrown away.
+ *
+ * Each attempt takes its own slot of the {@link IoThrottle} before it starts, so that waiting for the throttle does not
+ * count against the timeout, and pays for what it read. Retries wait for a slot like any read, a hedged read is only
+ * issued if a slot is free right away, so that duplicates stay within the limits when the storage is stalling. An
+ * attempt that times out is cancelled and gives its slot back once it stops, it does not hold it while the next
+ * attempts run.
+ *
+ * Reads slower than the 99th percentile are counted as slow. The slowest of them, and reads that timed out, are kept for
+ * the metrics.
+ *
+ * Use
+ * <pre>
+ * {@code
+ * ImageProcessor ip = reader.read( file, f -> TiffPlaneReader.open( f, null ), unused -> { }, throttle, TiffPlaneReader::getBytes );
+ * }
+ * </pre>
+ */
+public class HedgedReader implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger( HedgedReader.class );
+
+    // Latencies kept to estimate the 99th percentile, and how many are needed before hedging starts
+    private static final int LATENCY_WINDOW = 1024;
+    private static final int MIN_SAMPLES = 50;
+    private static final int SLOWEST_KEPT = 10;
+
+    private final long timeout_ms;
+    private final int retries;
+    private final boolean is_hedged;
+
+    private final ExecutorService executor;
+
+    private final long[] latencies = new long[ LATENCY_WINDOW ];
+    private int next_latency = 0;
+    private int n_latencies = 0;
+    private volatile long p50_ns = Long.MAX_VALUE;
+    private volatile long p99_ns = Long.MAX_VALUE;
+
+    // Slowest reads, the fastest of them first so that it is the one replaced
+    private final PriorityQueue<SlowRead> slowest = new PriorityQueue<>( Comparator.comparingLong( r -> r.nanos ) );
+
+    // Metrics
+    private final AtomicLong reads = new AtomicLong( 0 );
+    private final AtomicLong slow = new AtomicLong( 0 );
+    private final AtomicLong hedges = new AtomicLong( 0 );
+    private final AtomicLong hedges_won = new AtomicLong( 0 );
+    private final AtomicLong timeouts = new AtomicLong( 0 );
+    private final AtomicLong errors = new AtomicLong( 0 );
+    private final AtomicLong given_up = new AtomicLong( 0 );
+
+    /**
+     * Creates a reader
+     * @param timeout_ms how long a single read can take, in milliseconds, 0 for no limit
+     * @param retries how many times a read that timed out or failed is tried again
+     * @param is_hedged whether reads slower than the 99th percentile are issued a second time in parallel
+     */
+    public HedgedReader( long timeout_ms, int retries, boolean is_hedged ) {
+        this.timeout_ms = Math.max( 0, timeout_ms );
+        this.retries = Math.max( 0, retries );
+        this.is_hedged = is_hedged;
+
+        AtomicInteger counter = new AtomicInteger( 0 );
+        this.executor = Executors.newCachedThreadPool( r -> {
+            Thread t = new Thread( r, "Operetta file read " + counter.incrementAndGet( ) );
+            t.setDaemon( true );
+            return t;
+        } );
+    }
+
+    /**
+     * Reads a file within the time limit, hedging and retrying as needed
+     * @param file the file to read
+     * @param reader reads the file, it must return quickly once its thread is interrupted
+     * @param discard releases the result of a read that finished but was not used, like a hedged read that lost
+     * @param <T> the type of the result
+     * @return the result of the first read that finished, or null if the file could not be read in time
+     */
+    public <T> T read( String file, Function<String, T> reader, Consumer<T> discard ) {
+        return read( file, reader, discard, null, null );
+    }
+
+    /**
+     * Reads a file within the time limit, hedging and retrying as needed, each attempt within the limits of a throttle
+     * @param file the file to read
+     * @param reader reads the file, it must return quickly once its thread is interrupted
+     * @param discard releases the result of a read that finished but was not used, like a hedged read that lost
+     * @param throttle limits the attempts, each of them takes a slot and pays for what it read, null for no limit
+     * @param size the number of bytes of a result, can be null if there is no throttle
+     * @param <T> the type of the result
+     * @return the result of the first read that finished, or null if the file could not be read in time
+     */
+    public <T> T read( String file, Function<String, T> reader, Consumer<T> discard, IoThrottle throttle, ToLongFunction<T> size ) {
+        // Nothing to watch, read on the caller's thread
+        if ( timeout_ms == 0 && !is_hedged ) {
+            long start = System.nanoTime( );
+            T result = throttle == null ? reader.apply( file ) : throttle.read( ( ) -> reader.apply( file ), size );
+            record( file, System.nanoTime( ) - start );
+            return result;
+        }
+
+        for ( int attempt = 0; attempt <= retries; attempt++ ) {
+            if ( attempt > 0 ) log.warn( "Reading {} again, attempt {} of {}", file, attempt + 1, retries + 1 );
+
+            // The slot is taken before the attempt starts, so waiting for it does not count against the timeout
+            if ( throttle != null ) {
+                try {
+                    throttle.acquire( );
+                } catch ( InterruptedException e ) {
+                    Thread.currentThread( ).interrupt( );
+                    return null;
+                }
+            }
+
+            CompletionService<T> service = new ExecutorCompletionService<>( executor );
+            List<Future<T>> futures = new ArrayList<>( 2 );
+            List<Attempt<T>> attempts = new ArrayList<>( 2 );
+            attempts.add( new Attempt<>( file, reader, throttle, size ) );
+            futures.add( service.submit( attempts.get( 0 ) ) );
+
+            long start = System.nanoTime( );
+            long deadline = timeout_ms > 0 ? start + TimeUnit.MILLISECONDS.toNanos( timeout_ms ) : Long.MAX_VALUE;
+            long hedge_at = is_hedged && p99_ns != Long.MAX_VALUE ? start + p99_ns : Long.MAX_VALUE;
+
+            Future<T> winner = null;
+            T result = null;
+            try {
+                int pending = 1;
+                while ( pending > 0 && winner == null ) {
+                    long until = futures.size( ) == 1 ? Math.min( deadline, hedge_at ) : deadline;
+                    Future<T> done = until == Long.MAX_VALUE ? service.take( ) : service.poll( until - System.nanoTime( ), TimeUnit.NANOSECONDS );
+
+                    if ( done == null ) {
+                        if ( futures.size( ) == 1 && System.nanoTime( ) < deadline ) {
+                            hedge_at = Long.MAX_VALUE;
+                            // Slower than most reads so far, issue it again, unless the throttle has no room for it
+                            if ( throttle == null || throttle.tryAcquire( ) ) {
+                                hedges.incrementAndGet( );
+                                attempts.add( new Attempt<>( file, reader, throttle, size ) );
+                                futures.add( service.submit( attempts.get( 1 ) ) );
+                                pending++;
+                            }
+                            continue;
+                        }
+                        timeouts.incrementAndGet( );
+                        addSlowest( file, System.nanoTime( ) - start );
+                        log.warn( "Reading {} took more than {} ms", file, timeout_ms );
+                        break;
+                    }
+
+                    pending--;
+                    try {
+                        result = done.get( );
+                        winner = done;
+                    } catch ( ExecutionException e ) {
+                        errors.incrementAndGet( );
+                        log.warn( "Could not read {}: {}", file, e.getCause( ) );
+                    }
+                }
+            } catch ( InterruptedException e ) {
+                Thread.currentThread( ).interrupt( );
+                cancel( futures, attempts, null, discard );
+                return null;
+            }
+
+            cancel( futures, attempts, winner, discard );
+            if ( winner != null ) {
+                // What the caller waited for, hedged reads included
+                record( file, System.nanoTime( ) - start );
+                if ( winner != futures.get( 0 ) ) hedges_won.incrementAndGet( );
+                return result;
+            }
+        }
+
+        given_up.incrementAndGet( );
+        log.error( "Gave up reading {} after {} attempts", file, retries + 1 );
+        return null;
+    }
+
+    /**
+     * @return the median read time so far, in milliseconds, or -1 if there are not enough reads yet
+     */
+    public double getMedianMillis( ) {
+        return p50_ns == Long.MAX_VALUE ? -1 : p50_ns / 1e6;
+    }
+
+    /**
+     * @return the 99th percentile of the read time so far, in milliseconds, or -1 if there are not enough reads yet
+     */
+    public double getP99Millis( ) {
+        return p99_ns == Long.MAX_VALUE ? -1 : p99_ns / 1e6;
+    }
+
+    /**
+     * @return the slowest files read so far, slowest first, with their read time
+     */
+    public List<String> getSlowestFiles( ) {
+        synchronized ( slowest ) {
+            return slowest.stream( )
+                    .sorted( Comparator.comparingLong( ( SlowRead r ) -> r.nanos ).reversed( ) )
+                    .map( r -> String.format( "%s (%.0f ms)", r.file, r.nanos / 1e6 ) )
+                    .collect( Collectors.toList( ) );
+        }
+    }
+
+    /**
+     * Stops the threads of this reader. Reads still running are interrupted
+     */
+    @Override
+    public void close( ) {
+        executor.shutdownNow( );
+    }
+
+    @Override
+    public String toString( ) {
+        return String.format( "File reads: %d reads, median %.1f ms, p99 %.1f ms, %d slow, %d hedged (%d won), %d timeouts, %d errors, %d given up",
+                reads.get( ), getMedianMillis( ), getP99Millis( ), slow.get( ), hedges.get( ), hedges_won.get( ), timeouts.get( ), errors.get( ), given_up.get( ) );
+    }
+
+    /**
+     * Cancels the reads that did not win, and releases the results of those that finished anyway. Reads that were
+     * cancelled before they started give their slot back here, the others when they stop
+     */
+    private <T> void cancel( List<Future<T>> futures, List<Attempt<T>> attempts, Future<T> winner, Consumer<T> discard ) {
+        for ( int i = 0; i < futures.size( ); i++ ) {
+            Future<T> future = futures.get( i );
+            if ( future == winner ) continue;
+            if ( future.cancel( true ) ) {
+                attempts.get( i ).abandon( );
+                continue;
+            }
+            try {
+                T unused = future.get( );
+                if ( unused != null ) discard.accept( unused );
+            } catch ( Exception e ) {
+                // It failed, there is nothing to release
+            }
+        }
+    }
+
+    private void record( String file, long nanos ) {
+        long n = reads.incrementAndGet( );
+        long p99 = p99_ns;
+        if ( p99 != Long.MAX_VALUE && nanos > p99 ) {
+            slow.incrementAndGet( );
+            log.debug( "Slow read of {}: {} ms", file, nanos / 1_000_000 );
+            addSlowest( file, nanos );
+        }
+
+        synchronized ( latencies ) {
+            latencies[ next_latency ] = nanos;
+            next_latency = ( next_latency + 1 ) % LATENCY_WINDOW;
+            n_latencies = Math.min( n_latencies + 1, LATENCY_WINDOW );
+            // Sorting the window for every read would cost more than the reads, every 32 is enough
+            if ( n_latencies >= MIN_SAMPLES && n % 32 == 0 ) {
+                long[] sorted = Arrays.copyOf( latencies, n_latencies );
+                Arrays.sort( sorted );
+                p50_ns = sorted[ sorted.length / 2 ];
+                p99_ns = sorted[ (int) Math.min( sorted.length - 1, Math.ceil( sorted.length * 0.99 ) - 1 ) ];
+            }
+        }
+    }
+
+    private void addSlowest( String file, long nanos ) {
+        synchronized ( slowest ) {
+            slowest.add( new SlowRead( file, nanos ) );
+            if ( slowest.size( ) > SLOWEST_KEPT ) slowest.poll( );
+        }
+    }
+
+    /**
+     * A single read of a file, which holds a slot of the throttle taken by the caller and gives it back exactly once:
+     * when the read stops, or when it is abandoned before it started
+     */
+    private static class Attempt<T> implements Callable<T> {
+        final String file;
+        final Function<String, T> reader;
+        final IoThrottle throttle;
+        final ToLongFunction<T> size;
+        final AtomicBoolean is_claimed = new AtomicBoolean( false );
+
+        Attempt( String file, Function<String, T> reader, IoThrottle throttle, ToLongFunction<T> size ) {
+            this.file = file;
+            this.reader = reader;
+            this.throttle = throttle;
+            this.size = size;
+        }
+
+        @Override
+        public T call( ) {
+            // Abandoned before it started, the slot was already given back
+            if ( !is_claimed.compareAndSet( false, true ) ) return null;
+            T result = null;
+            try {
+                result = reader.apply( file );
+                return result;
+            } finally {
+                if ( throttle != null ) throttle.release( result == null ? 0 : size.applyAsLong( result ) );
+            }
+        }
+
+        void abandon( ) {
+            if ( is_claimed.compareAndSet( false, true ) && throttle != null ) throttle.release( 0 );
+        }
+    }
+
+    private static class SlowRead {
+        final String file;
+        final long nanos;
+
+        SlowRead( String file, long nanos ) {
+            this.file = file;
+            this.nanos = nanos;
+        }
+    }
+}
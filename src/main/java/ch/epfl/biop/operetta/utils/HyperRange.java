@@ -126,6 +126,15 @@ public class HyperRange {
 
     }
 
+    /**
+     * Returns this range restricted to a single timepoint, to read a time-lapse one timepoint at a time
+     * @param t the timepoint, starting at 1
+     * @return a new range with the same channels and slices
+     */
+    public HyperRange getTimepoint(int t) {
+        return new HyperRange(range_c, range_z, Collections.singletonList(t));
+    }
+
     public HyperRange confirmRange( IMetadata metadata ) {
         int cs = metadata.getPixelsSizeC(0).getValue();
         int zs = metadata.getPixelsSizeZ(0).getValue();
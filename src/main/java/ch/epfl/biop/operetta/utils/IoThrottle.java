@@ -0,0 +1,255 @@
+package ch.epfl.biop.operetta.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Limits how hard an export reads the storage, so that it can run on the storage the Operetta is writing to without
+ * slowing down the acquisition.
+ *
+ * Three limits can be set, each of them can be changed while an export runs, and 0 means no limit:
+ * <ul>
+ *     <li>the number of bytes read per second</li>
+ *     <li>the number of files opened per second</li>
+ *     <li>the number of files open at the same time</li>
+ * </ul>
+ * The rates are token buckets that allow a burst of one second, or of a single file. The size of a file is only known once it is read,
+ * so reading it may overdraw the byte bucket, and the next file waits until the bucket is refilled.
+ *
+ * Use
+ * <pre>
+ * {@code
+ * throttle.acquire( );
+ * long bytes = 0;
+ * try {
+ *     bytes = read( file );
+ * } finally {
+ *     throttle.release( bytes );
+ * }
+ * }
+ * </pre>
+ */
+public class IoThrottle {
+
+    private double bytes_per_second;
+    private double files_per_second;
+    private int max_open_files;
+
+    // Tokens left in each bucket, and when they were last refilled
+    private double byte_tokens;
+    private double file_tokens;
+    private long last_refill = System.nanoTime( );
+
+    private int open_files = 0;
+
+    // Metrics
+    private final AtomicLong files = new AtomicLong( 0 );
+    private final AtomicLong bytes = new AtomicLong( 0 );
+    private final AtomicLong waits = new AtomicLong( 0 );
+    private final AtomicLong wait_ns = new AtomicLong( 0 );
+    private final long start = System.nanoTime( );
+
+    /**
+     * Creates a throttle
+     * @param bytes_per_second the number of bytes that can be read per second, 0 for no limit
+     * @param files_per_second the number of files that can be opened per second, 0 for no limit
+     * @param max_open_files the number of files that can be open at the same time, 0 for no limit
+     */
+    public IoThrottle( double bytes_per_second, double files_per_second, int max_open_files ) {
+        setBytesPerSecond( bytes_per_second );
+        setFilesPerSecond( files_per_second );
+        setMaxOpenFiles( max_open_files );
+        // Start with full buckets
+        this.byte_tokens = this.bytes_per_second;
+        this.file_tokens = getFileCapacity( );
+    }
+
+    /**
+     * @return a throttle that never waits
+     */
+    public static IoThrottle unlimited( ) {
+        return new IoThrottle( 0, 0, 0 );
+    }
+
+    /**
+     * Waits until a file can be opened: a slot is free, a file token is available and the bytes read so far
+     * are paid for. Each call must be followed by a call to {@link #release(long)}
+     * @throws InterruptedException if the thread was interrupted while waiting, in which case nothing was taken
+     */
+    public synchronized void acquire( ) throws InterruptedException {
+        long wait_start = System.nanoTime( );
+        boolean has_waited = false;
+
+        while ( true ) {
+            long delay_ns = getDelay( );
+            if ( delay_ns == 0 ) break;
+
+            has_waited = true;
+            // Woken up early when a file is released or a limit changes
+            TimeUnit.NANOSECONDS.timedWait( this, Math.max( delay_ns, TimeUnit.MILLISECONDS.toNanos( 1 ) ) );
+        }
+
+        take( );
+
+        if ( has_waited ) {
+            waits.incrementAndGet( );
+            wait_ns.addAndGet( System.nanoTime( ) - wait_start );
+        }
+    }
+
+    /**
+     * Takes a slot like {@link #acquire()}, but only if it is available right away
+     * @return true if the slot was taken, in which case {@link #release(long)} must be called
+     */
+    public synchronized boolean tryAcquire( ) {
+        if ( getDelay( ) > 0 ) return false;
+        take( );
+        return true;
+    }
+
+    /**
+     * Runs a read within the limits: waits with {@link #acquire()}, reads, then pays for what was read
+     * @param read reads a file
+     * @param size the number of bytes of the result, which can be null
+     * @param <T> the type of the result
+     * @return the result of the read, or null if the thread was interrupted while waiting
+     */
+    public <T> T read( Supplier<T> read, ToLongFunction<T> size ) {
+        try {
+            acquire( );
+        } catch ( InterruptedException e ) {
+            Thread.currentThread( ).interrupt( );
+            return null;
+        }
+
+        T result = null;
+        try {
+            result = read.get( );
+            return result;
+        } finally {
+            release( result == null ? 0 : size.applyAsLong( result ) );
+        }
+    }
+
+    /**
+     * Frees the slot taken by {@link #acquire()} and pays for the bytes that were read
+     * @param bytes_read the number of bytes read from the file, 0 if it could not be read
+     */
+    public synchronized void release( long bytes_read ) {
+        open_files = Math.max( 0, open_files - 1 );
+        if ( bytes_per_second > 0 ) byte_tokens -= bytes_read;
+        files.incrementAndGet( );
+        bytes.addAndGet( bytes_read );
+        notifyAll( );
+    }
+
+    /**
+     * @param bytes_per_second the number of bytes that can be read per second, 0 for no limit
+     */
+    public synchronized void setBytesPerSecond( double bytes_per_second ) {
+        this.bytes_per_second = Math.max( 0, bytes_per_second );
+        this.byte_tokens = Math.min( byte_tokens, this.bytes_per_second );
+        notifyAll( );
+    }
+
+    /**
+     * @param files_per_second the number of files that can be opened per second, 0 for no limit
+     */
+    public synchronized void setFilesPerSecond( double files_per_second ) {
+        this.files_per_second = Math.max( 0, files_per_second );
+        this.file_tokens = Math.min( file_tokens, getFileCapacity( ) );
+        notifyAll( );
+    }
+
+    /**
+     * @param max_open_files the number of files that can be open at the same time, 0 for no limit
+     */
+    public synchronized void setMaxOpenFiles( int max_open_files ) {
+        this.max_open_files = Math.max( 0, max_open_files );
+        notifyAll( );
+    }
+
+    /**
+     * @return the number of bytes that can be read per second, 0 for no limit
+     */
+    public synchronized double getBytesPerSecond( ) {
+        return bytes_per_second;
+    }
+
+    /**
+     * @return the number of files that can be opened per second, 0 for no limit
+     */
+    public synchronized double getFilesPerSecond( ) {
+        return files_per_second;
+    }
+
+    /**
+     * @return the number of files that can be open at the same time, 0 for no limit
+     */
+    public synchronized int getMaxOpenFiles( ) {
+        return max_open_files;
+    }
+
+    /**
+     * @return the number of files read through this throttle
+     */
+    public long getFiles( ) {
+        return files.get( );
+    }
+
+    /**
+     * @return the number of bytes read through this throttle
+     */
+    public long getBytes( ) {
+        return bytes.get( );
+    }
+
+    /**
+     * @return the total time threads spent waiting for the limits, in milliseconds
+     */
+    public long getWaitMillis( ) {
+        return TimeUnit.NANOSECONDS.toMillis( wait_ns.get( ) );
+    }
+
+    @Override
+    public synchronized String toString( ) {
+        double elapsed = Math.max( 1e-3, ( System.nanoTime( ) - start ) / 1e9 );
+        return String.format( "I/O throttle: limits %s, %s, %s. Read %d files (%.1f files/s), %.1f MB (%.1f MB/s), waited %d times for %d ms",
+                bytes_per_second > 0 ? String.format( "%.1f MB/s", bytes_per_second / 1024 / 1024 ) : "no MB/s limit",
+                files_per_second > 0 ? String.format( "%.1f files/s", files_per_second ) : "no files/s limit",
+                max_open_files > 0 ? max_open_files + " open files" : "no open files limit",
+                files.get( ), files.get( ) / elapsed, bytes.get( ) / 1024.0 / 1024.0, bytes.get( ) / 1024.0 / 1024.0 / elapsed,
+                waits.get( ), getWaitMillis( ) );
+    }
+
+    // How long until a file can be opened, 0 if it can be now
+    private long getDelay( ) {
+        refill( );
+        long delay_ns = 0;
+        if ( max_open_files > 0 && open_files >= max_open_files ) delay_ns = TimeUnit.MILLISECONDS.toNanos( 100 );
+        if ( files_per_second > 0 && file_tokens < 1 ) delay_ns = Math.max( delay_ns, (long) ( ( 1 - file_tokens ) / files_per_second * 1e9 ) );
+        if ( bytes_per_second > 0 && byte_tokens < 0 ) delay_ns = Math.max( delay_ns, (long) ( -byte_tokens / bytes_per_second * 1e9 ) );
+        return delay_ns;
+    }
+
+    private void take( ) {
+        if ( files_per_second > 0 ) file_tokens -= 1;
+        open_files++;
+    }
+
+    // At least one file, so that rates below one file per second still let files through
+    private double getFileCapacity( ) {
+        return Math.max( 1, files_per_second );
+    }
+
+    // Buckets hold at most one second of tokens
+    private void refill( ) {
+        long now = System.nanoTime( );
+        double seconds = ( now - last_refill ) / 1e9;
+        last_refill = now;
+        if ( bytes_per_second > 0 ) byte_tokens = Math.min( bytes_per_second, byte_tokens + seconds * bytes_per_second );
+        if ( files_per_second > 0 ) file_tokens = Math.min( getFileCapacity( ), file_tokens + seconds * files_per_second );
+    }
+}
@@ -0,0 +1,236 @@
+package ch.epfl.biop.operetta.utils;
+
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * An ImageStack whose planes live in a file in a scratch folder instead of the Java heap.
+ * This is used as the stitching canvas for wells that are larger than the heap: fields are blitted into it
+ * with {@link #blit(Object, int, int, Rectangle, int, int, int, int, double, double)} and, because it is a
+ * {@link VirtualStack}, ImageJ's TIFF writer and the ZProjector read it back one plane at a time.
+ *
+ * Planes are read and written at their offset in the file through a single channel, so the operating system caches
+ * them like mapped memory, but nothing stays mapped once the stack is closed. The backing file is deleted by
+ * {@link #close()}, or when the JVM exits.
+ */
+public class MappedStack extends VirtualStack {
+
+    private static final Logger log = LoggerFactory.getLogger( MappedStack.class );
+
+    private final int width;
+    private final int height;
+    private final int bit_depth;
+    private final int bytes_per_pixel;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long plane_bytes;
+    private final String[] labels;
+
+    /**
+     * Creates a new stack, filled with zeroes, backed by a temporary file
+     * @param width the width of the planes
+     * @param height the height of the planes
+     * @param n_planes the number of planes
+     * @param bit_depth 8, 16 or 32
+     * @param scratch_folder the folder where the backing file is created
+     * @throws IOException if the file could not be created
+     */
+    public MappedStack( int width, int height, int n_planes, int bit_depth, File scratch_folder ) throws IOException {
+        super( width, height, null, scratch_folder.getAbsolutePath( ) );
+        this.width = width;
+        this.height = height;
+        this.bit_depth = bit_depth;
+        this.bytes_per_pixel = bit_depth / 8;
+
+        this.plane_bytes = (long) width * height * bytes_per_pixel;
+        if ( plane_bytes > Integer.MAX_VALUE )
+            throw new IOException( "A single plane of " + width + "x" + height + " is too large for an array" );
+
+        scratch_folder.mkdirs( );
+        this.file = File.createTempFile( "operetta-canvas-", ".raw", scratch_folder );
+        this.file.deleteOnExit( );
+
+        this.labels = new String[ n_planes ];
+
+        // The file is sparse, planes that are never written read as zeroes
+        this.raf = new RandomAccessFile( file, "rw" );
+        try {
+            raf.setLength( plane_bytes * n_planes );
+        } catch ( IOException e ) {
+            raf.close( );
+            file.delete( );
+            throw e;
+        }
+        this.channel = raf.getChannel( );
+        log.info( "Created {} planes of {}x{} in {}", n_planes, width, height, file );
+    }
+
+    /**
+     * Crops, downscales and converts a decoded plane straight into the plane n at position x, y, clipping whatever
+     * falls outside the plane. See {@link PixelConverter#convertRegion(Object, int, int, Rectangle, int, Object, int, int, int, int, double, double)}
+     * @param src the decoded pixels, a byte[], short[] or float[]
+     * @param src_width the width of the decoded plane
+     * @param src_height the height of the decoded plane
+     * @param crop the region of the decoded plane to copy, null for all of it
+     * @param downscale the downscale factor
+     * @param x the x position in the plane
+     * @param y the y position in the plane
+     * @param n the plane, 1-based
+     * @param min the source value that becomes 0 when the bit depth is reduced
+     * @param max the source value that becomes the maximum of this stack when the bit depth is reduced
+     */
+    public void blit( Object src, int src_width, int src_height, Rectangle crop, int downscale, int x, int y, int n, double min, double max ) {
+        Rectangle region = new Rectangle( 0, 0, src_width, src_height );
+        if ( crop != null ) region = region.intersection( crop );
+        if ( region.isEmpty( ) ) return;
+
+        int x0 = Math.max( 0, x );
+        int y0 = Math.max( 0, y );
+        int x1 = Math.min( width, x + region.width / downscale );
+        int y1 = Math.min( height, y + region.height / downscale );
+        if ( x1 <= x0 || y1 <= y0 ) return;
+
+        // Rows are converted one at a time, so only one row is ever on the heap
+        Object row_pixels = PixelConverter.createPixels( bit_depth, x1 - x0 );
+        ByteBuffer row_bytes = ByteBuffer.allocate( ( x1 - x0 ) * bytes_per_pixel ).order( ByteOrder.nativeOrder( ) );
+
+        for ( int row = y0; row < y1; row++ ) {
+            PixelConverter.convertRegion( src, src_width, src_height, crop, downscale, row_pixels, x1 - x0, 1, x - x0, y - row, min, max );
+            row_bytes.clear( );
+            put( row_bytes, row_pixels, 0, x1 - x0 );
+            write( row_bytes, getOffset( n ) + ( (long) row * width + x0 ) * bytes_per_pixel );
+        }
+    }
+
+    @Override
+    public ImageProcessor getProcessor( int n ) {
+        Object pixels = getPixels( n );
+        switch ( bit_depth ) {
+            case 8:
+                return new ByteProcessor( width, height, (byte[]) pixels );
+            case 32:
+                return new FloatProcessor( width, height, (float[]) pixels );
+            default:
+                return new ShortProcessor( width, height, (short[]) pixels );
+        }
+    }
+
+    /**
+     * Copies the plane n to the heap
+     * @param n the plane, 1-based
+     * @return a new pixel array
+     */
+    @Override
+    public Object getPixels( int n ) {
+        ByteBuffer plane = ByteBuffer.allocate( (int) plane_bytes ).order( ByteOrder.nativeOrder( ) );
+        try {
+            while ( plane.hasRemaining( ) ) {
+                if ( channel.read( plane, getOffset( n ) + plane.position( ) ) < 0 ) break;
+            }
+        } catch ( IOException e ) {
+            log.error( "Could not read plane " + n + " from " + file + ":", e );
+        }
+        plane.position( 0 );
+        switch ( bit_depth ) {
+            case 8:
+                byte[] b = new byte[ width * height ];
+                plane.get( b );
+                return b;
+            case 32:
+                float[] f = new float[ width * height ];
+                plane.asFloatBuffer( ).get( f );
+                return f;
+            default:
+                short[] s = new short[ width * height ];
+                plane.asShortBuffer( ).get( s );
+                return s;
+        }
+    }
+
+    @Override
+    public void setPixels( Object pixels, int n ) {
+        ByteBuffer plane = ByteBuffer.allocate( (int) plane_bytes ).order( ByteOrder.nativeOrder( ) );
+        put( plane, pixels, 0, width * height );
+        write( plane, getOffset( n ) );
+    }
+
+    private long getOffset( int n ) {
+        return plane_bytes * ( n - 1 );
+    }
+
+    // Positional writes do not move the channel, so several threads can write different planes at once
+    private void write( ByteBuffer bytes, long offset ) {
+        bytes.position( 0 );
+        try {
+            while ( bytes.hasRemaining( ) )
+                channel.write( bytes, offset + bytes.position( ) );
+        } catch ( IOException e ) {
+            log.error( "Could not write to " + file + ":", e );
+        }
+    }
+
+    private void put( ByteBuffer plane, Object pixels, int offset, int length ) {
+        switch ( bit_depth ) {
+            case 8:
+                plane.put( (byte[]) pixels, offset, length );
+                break;
+            case 32:
+                plane.asFloatBuffer( ).put( (float[]) pixels, offset, length );
+                break;
+            default:
+                plane.asShortBuffer( ).put( (short[]) pixels, offset, length );
+        }
+    }
+
+    @Override
+    public int getSize( ) {
+        return labels.length;
+    }
+
+    @Override
+    public int size( ) {
+        return labels.length;
+    }
+
+    @Override
+    public int getBitDepth( ) {
+        return bit_depth;
+    }
+
+    @Override
+    public String getSliceLabel( int n ) {
+        return labels[ n - 1 ];
+    }
+
+    @Override
+    public void setSliceLabel( String label, int n ) {
+        labels[ n - 1 ] = label;
+    }
+
+    /**
+     * Closes and deletes the backing file, so its space is freed at once. The stack cannot be used afterwards
+     */
+    public void close( ) {
+        try {
+            raf.close( );
+        } catch ( IOException e ) {
+            log.error( "Could not close " + file + ":", e );
+        }
+        if ( !file.delete( ) ) log.warn( "Could not delete {}, it will be deleted on exit", file );
+    }
+}
@@ -0,0 +1,178 @@
+package ch.epfl.biop.operetta.utils;
+
+import loci.formats.FormatException;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import loci.formats.Memoizer;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Keeps the Bio-Formats memo files of Operetta datasets in a cache folder instead of next to the data.
+ *
+ * By default, {@link Memoizer} writes '.Index.idx.xml.bfmemo' in the dataset folder. On read-only acquisition shares
+ * this fails without any error, and every opening parses the whole 'Index.idx.xml' again. Here, memos go in a folder
+ * per dataset, named after its path and a fingerprint of its 'Index.idx.xml' (size and modification date), so a plate
+ * that is still being acquired gets a new memo once its index changes.
+ *
+ * By default, the memo folder of a dataset is in its {@link PlateCache} folder. Use {@link #setRoot(File)} to keep
+ * all memos somewhere else, a shared folder for example.
+ *
+ * A '.Index.idx.xml.bfmemo' that was already written next to the data, by an earlier version or another tool, is copied
+ * into the cache the first time, so that the dataset is not parsed again just because the memo moved.
+ */
+public class MemoCache {
+
+    private static final Logger log = LoggerFactory.getLogger( MemoCache.class );
+
+    private static File root = null;
+
+    private MemoCache( ) {
+    }
+
+    /**
+     * Changes the folder where memo files are kept
+     * @param memo_root the new root folder, or null to keep memos in the {@link PlateCache} folder of each dataset
+     */
+    public static void setRoot( File memo_root ) {
+        root = memo_root;
+    }
+
+    /**
+     * @return the folder where memo files are kept, or null if they are kept in the {@link PlateCache} folder of each dataset
+     */
+    public static File getRoot( ) {
+        return root;
+    }
+
+    /**
+     * Returns the folder that holds the memo of a dataset in its current state
+     * @param id the 'Index.idx.xml' file of the dataset
+     * @return the memo folder, which might not exist yet
+     */
+    public static File getDirectory( File id ) {
+        String name = "memo-" + getFingerprint( id );
+        if ( root == null ) return new File( PlateCache.getFolder( id ), name );
+        return new File( new File( root, PlateCache.getFolder( id ).getName( ) ), name );
+    }
+
+    /**
+     * Wraps a reader in a {@link Memoizer} that reads and writes its memo in the cache folder of the dataset.
+     * The memo is always saved, however long parsing took. Memos of previous states of the dataset are deleted. If the
+     * cache has no memo yet, it starts from the one next to the data, if there is one and it is not older than the
+     * 'Index.idx.xml'. Bio-Formats checks it like any memo when loading it, and parses the dataset if it is not valid
+     * @param reader the reader to wrap
+     * @param id the 'Index.idx.xml' file of the dataset
+     * @return the memoizing reader, not initialized yet
+     */
+    public static Memoizer createMemoizer( IFormatReader reader, File id ) {
+        File directory = getDirectory( id );
+        directory.mkdirs( );
+
+        File[] previous = directory.getParentFile( ).listFiles( f -> f.isDirectory( ) && f.getName( ).startsWith( "memo-" ) && !f.equals( directory ) );
+        if ( previous != null ) {
+            for ( File old : previous ) {
+                log.debug( "Deleting outdated memo {}", old );
+                FileUtils.deleteQuietly( old );
+            }
+        }
+        Memoizer memo = new Memoizer( reader, 0, directory );
+        seed( id, memo.getMemoFile( id.getAbsolutePath( ) ) );
+        return memo;
+    }
+
+    /**
+     * Copies the memo written next to the data into the cache, if the cache has none yet
+     * @param id the 'Index.idx.xml' file of the dataset
+     * @param memo_file the memo file in the cache
+     */
+    private static void seed( File id, File memo_file ) {
+        if ( memo_file == null || memo_file.exists( ) ) return;
+        File local = new File( id.getAbsoluteFile( ).getParentFile( ), "." + id.getName( ) + ".bfmemo" );
+        if ( !local.isFile( ) || local.lastModified( ) < id.lastModified( ) ) return;
+        try {
+            // Keeps the date, Bio-Formats compares it with the one of the 'Index.idx.xml'
+            FileUtils.copyFile( local, memo_file, true );
+            log.info( "Using the memo next to the data, {}", local );
+        } catch ( IOException e ) {
+            log.warn( "Could not copy {} to {}: {}", local, memo_file, e.getMessage( ) );
+        }
+    }
+
+    /**
+     * Opens another reader on a dataset from the memo file of a reader that is already open on it, so that both
+     * number series the same way. The dataset is never parsed again: the memo is loaded before anything else, and if
+     * Bio-Formats rejects it, because the 'Index.idx.xml' changed during an acquisition for example, no reader is
+     * created
+     * @param id the 'Index.idx.xml' file of the dataset
+     * @param directory the memo folder of the open reader, see {@link #getDirectory(File)}
+     * @param memo_file the memo file the open reader was loaded from or saved to
+     * @return the new reader, initialized
+     * @throws IOException if the memo is missing or older than the 'Index.idx.xml', or the reader could not be initialized
+     * @throws FormatException if the reader could not be initialized
+     */
+    public static IFormatReader openFromMemo( File id, File directory, File memo_file ) throws IOException, FormatException {
+        if ( memo_file == null || !memo_file.exists( ) )
+            throw new IOException( "There is no memo for " + id );
+        if ( id.lastModified( ) > memo_file.lastModified( ) )
+            throw new IOException( id + " changed since " + memo_file + " was written" );
+
+        IFormatReader reader = new ImageReader( );
+        reader.setFlattenedResolutions( false );
+        // Never saves, the memo is only read. Stops before parsing if the memo cannot be loaded
+        Memoizer memo = new Memoizer( reader, Long.MAX_VALUE, directory ) {
+            @Override
+            protected IFormatReader loadMemo( ) throws IOException, FormatException {
+                IFormatReader loaded = super.loadMemo( );
+                if ( loaded == null ) throw new IOException( "Could not load " + memo_file + ", " + id + " would have to be parsed again" );
+                return loaded;
+            }
+        };
+        if ( !memo_file.equals( memo.getMemoFile( id.getAbsolutePath( ) ) ) )
+            throw new IOException( memo_file + " is not in " + directory );
+
+        try {
+            memo.setId( id.getAbsolutePath( ) );
+        } catch ( IOException | FormatException e ) {
+            memo.close( );
+            throw e;
+        }
+        // The memo loaded, but the reader it holds could not reopen the files and the dataset was parsed
+        if ( !memo.isLoadedFromMemo( ) ) {
+            memo.close( );
+            throw new IOException( "Could not load " + memo_file + ", " + id + " would have to be parsed again" );
+        }
+        return memo;
+    }
+
+    /**
+     * Returns the memo file of a dataset
+     * @param id the 'Index.idx.xml' file of the dataset
+     * @return the memo file, which might not exist yet
+     */
+    public static File getMemoFile( File id ) {
+        return new Memoizer( new ImageReader( ), 0, getDirectory( id ) ).getMemoFile( id.getAbsolutePath( ) );
+    }
+
+    /**
+     * @param id the 'Index.idx.xml' file of the dataset
+     * @return true if there is a memo for the current state of the dataset
+     */
+    public static boolean hasMemo( File id ) {
+        File memo = getMemoFile( id );
+        return memo != null && memo.exists( );
+    }
+
+    /**
+     * The fingerprint changes whenever the 'Index.idx.xml' is written again, without having to read it
+     * @param id the 'Index.idx.xml' file of the dataset
+     * @return a short hexadecimal string
+     */
+    public static String getFingerprint( File id ) {
+        return Long.toHexString( id.length( ) ) + "-" + Long.toHexString( id.lastModified( ) );
+    }
+}
@@ -0,0 +1,189 @@
+package ch.epfl.biop.operetta.utils;
+
+import ch.epfl.biop.operetta.OperettaManager;
+import ij.IJ;
+import loci.formats.IFormatReader;
+import loci.formats.meta.IMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Builds the memo files of Operetta datasets in the background, so that plates open quickly the first time
+ * someone needs them.
+ *
+ * The prewarmer looks for 'Index.idx.xml' files under a folder, and parses those that have no memo in the
+ * {@link MemoCache} yet. Plates still being written are left alone until their index has not changed for a while.
+ * For each plate, a summary of its layout (wells, fields, dimensions) and the time it took to parse is also saved in
+ * the {@link PlateCache}, as {@value #PLATE_INDEX}.
+ */
+public class MemoPrewarmer implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger( MemoPrewarmer.class );
+
+    /**
+     * Name of the summary of each plate in its {@link PlateCache} folder
+     */
+    public static final String PLATE_INDEX = "plate.properties";
+
+    // Datasets being parsed right now, by all prewarmers
+    private static final Set<String> warming = ConcurrentHashMap.newKeySet( );
+
+    private final File folder;
+    private long settle_time = 60_000;
+    private int depth = 4;
+
+    private ScheduledExecutorService scheduler = null;
+
+    /**
+     * Creates a prewarmer for all datasets under a folder
+     * @param folder the folder where new plates arrive
+     */
+    public MemoPrewarmer( File folder ) {
+        this.folder = folder;
+    }
+
+    /**
+     * @param settle_time how long, in milliseconds, an 'Index.idx.xml' must stay unchanged before it is parsed. Default is one minute
+     * @return this prewarmer
+     */
+    public MemoPrewarmer setSettleTime( long settle_time ) {
+        this.settle_time = Math.max( 0, settle_time );
+        return this;
+    }
+
+    /**
+     * @param depth how many folders deep to look for 'Index.idx.xml' files. Default is 4
+     * @return this prewarmer
+     */
+    public MemoPrewarmer setDepth( int depth ) {
+        this.depth = Math.max( 1, depth );
+        return this;
+    }
+
+    /**
+     * Finds the datasets that need a memo
+     * @return the 'Index.idx.xml' files that have settled and have no memo yet
+     */
+    public List<File> scan( ) {
+        long now = System.currentTimeMillis( );
+        try ( Stream<Path> paths = Files.find( folder.toPath( ), depth, ( p, a ) -> a.isRegularFile( ) && p.getFileName( ).toString( ).equals( "Index.idx.xml" ) ) ) {
+            return paths.map( Path::toFile )
+                    .filter( f -> now - f.lastModified( ) >= settle_time )
+                    .filter( f -> !isWarming( f ) && !MemoCache.hasMemo( f ) )
+                    .collect( Collectors.toList( ) );
+        } catch ( IOException e ) {
+            log.warn( "Could not scan {}: {}", folder, e.getMessage( ) );
+            return Collections.emptyList( );
+        }
+    }
+
+    /**
+     * Scans the folder once and builds the memo of every dataset that needs one, in this thread
+     */
+    public void run( ) {
+        scan( ).forEach( MemoPrewarmer::prewarm );
+    }
+
+    /**
+     * Scans the folder regularly in a background thread, until {@link #close()} is called
+     * @param interval the time between the end of a scan and the start of the next one
+     * @param unit the unit of the interval
+     */
+    public synchronized void start( long interval, TimeUnit unit ) {
+        if ( scheduler != null ) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor( r -> {
+            Thread t = new Thread( r, "Operetta memo prewarmer" );
+            t.setDaemon( true );
+            return t;
+        } );
+        scheduler.scheduleWithFixedDelay( this::run, 0, interval, unit );
+        log.info( "Prewarming memos under {} every {} {}", folder, interval, unit );
+    }
+
+    /**
+     * Stops scanning. A dataset being parsed is finished first
+     */
+    @Override
+    public synchronized void close( ) {
+        if ( scheduler == null ) return;
+        scheduler.shutdown( );
+        scheduler = null;
+    }
+
+    /**
+     * Parses a dataset so that its memo is saved, and saves a summary of the plate
+     * @param id the 'Index.idx.xml' file of the dataset
+     */
+    public static void prewarm( File id ) {
+        if ( !warming.add( id.getAbsolutePath( ) ) ) return;
+
+        try {
+            IJ.log( "- Building memo for " + id.getAbsolutePath( ) );
+            Instant start = Instant.now( );
+            IFormatReader reader = OperettaManager.createReader( id.getAbsolutePath( ) );
+            long seconds = Duration.between( start, Instant.now( ) ).getSeconds( );
+
+            try {
+                writePlateIndex( id, (IMetadata) reader.getMetadataStore( ), seconds );
+            } finally {
+                reader.close( );
+            }
+            IJ.log( "- Memo for " + id.getAbsolutePath( ) + " built in " + seconds + " s." );
+        } catch ( Exception e ) {
+            log.error( "Could not build the memo of " + id + ":", e );
+        } finally {
+            warming.remove( id.getAbsolutePath( ) );
+        }
+    }
+
+    /**
+     * @param id the 'Index.idx.xml' file of the dataset
+     * @return true if a memo is being built for this dataset
+     */
+    public static boolean isWarming( File id ) {
+        return warming.contains( id.getAbsolutePath( ) );
+    }
+
+    /**
+     * Reads the plate summary saved when the memo was built
+     * @param id the 'Index.idx.xml' file of the dataset
+     * @return the summary, or null if there is none for the current state of the dataset
+     */
+    public static Properties readPlateIndex( File id ) {
+        Properties index = PlateCache.readProperties( id, PLATE_INDEX );
+        if ( !MemoCache.getFingerprint( id ).equals( index.getProperty( "fingerprint" ) ) ) return null;
+        return index;
+    }
+
+    private static void writePlateIndex( File id, IMetadata metadata, long parse_seconds ) {
+        Properties index = new Properties( );
+        index.setProperty( "fingerprint", MemoCache.getFingerprint( id ) );
+        index.setProperty( "parse.seconds", String.valueOf( parse_seconds ) );
+        index.setProperty( "plate", String.valueOf( metadata.getPlateName( 0 ) ) );
+        index.setProperty( "wells", String.valueOf( metadata.getWellCount( 0 ) ) );
+        index.setProperty( "fields", String.valueOf( metadata.getWellCount( 0 ) > 0 ? metadata.getWellSampleCount( 0, 0 ) : 0 ) );
+        index.setProperty( "size.x", String.valueOf( metadata.getPixelsSizeX( 0 ).getValue( ) ) );
+        index.setProperty( "size.y", String.valueOf( metadata.getPixelsSizeY( 0 ).getValue( ) ) );
+        index.setProperty( "size.c", String.valueOf( metadata.getPixelsSizeC( 0 ).getValue( ) ) );
+        index.setProperty( "size.z", String.valueOf( metadata.getPixelsSizeZ( 0 ).getValue( ) ) );
+        index.setProperty( "size.t", String.valueOf( metadata.getPixelsSizeT( 0 ).getValue( ) ) );
+        PlateCache.writeProperties( id, PLATE_INDEX, index );
+    }
+}
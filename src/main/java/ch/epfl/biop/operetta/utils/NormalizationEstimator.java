@@ -0,0 +1,257 @@
+package ch.epfl.biop.operetta.utils;
+
+import ch.epfl.biop.operetta.OperettaManager;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ome.xml.model.WellSample;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+/**
+ * Estimates the normalization values of a plate, so that users do not have to guess the min and max values
+ * of digital phase images before exporting them.
+ *
+ * A subset of fields, spread over the whole plate, is opened at one Z and T per channel. Each plane contributes a
+ * strided subsample of its pixels, and the low and high percentiles of each channel are computed from these samples.
+ * Results are cached per plate, in memory and in the {@link PlateCache}, so this only runs once per dataset. They are
+ * tied to the fingerprint of its 'Index.idx.xml', see {@link MemoCache#getFingerprint(File)}, and to the planes that
+ * were sampled, so a plate that is still being acquired, or another Z or T range, gets a new estimate.
+ */
+public class NormalizationEstimator {
+
+    private static final Logger log = LoggerFactory.getLogger( NormalizationEstimator.class );
+
+    private static final String CACHE_NAME = "normalization.properties";
+
+    // Maximum number of pixels kept from each plane
+    private static final int SAMPLES_PER_PLANE = 16384;
+
+    private static final Map<String, Estimate> estimates = new ConcurrentHashMap<>( );
+
+    private final OperettaManager opm;
+
+    private int n_fields = 16;
+    private int n_threads = 4;
+
+    /**
+     * Creates an estimator for the given plate
+     * @param opm the manager of the plate
+     */
+    public NormalizationEstimator( OperettaManager opm ) {
+        this.opm = opm;
+    }
+
+    /**
+     * @param n_fields how many fields, spread over the plate, are sampled. Default is 16
+     * @return this estimator
+     */
+    public NormalizationEstimator setSampledFields( int n_fields ) {
+        this.n_fields = Math.max( 1, n_fields );
+        return this;
+    }
+
+    /**
+     * @param n_threads how many planes are read in parallel. Default is 4
+     * @return this estimator
+     */
+    public NormalizationEstimator setThreads( int n_threads ) {
+        this.n_threads = Math.max( 1, n_threads );
+        return this;
+    }
+
+    /**
+     * Estimates the given percentiles of each channel in the range of the manager
+     * @param low_percentile the percentile that will become 0, between 0 and 100
+     * @param high_percentile the percentile that will become the maximum value, between 0 and 100
+     * @return the estimate, per channel
+     */
+    public Estimate estimate( double low_percentile, double high_percentile ) {
+        File id = opm.getId( );
+        HyperRange range = opm.getRange( );
+        // One plane per channel, in the middle of the Z range and at the first timepoint
+        int z = range.getRangeZ( ).get( range.getRangeZ( ).size( ) / 2 );
+        int t = range.getRangeT( ).get( 0 );
+        String fingerprint = MemoCache.getFingerprint( id );
+        String key = String.format( "%s.%s.z%d.t%d.%s-%s.f%d", fingerprint, range.getRangeC( ), z, t, low_percentile, high_percentile, n_fields ).replace( " ", "" );
+
+        Estimate estimate = estimates.get( id.getAbsolutePath( ) + key );
+        if ( estimate != null ) return estimate;
+
+        Properties cached = PlateCache.readProperties( id, CACHE_NAME );
+        estimate = Estimate.fromProperties( cached, key, opm.getRange( ).getRangeC( ) );
+
+        if ( estimate == null ) {
+            estimate = compute( z, t, low_percentile, high_percentile );
+            // Estimates of previous states of the plate will not be used again
+            cached.stringPropertyNames( ).stream( ).filter( k -> !k.startsWith( fingerprint + "." ) ).forEach( cached::remove );
+            estimate.toProperties( cached, key );
+            PlateCache.writeProperties( id, CACHE_NAME, cached );
+        } else {
+            log.info( "Using cached normalization for {}", id );
+        }
+
+        estimates.put( id.getAbsolutePath( ) + key, estimate );
+        return estimate;
+    }
+
+    private Estimate compute( int z, int t, double low_percentile, double high_percentile ) {
+        HyperRange range = opm.getRange( );
+        List<Integer> channels = range.getRangeC( );
+
+        // Spread the sampled fields over the whole plate
+        List<WellSample> all_fields = opm.getAvailableWells( ).stream( )
+                .flatMap( w -> w.copyWellSampleList( ).stream( ) )
+                .collect( Collectors.toList( ) );
+        int step = Math.max( 1, all_fields.size( ) / n_fields );
+
+        // Files are listed first, so that listing stops as soon as there are enough planes
+        List<String> planes = new ArrayList<>( );
+        for ( int i = 0; i < all_fields.size( ) && planes.size( ) < n_fields * channels.size( ); i += step ) {
+            opm.getFieldFiles( all_fields.get( i ) ).stream( )
+                    .filter( f -> {
+                        Map<String, Integer> indexes = range.getIndexes( f );
+                        return indexes.get( "Z" ) != null && indexes.get( "Z" ) == z && indexes.get( "T" ) == t && channels.contains( indexes.get( "C" ) );
+                    } )
+                    .forEach( planes::add );
+        }
+
+        log.info( "Estimating normalization from {} planes", planes.size( ) );
+
+        Map<Integer, List<float[]>> samples = new ConcurrentHashMap<>( );
+        Map<Integer, Boolean> is_float = new ConcurrentHashMap<>( );
+
+        ForkJoinPool pool = new ForkJoinPool( n_threads );
+        try {
+            pool.submit( ( ) -> planes.parallelStream( ).forEach( file -> {
+                ImageProcessor ip = TiffPlaneReader.open( file, null, opm.getIoThrottle( ) );
+                if ( ip == null ) {
+                    log.error( "Could not open {}", file );
+                    return;
+                }
+                int c = range.getIndexes( file ).get( "C" );
+                samples.computeIfAbsent( c, k -> Collections.synchronizedList( new ArrayList<>( ) ) ).add( subsample( ip ) );
+                is_float.put( c, ip instanceof FloatProcessor );
+            } ) ).get( );
+        } catch ( InterruptedException | ExecutionException e ) {
+            log.error( "Normalization estimate interrupted:", e );
+        } finally {
+            pool.shutdown( );
+        }
+
+        Estimate estimate = new Estimate( );
+        channels.forEach( c -> {
+            List<float[]> channel_samples = samples.get( c );
+            if ( channel_samples == null ) return;
+            float[] values = concatenate( channel_samples );
+            Arrays.sort( values );
+            estimate.put( c, percentile( values, low_percentile ), percentile( values, high_percentile ), is_float.get( c ) );
+        } );
+        log.info( "Normalization estimate: {}", estimate );
+        return estimate;
+    }
+
+    private static float[] subsample( ImageProcessor ip ) {
+        int n = ip.getWidth( ) * ip.getHeight( );
+        int stride = Math.max( 1, n / SAMPLES_PER_PLANE );
+        float[] values = new float[ ( n + stride - 1 ) / stride ];
+        for ( int i = 0, j = 0; i < n; i += stride, j++ ) values[ j ] = ip.getf( i );
+        return values;
+    }
+
+    private static float[] concatenate( List<float[]> arrays ) {
+        float[] all = new float[ arrays.stream( ).mapToInt( a -> a.length ).sum( ) ];
+        int position = 0;
+        for ( float[] a : arrays ) {
+            System.arraycopy( a, 0, all, position, a.length );
+            position += a.length;
+        }
+        return all;
+    }
+
+    private static double percentile( float[] sorted, double percentile ) {
+        if ( sorted.length == 0 ) return 0;
+        int index = (int) Math.round( percentile / 100.0 * ( sorted.length - 1 ) );
+        return sorted[ Math.max( 0, Math.min( sorted.length - 1, index ) ) ];
+    }
+
+    /**
+     * The low and high values estimated for each channel
+     */
+    public static class Estimate {
+        private final Map<Integer, double[]> ranges = new ConcurrentHashMap<>( );
+        private final Map<Integer, Boolean> is_float = new ConcurrentHashMap<>( );
+
+        void put( int channel, double low, double high, boolean is_float_channel ) {
+            ranges.put( channel, new double[]{ low, high } );
+            is_float.put( channel, is_float_channel );
+        }
+
+        /**
+         * @param channel the channel, 1-based
+         * @return the low and high values of the channel, or null if it was not sampled
+         */
+        public double[] getRange( int channel ) {
+            return ranges.get( channel );
+        }
+
+        /**
+         * Only 32-bit channels are normalized during export, so only they are considered, unless there are none
+         * @return the lowest low value over all channels
+         */
+        public double getMin( ) {
+            return getNormalizedRanges( ).stream( ).mapToDouble( r -> r[ 0 ] ).min( ).orElse( 0 );
+        }
+
+        /**
+         * Only 32-bit channels are normalized during export, so only they are considered, unless there are none
+         * @return the highest high value over all channels
+         */
+        public double getMax( ) {
+            return getNormalizedRanges( ).stream( ).mapToDouble( r -> r[ 1 ] ).max( ).orElse( 65535 );
+        }
+
+        private List<double[]> getNormalizedRanges( ) {
+            List<double[]> float_ranges = ranges.keySet( ).stream( ).filter( is_float::get ).map( ranges::get ).collect( Collectors.toList( ) );
+            return float_ranges.isEmpty( ) ? new ArrayList<>( ranges.values( ) ) : float_ranges;
+        }
+
+        void toProperties( Properties properties, String key ) {
+            ranges.forEach( ( c, r ) -> {
+                properties.setProperty( key + ".c" + c + ".low", String.valueOf( r[ 0 ] ) );
+                properties.setProperty( key + ".c" + c + ".high", String.valueOf( r[ 1 ] ) );
+                properties.setProperty( key + ".c" + c + ".float", String.valueOf( is_float.get( c ) ) );
+            } );
+        }
+
+        static Estimate fromProperties( Properties properties, String key, List<Integer> channels ) {
+            Estimate estimate = new Estimate( );
+            for ( Integer c : channels ) {
+                String low = properties.getProperty( key + ".c" + c + ".low" );
+                String high = properties.getProperty( key + ".c" + c + ".high" );
+                if ( low == null || high == null ) return null;
+                estimate.put( c, Double.parseDouble( low ), Double.parseDouble( high ),
+                        Boolean.parseBoolean( properties.getProperty( key + ".c" + c + ".float" ) ) );
+            }
+            return estimate;
+        }
+
+        @Override
+        public String toString( ) {
+            return ranges.entrySet( ).stream( )
+                    .map( e -> String.format( "C%d: %.3f - %.3f%s", e.getKey( ), e.getValue( )[ 0 ], e.getValue( )[ 1 ], is_float.get( e.getKey( ) ) ? " (32-bit)" : "" ) )
+                    .collect( Collectors.joining( ", " ) );
+        }
+    }
+}
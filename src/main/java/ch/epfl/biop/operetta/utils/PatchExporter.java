@@ -0,0 +1,519 @@
+package ch.epfl.biop.operetta.utils;
+
+import ch.epfl.biop.operetta.OperettaManager;
+import ij.IJ;
+import ij.process.ImageProcessor;
+import loci.formats.meta.IMetadata;
+import ome.xml.model.Well;
+import ome.xml.model.WellSample;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exports training data for machine learning: pairs of source and target patches sampled from all fields of a plate.
+ *
+ * Each plane file a field needs is read once, in the order of the files on disk, like exports do, see
+ * {@link OperettaManager#openPlane(String, PlanePool)}, and all the patches on that plane are cropped from it. Fields
+ * are sampled in parallel. Instead of one TIFF per patch, patches are gathered into chunks saved as little-endian NumPy
+ * '.npy' files of shape (patches, channels, height, width):
+ * <ul>
+ *     <li>'name-source-0000.npy', 'name-source-0001.npy', ... hold the source channels</li>
+ *     <li>'name-target-0000.npy', ... hold the target channels, at the same index as their source</li>
+ *     <li>'name-manifest.csv' gives, for each patch, its chunk, index in the chunk, well, field, plane and origin
+ *     in the field and in the well, in pixels</li>
+ * </ul>
+ * Sources and targets each have their own type, that of their channels: digital phase channels are 32-bit and
+ * fluorescence channels 16-bit, for example. The channels of the sources, or of the targets, must all have the same type.
+ *
+ * Use
+ * <pre>
+ * {@code
+ * new PatchExporter( opm, HyperRange.parseString( "1" ), HyperRange.parseString( "2" ) )
+ *         .setPatchSize( 256 )
+ *         .setPatchesPerField( 16 )
+ *         .export( save_folder, "dataset" );
+ * }
+ * </pre>
+ */
+public class PatchExporter {
+
+    private static final Logger log = LoggerFactory.getLogger( PatchExporter.class );
+
+    /**
+     * How patches are placed in each field
+     */
+    public enum Strategy {
+        /**
+         * Anywhere in the field, on a random plane of the range of the manager
+         */
+        RANDOM,
+        /**
+         * On a regular grid of non-overlapping tiles spread over the field, going through the planes of the range in turn
+         */
+        GRID
+    }
+
+    private final OperettaManager opm;
+    private final List<Integer> sources;
+    private final List<Integer> targets;
+
+    private int patch_size = 256;
+    private int patches_per_field = 8;
+    private Strategy strategy = Strategy.RANDOM;
+    private long seed = 42;
+    private int chunk_size = 256;
+    private int threads;
+
+    // Marks the end of the queue for the writer
+    private static final Patch POISON = new Patch( null, 0, 0, 0, 0, null, null );
+
+    /**
+     * Creates an exporter for a plate
+     * @param opm the manager of the plate. Its range gives the planes that can be sampled
+     * @param sources the source channels, starting at 1
+     * @param targets the target channels, starting at 1. Can be empty to only export sources
+     */
+    public PatchExporter( OperettaManager opm, List<Integer> sources, List<Integer> targets ) {
+        this.opm = opm;
+        this.sources = new ArrayList<>( sources );
+        this.targets = new ArrayList<>( targets );
+        this.threads = opm.getReaderPool( ).getSize( );
+    }
+
+    /**
+     * @param patch_size width and height of the patches, in pixels. Default is 256
+     * @return this exporter
+     */
+    public PatchExporter setPatchSize( int patch_size ) {
+        this.patch_size = Math.max( 1, patch_size );
+        return this;
+    }
+
+    /**
+     * @param patches_per_field how many patches to take from each field. Default is 8
+     * @return this exporter
+     */
+    public PatchExporter setPatchesPerField( int patches_per_field ) {
+        this.patches_per_field = Math.max( 1, patches_per_field );
+        return this;
+    }
+
+    /**
+     * @param strategy how patches are placed in each field. Default is {@link Strategy#RANDOM}
+     * @return this exporter
+     */
+    public PatchExporter setStrategy( Strategy strategy ) {
+        this.strategy = strategy;
+        return this;
+    }
+
+    /**
+     * @param seed the seed of the random placement. The same seed gives the same patches on the same plate
+     * @return this exporter
+     */
+    public PatchExporter setSeed( long seed ) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * @param chunk_size how many patches go in each '.npy' file. Default is 256
+     * @return this exporter
+     */
+    public PatchExporter setChunkSize( int chunk_size ) {
+        this.chunk_size = Math.max( 1, chunk_size );
+        return this;
+    }
+
+    /**
+     * @param threads how many fields are read at the same time. Default is the size of the reader pool of the manager
+     * @return this exporter
+     */
+    public PatchExporter setThreads( int threads ) {
+        this.threads = Math.max( 1, threads );
+        return this;
+    }
+
+    /**
+     * Samples patches from all fields of the plate and saves them
+     * @param folder where to save the chunks and the manifest
+     * @param name the prefix of all saved files
+     * @return the number of patches saved
+     */
+    public int export( File folder, String name ) {
+        folder.mkdirs( );
+        Instant start = Instant.now( );
+
+        IMetadata metadata = opm.getMetadata( );
+        HyperRange range = opm.getRange( ).confirmRange( metadata );
+
+        List<WellSample> fields = new ArrayList<>( );
+        opm.getAvailableWells( ).forEach( well -> fields.addAll( opm.getAvailableSamples( well ) ) );
+        if ( fields.isEmpty( ) ) return 0;
+
+        // The type of each channel, from its first plane, a NumPy array can only hold one
+        Map<Integer, Integer> depths = getBitDepths( fields.get( 0 ), range );
+        int source_depth = getBitDepth( sources, depths, "source" );
+        int target_depth = targets.isEmpty( ) ? 0 : getBitDepth( targets, depths, "target" );
+        if ( source_depth < 0 || target_depth < 0 ) return 0;
+
+        log.info( "Sampling {} {} patches of {} px from {} fields", patches_per_field, strategy, patch_size, fields.size( ) );
+
+        BlockingQueue<Patch> queue = new ArrayBlockingQueue<>( chunk_size );
+        ChunkWriter writer = new ChunkWriter( folder, name, source_depth, target_depth, queue );
+        Thread writer_thread = new Thread( writer, "Operetta patch writer" );
+        writer_thread.start( );
+
+        AtomicInteger done = new AtomicInteger( 0 );
+        ForkJoinPool pool = new ForkJoinPool( threads );
+        try {
+            pool.submit( ( ) -> fields.parallelStream( ).forEach( field -> {
+                readPatches( field, samplePatches( field, range ), range, source_depth, target_depth ).forEach( patch -> put( queue, patch ) );
+                IJ.showProgress( done.incrementAndGet( ), fields.size( ) );
+            } ) ).get( );
+        } catch ( InterruptedException e ) {
+            log.error( "Patch export interrupted:", e );
+        } catch ( ExecutionException e ) {
+            log.error( "Patch export error:", e );
+        } finally {
+            pool.shutdown( );
+            put( queue, POISON );
+        }
+
+        try {
+            writer_thread.join( );
+        } catch ( InterruptedException e ) {
+            log.error( "Interrupted while waiting for the patch writer:", e );
+        }
+
+        IJ.log( "- " + writer.count + " patches saved in " + writer.chunks + " chunks in " + Duration.between( start, Instant.now( ) ).getSeconds( ) + " s." );
+        return writer.count;
+    }
+
+    /**
+     * @param field a field of the plate
+     * @param range the range of the manager, its first plane is read
+     * @return the bit depth of each requested channel, or nothing for those that could not be read
+     */
+    private Map<Integer, Integer> getBitDepths( WellSample field, HyperRange range ) {
+        Map<Integer, Integer> depths = new HashMap<>( );
+        Set<Integer> channels = new LinkedHashSet<>( sources );
+        channels.addAll( targets );
+        for ( String file : opm.getFieldFiles( field ) ) {
+            Map<String, Integer> indexes = range.getIndexes( file );
+            int c = indexes.getOrDefault( "C", -1 );
+            if ( !channels.contains( c ) || depths.containsKey( c ) ) continue;
+            if ( indexes.get( "Z" ).equals( range.getRangeZ( ).get( 0 ) ) && indexes.get( "T" ).equals( range.getRangeT( ).get( 0 ) ) ) {
+                ImageProcessor ip = opm.openPlane( file, null );
+                if ( ip != null ) depths.put( c, ip.getBitDepth( ) );
+            }
+        }
+        return depths;
+    }
+
+    /**
+     * @param channels the channels of the sources or of the targets
+     * @param depths the bit depth of each channel
+     * @param what "source" or "target", for the error message
+     * @return the bit depth all these channels have, or -1 if they differ or one of them could not be read
+     */
+    private static int getBitDepth( List<Integer> channels, Map<Integer, Integer> depths, String what ) {
+        Set<Integer> found = new LinkedHashSet<>( );
+        for ( int c : channels ) {
+            if ( !depths.containsKey( c ) ) {
+                log.error( "Could not read {} channel {}", what, c );
+                IJ.log( "Could not read " + what + " channel " + c );
+                return -1;
+            }
+            found.add( depths.get( c ) );
+        }
+        if ( found.size( ) > 1 ) {
+            log.error( "The {} channels {} mix bit depths {}, export them separately", what, channels, found );
+            IJ.log( "The " + what + " channels " + channels + " mix bit depths " + found + ", export them separately" );
+            return -1;
+        }
+        return found.iterator( ).next( );
+    }
+
+    /**
+     * Places the patches of a field
+     * @param field the field to sample
+     * @param range the planes that can be sampled
+     * @return the patches, not read yet
+     */
+    private List<Patch> samplePatches( WellSample field, HyperRange range ) {
+        List<Patch> patches = new ArrayList<>( );
+        int series = field.getIndex( ).getValue( );
+        int width = opm.getMetadata( ).getPixelsSizeX( series ).getValue( );
+        int height = opm.getMetadata( ).getPixelsSizeY( series ).getValue( );
+
+        if ( width < patch_size || height < patch_size ) {
+            log.warn( "Field {} is smaller than a patch, skipped", field.getID( ) );
+            return patches;
+        }
+
+        List<Integer> range_z = range.getRangeZ( );
+        List<Integer> range_t = range.getRangeT( );
+
+        if ( strategy == Strategy.GRID ) {
+            int nx = width / patch_size;
+            int ny = height / patch_size;
+            int tiles = nx * ny;
+            int count = Math.min( patches_per_field, tiles );
+            for ( int i = 0; i < count; i++ ) {
+                // Spread the tiles over the whole field when there are more tiles than patches
+                int tile = (int) ( (long) i * tiles / count );
+                int plane = i % ( range_z.size( ) * range_t.size( ) );
+                patches.add( new Patch( field, ( tile % nx ) * patch_size, ( tile / nx ) * patch_size,
+                        range_z.get( plane % range_z.size( ) ), range_t.get( plane / range_z.size( ) ), null, null ) );
+            }
+        } else {
+            // One generator per field, so the patches do not depend on the order fields are read in
+            Random random = new Random( seed * 31 + series );
+            for ( int i = 0; i < patches_per_field; i++ ) {
+                patches.add( new Patch( field, random.nextInt( width - patch_size + 1 ), random.nextInt( height - patch_size + 1 ),
+                        range_z.get( random.nextInt( range_z.size( ) ) ), range_t.get( random.nextInt( range_t.size( ) ) ), null, null ) );
+            }
+        }
+        return patches;
+    }
+
+    /**
+     * Reads the planes of a field that its patches are on, each file once and in the order they are on disk, and crops
+     * the patches from them
+     * @param field the field
+     * @param patches the patches of the field, their data is filled in
+     * @param range the range the patches were placed in, gives the plane of each file
+     * @param source_depth the bit depth of the source channels
+     * @param target_depth the bit depth of the target channels
+     * @return the patches whose channels could all be read
+     */
+    private List<Patch> readPatches( WellSample field, List<Patch> patches, HyperRange range, int source_depth, int target_depth ) {
+        // The patches on each plane, by Z and T
+        Map<String, List<Patch>> planes = new HashMap<>( );
+        for ( Patch patch : patches ) {
+            patch.source = new Object[ sources.size( ) ];
+            patch.target = new Object[ targets.size( ) ];
+            planes.computeIfAbsent( patch.z + "," + patch.t, k -> new ArrayList<>( ) ).add( patch );
+        }
+
+        List<String> files = new ArrayList<>( );
+        for ( String file : opm.getFieldFiles( field ) ) {
+            Map<String, Integer> indexes = range.getIndexes( file );
+            int c = indexes.getOrDefault( "C", -1 );
+            if ( ( sources.contains( c ) || targets.contains( c ) ) && planes.containsKey( indexes.get( "Z" ) + "," + indexes.get( "T" ) ) )
+                files.add( file );
+        }
+
+        for ( String file : ReadScheduler.order( files ) ) {
+            Map<String, Integer> indexes = range.getIndexes( file );
+            ImageProcessor ip = opm.openPlane( file, null );
+            if ( ip == null ) {
+                log.error( "Could not read {}", file );
+                continue;
+            }
+            int c = indexes.get( "C" );
+            for ( Patch patch : planes.get( indexes.get( "Z" ) + "," + indexes.get( "T" ) ) ) {
+                ip.setRoi( patch.x, patch.y, patch_size, patch_size );
+                Object pixels = ip.crop( ).getPixels( );
+                if ( sources.contains( c ) && ip.getBitDepth( ) == source_depth ) patch.source[ sources.indexOf( c ) ] = pixels;
+                if ( targets.contains( c ) && ip.getBitDepth( ) == target_depth ) patch.target[ targets.indexOf( c ) ] = pixels;
+            }
+        }
+
+        List<Patch> read = new ArrayList<>( );
+        for ( Patch patch : patches ) {
+            if ( isRead( patch.source ) && isRead( patch.target ) ) read.add( patch );
+            else log.warn( "Patch of field {} at ({}, {}) is missing channels, skipped", field.getID( ), patch.x, patch.y );
+        }
+        return read;
+    }
+
+    private static boolean isRead( Object[] channels ) {
+        for ( Object channel : channels ) if ( channel == null ) return false;
+        return true;
+    }
+
+    private static void put( BlockingQueue<Patch> queue, Patch patch ) {
+        try {
+            queue.put( patch );
+        } catch ( InterruptedException e ) {
+            Thread.currentThread( ).interrupt( );
+        }
+    }
+
+    /**
+     * A patch to export, with its origin and, once read, its pixels per channel
+     */
+    private static class Patch {
+        final WellSample field;
+        final int x, y, z, t;
+        Object[] source;
+        Object[] target;
+
+        Patch( WellSample field, int x, int y, int z, int t, Object[] source, Object[] target ) {
+            this.field = field;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.t = t;
+            this.source = source;
+            this.target = target;
+        }
+    }
+
+    /**
+     * Gathers the patches into chunks and writes each chunk once full, along with the manifest
+     */
+    private class ChunkWriter implements Runnable {
+        private final File folder;
+        private final String name;
+        private final String source_descr;
+        private final String target_descr;
+        private final BlockingQueue<Patch> queue;
+        private final List<Patch> chunk = new ArrayList<>( );
+
+        int count = 0;
+        int chunks = 0;
+
+        ChunkWriter( File folder, String name, int source_depth, int target_depth, BlockingQueue<Patch> queue ) {
+            this.folder = folder;
+            this.name = name;
+            this.source_descr = getDescr( source_depth );
+            this.target_descr = target_depth > 0 ? getDescr( target_depth ) : null;
+            this.queue = queue;
+        }
+
+        @Override
+        public void run( ) {
+            try ( BufferedWriter manifest = Files.newBufferedWriter( new File( folder, name + "-manifest.csv" ).toPath( ), StandardCharsets.UTF_8 ) ) {
+                manifest.write( "patch,chunk,index,well,row,column,field,series,z,t,x,y,well_x,well_y\n" );
+
+                while ( true ) {
+                    Patch patch;
+                    try {
+                        patch = queue.take( );
+                    } catch ( InterruptedException e ) {
+                        log.error( "Patch writer interrupted:", e );
+                        break;
+                    }
+                    if ( patch == POISON ) break;
+
+                    Well well = patch.field.getWell( );
+                    WellLayout layout = opm.getLayout( well );
+                    int slot = layout.indexOf( patch.field );
+                    manifest.write( String.format( "%d,%d,%d,%s,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d\n",
+                            count, chunks, chunk.size( ), well.getID( ), well.getRow( ).getValue( ) + 1, well.getColumn( ).getValue( ) + 1,
+                            slot + 1, patch.field.getIndex( ).getValue( ), patch.z, patch.t, patch.x, patch.y,
+                            layout.getX( slot ) - layout.getOrigin( ).x + patch.x, layout.getY( slot ) - layout.getOrigin( ).y + patch.y ) );
+
+                    chunk.add( patch );
+                    count++;
+                    if ( chunk.size( ) == chunk_size ) flush( );
+                }
+                flush( );
+            } catch ( IOException e ) {
+                log.error( "Could not write the patches:", e );
+                // Keep taking patches so that the readers do not block forever
+                try {
+                    while ( queue.take( ) != POISON ) chunk.clear( );
+                } catch ( InterruptedException ie ) {
+                    Thread.currentThread( ).interrupt( );
+                }
+            }
+        }
+
+        private void flush( ) throws IOException {
+            if ( chunk.isEmpty( ) ) return;
+            String index = String.format( "%04d", chunks );
+            writeNpy( new File( folder, name + "-source-" + index + ".npy" ), sources.size( ), true );
+            if ( !targets.isEmpty( ) )
+                writeNpy( new File( folder, name + "-target-" + index + ".npy" ), targets.size( ), false );
+            log.debug( "Chunk {} written with {} patches", index, chunk.size( ) );
+            chunk.clear( );
+            chunks++;
+        }
+
+        /**
+         * Writes the current chunk as a NumPy array of shape (patches, channels, height, width), see
+         * https://numpy.org/doc/stable/reference/generated/numpy.lib.format.html
+         */
+        private void writeNpy( File file, int channels, boolean is_source ) throws IOException {
+            String header = "{'descr': '" + ( is_source ? source_descr : target_descr ) + "', 'fortran_order': False, 'shape': (" + chunk.size( ) + ", " + channels + ", " + patch_size + ", " + patch_size + "), }";
+            // Magic string, version and header length take 10 bytes, the header is padded so the data starts on 64 bytes
+            int padding = ( 64 - ( 10 + header.length( ) + 1 ) % 64 ) % 64;
+            StringBuilder padded = new StringBuilder( header );
+            for ( int i = 0; i < padding; i++ ) padded.append( ' ' );
+            padded.append( '\n' );
+
+            try ( OutputStream out = new BufferedOutputStream( new FileOutputStream( file ), 1 << 20 ) ) {
+                out.write( new byte[]{ (byte) 0x93, 'N', 'U', 'M', 'P', 'Y', 1, 0 } );
+                out.write( padded.length( ) & 0xFF );
+                out.write( ( padded.length( ) >> 8 ) & 0xFF );
+                out.write( padded.toString( ).getBytes( StandardCharsets.US_ASCII ) );
+                for ( Patch patch : chunk )
+                    for ( Object channel : is_source ? patch.source : patch.target ) out.write( toBytes( channel ) );
+            }
+        }
+
+        /**
+         * @param pixels a byte[], short[] or float[]
+         * @return its values as little-endian bytes
+         */
+        private byte[] toBytes( Object pixels ) {
+            if ( pixels instanceof byte[] ) return (byte[]) pixels;
+            if ( pixels instanceof short[] ) {
+                short[] values = (short[]) pixels;
+                ByteBuffer bytes = ByteBuffer.allocate( values.length * 2 ).order( ByteOrder.LITTLE_ENDIAN );
+                bytes.asShortBuffer( ).put( values );
+                return bytes.array( );
+            }
+            float[] values = (float[]) pixels;
+            ByteBuffer bytes = ByteBuffer.allocate( values.length * 4 ).order( ByteOrder.LITTLE_ENDIAN );
+            bytes.asFloatBuffer( ).put( values );
+            return bytes.array( );
+        }
+    }
+
+    /**
+     * @param bit_depth the bit depth of ImageJ pixels: 8, 16 or 32
+     * @return the NumPy type description of these pixels, in little-endian order
+     */
+    private static String getDescr( int bit_depth ) {
+        switch ( bit_depth ) {
+            case 8:
+                return "|u1";
+            case 16:
+                return "<u2";
+            case 32:
+                return "<f4";
+            default:
+                throw new IllegalArgumentException( "Unsupported bit depth " + bit_depth );
+        }
+    }
+}
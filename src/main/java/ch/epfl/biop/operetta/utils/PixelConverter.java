@@ -0,0 +1,172 @@
+package ch.epfl.biop.operetta.utils;
+
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+
+/**
+ * Converts pixel arrays between 8-bit, 16-bit and 32-bit in a single pass, straight into an existing destination array.
+ * No intermediate processor is created, which matters when this is done for every plane of a plate.
+ *
+ * When the destination has fewer bits than a 32-bit source (digital phase images exported as 16-bit, for example),
+ * the values between min and max are rescaled to the full range of the destination, like
+ * {@link ImageProcessor#convertToShort(boolean)} does with the display range. The min and max are only meant for these
+ * images, 16-bit sources exported as 8-bit have their full range, 0 to 65535, rescaled to 0 to 255 instead.
+ * Otherwise values are copied as they are.
+ *
+ * {@link #convertRegion(Object, int, int, Rectangle, int, Object, int, int, int, int, double, double)} also crops and
+ * downscales while converting, so that a decoded plane goes into its destination without any intermediate processor.
+ */
+public class PixelConverter {
+
+    private PixelConverter( ) {
+    }
+
+    /**
+     * Converts the pixels of a processor into the destination array
+     * @param ip the source processor
+     * @param dst a byte[], short[] or float[] of at least the size of the processor
+     * @param min the 32-bit source value that becomes 0 when the bit depth is reduced
+     * @param max the 32-bit source value that becomes the maximum of the destination when the bit depth is reduced
+     */
+    public static void convert( ImageProcessor ip, Object dst, double min, double max ) {
+        convert( ip.getPixels( ), 0, dst, 0, ip.getWidth( ) * ip.getHeight( ), min, max );
+    }
+
+    /**
+     * Converts a run of pixels from the source array into the destination array
+     * @param src a byte[], short[] or float[]
+     * @param src_offset index of the first pixel to read
+     * @param dst a byte[], short[] or float[]
+     * @param dst_offset index of the first pixel to write
+     * @param length the number of pixels to convert
+     * @param min the 32-bit source value that becomes 0 when the bit depth is reduced
+     * @param max the 32-bit source value that becomes the maximum of the destination when the bit depth is reduced
+     */
+    public static void convert( Object src, int src_offset, Object dst, int dst_offset, int length, double min, double max ) {
+        convert( src, src_offset, 1, dst, dst_offset, length, min, max );
+    }
+
+    /**
+     * Crops, downscales and converts a plane in a single pass, straight into a destination plane.
+     * Downscaling keeps the first pixel of every block of downscale x downscale pixels, like
+     * {@link ImageProcessor#resize(int, int)} without interpolation
+     * @param src a byte[], short[] or float[]
+     * @param src_width the width of the source plane
+     * @param src_height the height of the source plane
+     * @param crop the region of the source to read, null for the whole plane. It is clipped to the source
+     * @param downscale the downscale factor
+     * @param dst a byte[], short[] or float[]
+     * @param dst_width the width of the destination plane
+     * @param dst_height the height of the destination plane
+     * @param dst_x where the left of the region goes in the destination
+     * @param dst_y where the top of the region goes in the destination. Whatever falls outside of the destination is left out
+     * @param min the 32-bit source value that becomes 0 when the bit depth is reduced
+     * @param max the 32-bit source value that becomes the maximum of the destination when the bit depth is reduced
+     */
+    public static void convertRegion( Object src, int src_width, int src_height, Rectangle crop, int downscale,
+                                      Object dst, int dst_width, int dst_height, int dst_x, int dst_y, double min, double max ) {
+        Rectangle region = new Rectangle( 0, 0, src_width, src_height );
+        if ( crop != null ) region = region.intersection( crop );
+        if ( region.isEmpty( ) ) return;
+
+        int width = region.width / downscale;
+        int height = region.height / downscale;
+
+        // Clip to the destination
+        int x0 = Math.max( 0, -dst_x );
+        int x1 = Math.min( width, dst_width - dst_x );
+        int y0 = Math.max( 0, -dst_y );
+        int y1 = Math.min( height, dst_height - dst_y );
+        if ( x1 <= x0 ) return;
+
+        for ( int y = y0; y < y1; y++ ) {
+            int src_offset = ( region.y + y * downscale ) * src_width + region.x + x0 * downscale;
+            int dst_offset = ( dst_y + y ) * dst_width + dst_x + x0;
+            convert( src, src_offset, downscale, dst, dst_offset, x1 - x0, min, max );
+        }
+    }
+
+    /**
+     * Converts a run of pixels, reading every step-th pixel of the source
+     */
+    private static void convert( Object src, int src_offset, int step, Object dst, int dst_offset, int length, double min, double max ) {
+
+        // Same type, nothing to convert
+        if ( src.getClass( ) == dst.getClass( ) ) {
+            if ( step == 1 ) {
+                System.arraycopy( src, src_offset, dst, dst_offset, length );
+            } else if ( src instanceof short[] ) {
+                short[] s = (short[]) src, d = (short[]) dst;
+                for ( int i = 0; i < length; i++ ) d[ dst_offset + i ] = s[ src_offset + i * step ];
+            } else if ( src instanceof float[] ) {
+                float[] s = (float[]) src, d = (float[]) dst;
+                for ( int i = 0; i < length; i++ ) d[ dst_offset + i ] = s[ src_offset + i * step ];
+            } else {
+                byte[] s = (byte[]) src, d = (byte[]) dst;
+                for ( int i = 0; i < length; i++ ) d[ dst_offset + i ] = s[ src_offset + i * step ];
+            }
+            return;
+        }
+
+        if ( dst instanceof float[] ) {
+            float[] d = (float[]) dst;
+            if ( src instanceof short[] ) {
+                short[] s = (short[]) src;
+                for ( int i = 0; i < length; i++ ) d[ dst_offset + i ] = s[ src_offset + i * step ] & 0xffff;
+            } else {
+                byte[] s = (byte[]) src;
+                for ( int i = 0; i < length; i++ ) d[ dst_offset + i ] = s[ src_offset + i * step ] & 0xff;
+            }
+            return;
+        }
+
+        if ( dst instanceof short[] ) {
+            short[] d = (short[]) dst;
+            if ( src instanceof float[] ) {
+                float[] s = (float[]) src;
+                double scale = 65535.0 / ( max - min );
+                for ( int i = 0; i < length; i++ ) d[ dst_offset + i ] = (short) clamp( ( s[ src_offset + i * step ] - min ) * scale + 0.5, 65535 );
+            } else {
+                byte[] s = (byte[]) src;
+                for ( int i = 0; i < length; i++ ) d[ dst_offset + i ] = (short) ( s[ src_offset + i * step ] & 0xff );
+            }
+            return;
+        }
+
+        byte[] d = (byte[]) dst;
+        if ( src instanceof float[] ) {
+            float[] s = (float[]) src;
+            double scale = 255.0 / ( max - min );
+            for ( int i = 0; i < length; i++ ) d[ dst_offset + i ] = (byte) clamp( ( s[ src_offset + i * step ] - min ) * scale + 0.5, 255 );
+        } else {
+            // The normalization is the range of phase images, fluorescence would saturate with it
+            short[] s = (short[]) src;
+            double scale = 255.0 / 65535.0;
+            for ( int i = 0; i < length; i++ ) d[ dst_offset + i ] = (byte) clamp( ( s[ src_offset + i * step ] & 0xffff ) * scale + 0.5, 255 );
+        }
+    }
+
+    private static int clamp( double value, int max ) {
+        if ( value < 0 ) return 0;
+        if ( value > max ) return max;
+        return (int) value;
+    }
+
+    /**
+     * Creates an empty pixel array for the given bit depth
+     * @param bit_depth 8, 16 or 32
+     * @param size the number of pixels
+     * @return a byte[], short[] or float[]
+     */
+    public static Object createPixels( int bit_depth, int size ) {
+        switch ( bit_depth ) {
+            case 8:
+                return new byte[ size ];
+            case 32:
+                return new float[ size ];
+            default:
+                return new short[ size ];
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package ch.epfl.biop.operetta.utils;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reuses the pixel arrays of planes that only live for a short time, like the planes of a field before they are
+ * copied into the stitched well. Allocating a new plane for every file of a plate keeps the garbage collector busy,
+ * reusing them does not.
+ *
+ * Each thread keeps a few arrays of its own, so that taking and giving back an array usually needs no synchronization.
+ * Arrays given back by a thread whose own cache is full go to a shared queue, bounded in bytes, where any thread can
+ * take them. Arrays are cleared when they are reused, so a plane whose file is missing stays black.
+ *
+ * Use
+ * <pre>
+ * {@code
+ * short[] plane = (short[]) pool.get( 16, width * height );
+ * ...
+ * pool.release( plane );
+ * }
+ * </pre>
+ */
+public class PlanePool {
+
+    // Arrays kept by each thread, per bit depth and size
+    private static final int LOCAL_CAPACITY = 4;
+
+    private final long max_shared_bytes;
+    private final AtomicLong shared_bytes = new AtomicLong( 0 );
+
+    private final ThreadLocal<Map<Long, Deque<Object>>> local = ThreadLocal.withInitial( HashMap::new );
+    private final Map<Long, Queue<Object>> shared = new ConcurrentHashMap<>( );
+
+    // Metrics
+    private final AtomicLong created = new AtomicLong( 0 );
+    private final AtomicLong reused = new AtomicLong( 0 );
+
+    /**
+     * Creates a pool
+     * @param max_shared_bytes how many bytes of arrays the shared queue can hold, on top of what the threads keep
+     */
+    public PlanePool( long max_shared_bytes ) {
+        this.max_shared_bytes = max_shared_bytes;
+    }
+
+    /**
+     * Returns a cleared pixel array, reused if possible
+     * @param bit_depth 8, 16 or 32
+     * @param size the number of pixels
+     * @return a byte[], short[] or float[] of exactly this size, filled with zeros
+     */
+    public Object get( int bit_depth, int size ) {
+        long key = key( bit_depth, size );
+
+        Deque<Object> cache = local.get( ).get( key );
+        Object pixels = cache != null ? cache.pollFirst( ) : null;
+
+        if ( pixels == null ) {
+            Queue<Object> queue = shared.get( key );
+            pixels = queue != null ? queue.poll( ) : null;
+            if ( pixels != null ) shared_bytes.addAndGet( -bytes( bit_depth, size ) );
+        }
+
+        if ( pixels == null ) {
+            created.incrementAndGet( );
+            return PixelConverter.createPixels( bit_depth, size );
+        }
+
+        reused.incrementAndGet( );
+        clear( pixels );
+        return pixels;
+    }
+
+    /**
+     * Gives an array back to the pool. It must not be used any more by the caller
+     * @param pixels a byte[], short[] or float[], null is ignored
+     */
+    public void release( Object pixels ) {
+        if ( pixels == null ) return;
+        int bit_depth = getBitDepth( pixels );
+        int size = getSize( pixels );
+        long key = key( bit_depth, size );
+
+        Deque<Object> cache = local.get( ).computeIfAbsent( key, k -> new ArrayDeque<>( LOCAL_CAPACITY ) );
+        if ( cache.size( ) < LOCAL_CAPACITY ) {
+            cache.addFirst( pixels );
+            return;
+        }
+
+        // Otherwise share it if there is room, or leave it to the garbage collector
+        long bytes = bytes( bit_depth, size );
+        if ( shared_bytes.addAndGet( bytes ) <= max_shared_bytes ) {
+            shared.computeIfAbsent( key, k -> new ConcurrentLinkedQueue<>( ) ).offer( pixels );
+        } else {
+            shared_bytes.addAndGet( -bytes );
+        }
+    }
+
+    /**
+     * @return the number of arrays that had to be allocated
+     */
+    public long getCreated( ) {
+        return created.get( );
+    }
+
+    /**
+     * @return the number of arrays that were reused instead of allocated
+     */
+    public long getReused( ) {
+        return reused.get( );
+    }
+
+    @Override
+    public String toString( ) {
+        return String.format( "Plane pool: %d planes allocated, %d reused, %.1f MB shared", created.get( ), reused.get( ), shared_bytes.get( ) / 1024.0 / 1024.0 );
+    }
+
+    private static long key( int bit_depth, int size ) {
+        return ( (long) bit_depth << 32 ) | size;
+    }
+
+    private static long bytes( int bit_depth, int size ) {
+        return (long) size * ( bit_depth / 8 );
+    }
+
+    private static int getBitDepth( Object pixels ) {
+        if ( pixels instanceof byte[] ) return 8;
+        if ( pixels instanceof short[] ) return 16;
+        if ( pixels instanceof float[] ) return 32;
+        throw new IllegalArgumentException( "Unsupported pixels " + pixels.getClass( ) );
+    }
+
+    private static int getSize( Object pixels ) {
+        if ( pixels instanceof byte[] ) return ( (byte[]) pixels ).length;
+        if ( pixels instanceof short[] ) return ( (short[]) pixels ).length;
+        return ( (float[]) pixels ).length;
+    }
+
+    private static void clear( Object pixels ) {
+        if ( pixels instanceof byte[] ) Arrays.fill( (byte[]) pixels, (byte) 0 );
+        else if ( pixels instanceof short[] ) Arrays.fill( (short[]) pixels, (short) 0 );
+        else Arrays.fill( (float[]) pixels, 0f );
+    }
+}
@@ -0,0 +1,104 @@
+package ch.epfl.biop.operetta.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Gives each Operetta dataset its own folder in a local cache, to keep things that are expensive to compute
+ * (normalization values, thumbnails...) between sessions.
+ *
+ * The acquisition folders are often read-only, so nothing is written next to the data. Instead, the cache folder
+ * of a plate is named after the plate folder and a hash of the absolute path of its 'Index.idx.xml' file.
+ * By default the cache lives in the '.operetta-cache' folder of the user's home.
+ */
+public class PlateCache {
+
+    private static final Logger log = LoggerFactory.getLogger( PlateCache.class );
+
+    private static File root = new File( System.getProperty( "user.home" ), ".operetta-cache" );
+
+    private PlateCache( ) {
+    }
+
+    /**
+     * Changes the folder where all plate caches are kept
+     * @param cache_root the new root folder
+     */
+    public static void setRoot( File cache_root ) {
+        root = cache_root;
+    }
+
+    /**
+     * @return the folder where all plate caches are kept
+     */
+    public static File getRoot( ) {
+        return root;
+    }
+
+    /**
+     * Returns the cache folder of a plate, and creates it if needed
+     * @param id the 'Index.idx.xml' file of the dataset
+     * @return the cache folder for this dataset
+     */
+    public static File getFolder( File id ) {
+        File dataset = id.getAbsoluteFile( );
+        String name = dataset.getParentFile( ) != null ? dataset.getParentFile( ).getName( ) : dataset.getName( );
+        // Avoid anything that would not make a valid folder name
+        name = name.replaceAll( "[^A-Za-z0-9._-]", "_" );
+        File folder = new File( root, name + "-" + Integer.toHexString( dataset.getPath( ).hashCode( ) ) );
+        folder.mkdirs( );
+        return folder;
+    }
+
+    /**
+     * Returns a file in the cache folder of a plate
+     * @param id the 'Index.idx.xml' file of the dataset
+     * @param name the name of the file in the cache
+     * @return the file, which might not exist yet
+     */
+    public static File getFile( File id, String name ) {
+        return new File( getFolder( id ), name );
+    }
+
+    /**
+     * Reads properties that were cached for a plate
+     * @param id the 'Index.idx.xml' file of the dataset
+     * @param name the name of the properties file
+     * @return the cached properties, empty if there are none
+     */
+    public static Properties readProperties( File id, String name ) {
+        Properties properties = new Properties( );
+        File file = getFile( id, name );
+        if ( !file.exists( ) ) return properties;
+
+        try ( InputStream in = new FileInputStream( file ) ) {
+            properties.load( in );
+        } catch ( IOException e ) {
+            log.warn( "Could not read cached {}: {}", file, e.getMessage( ) );
+        }
+        return properties;
+    }
+
+    /**
+     * Saves properties in the cache of a plate
+     * @param id the 'Index.idx.xml' file of the dataset
+     * @param name the name of the properties file
+     * @param properties the properties to save
+     */
+    public static void writeProperties( File id, String name, Properties properties ) {
+        File file = getFile( id, name );
+        try ( OutputStream out = new FileOutputStream( file ) ) {
+            properties.store( out, "Operetta Importer cache for " + id.getAbsolutePath( ) );
+        } catch ( IOException e ) {
+            log.warn( "Could not write cached {}: {}", file, e.getMessage( ) );
+        }
+    }
+}
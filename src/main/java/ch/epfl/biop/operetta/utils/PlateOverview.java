@@ -0,0 +1,217 @@
+package ch.epfl.biop.operetta.utils;
+
+import ch.epfl.biop.operetta.OperettaManager;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.Opener;
+import ij.plugin.HyperStackConverter;
+import ij.process.Blitter;
+import ij.process.ImageProcessor;
+import loci.formats.meta.IMetadata;
+import ome.xml.model.Well;
+import ome.xml.model.WellSample;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.*;
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+/**
+ * Builds a small overview of a whole plate: every field of every well is reduced to a thumbnail, which is placed
+ * at its position in its well, and wells are laid out on the plate grid. One plane per channel is used, in the middle
+ * of the Z range and at the first timepoint.
+ *
+ * The thumbnails of each well are kept as a small TIFF stack in the {@link PlateCache}, so reopening the plate
+ * only reads these files instead of the full resolution data.
+ */
+public class PlateOverview {
+
+    private static final Logger log = LoggerFactory.getLogger( PlateOverview.class );
+
+    private final OperettaManager opm;
+    private final IMetadata metadata;
+
+    private int thumbnail_size = 64;
+    private int n_threads = 4;
+
+    // Space between wells, in pixels of the overview
+    private static final int GAP = 4;
+
+    /**
+     * Creates an overview generator for a plate
+     * @param opm the manager of the plate
+     */
+    public PlateOverview( OperettaManager opm ) {
+        this.opm = opm;
+        this.metadata = opm.getMetadata( );
+    }
+
+    /**
+     * @param thumbnail_size the width of a field in the overview, in pixels. Default is 64
+     * @return this generator
+     */
+    public PlateOverview setThumbnailSize( int thumbnail_size ) {
+        this.thumbnail_size = Math.max( 1, thumbnail_size );
+        return this;
+    }
+
+    /**
+     * @param n_threads how many wells are processed in parallel. Default is 4
+     * @return this generator
+     */
+    public PlateOverview setThreads( int n_threads ) {
+        this.n_threads = Math.max( 1, n_threads );
+        return this;
+    }
+
+    /**
+     * Builds the overview of the whole plate
+     * @return a multichannel ImagePlus with all the wells laid out on the plate grid
+     */
+    public ImagePlus getOverview( ) {
+        HyperRange range = opm.getRange( );
+        List<Integer> channels = range.getRangeC( );
+        int z = range.getRangeZ( ).get( range.getRangeZ( ).size( ) / 2 );
+        int t = range.getRangeT( ).get( 0 );
+
+        List<Well> wells = opm.getAvailableWells( );
+
+        // Size of a field and of a well in the overview
+        int field_width = metadata.getPixelsSizeX( 0 ).getValue( );
+        int field_height = metadata.getPixelsSizeY( 0 ).getValue( );
+        double scale = (double) thumbnail_size / field_width;
+        int thumb_width = thumbnail_size;
+        int thumb_height = Math.max( 1, (int) Math.round( field_height * scale ) );
+
+        int cell_width = 0, cell_height = 0;
+        int n_rows = 0, n_columns = 0;
+        for ( Well well : wells ) {
+            Dimension extent = opm.getLayout( well ).getExtent( );
+            cell_width = Math.max( cell_width, (int) Math.ceil( extent.width * scale ) );
+            cell_height = Math.max( cell_height, (int) Math.ceil( extent.height * scale ) );
+            n_rows = Math.max( n_rows, well.getRow( ).getValue( ) + 1 );
+            n_columns = Math.max( n_columns, well.getColumn( ).getValue( ) + 1 );
+        }
+
+        final int cw = cell_width + GAP;
+        final int ch = cell_height + GAP;
+        ImageStack overview = ImageStack.create( n_columns * cw, n_rows * ch, channels.size( ), 16 );
+        for ( int c = 0; c < channels.size( ); c++ ) overview.setSliceLabel( "C" + channels.get( c ), c + 1 );
+
+        // Thumbnails depend on the channels and on the normalization of phase images, not only on their size
+        String cache_name = String.format( "thumbnails-%d-z%d-t%d-c%s-n%s_%s", thumbnail_size, z, t,
+                channels.stream( ).map( String::valueOf ).collect( Collectors.joining( "_" ) ), opm.getNorm_min( ), opm.getNorm_max( ) );
+
+        ForkJoinPool pool = new ForkJoinPool( n_threads );
+        try {
+            pool.submit( ( ) -> wells.parallelStream( ).forEach( well -> {
+                List<WellSample> fields = well.copyWellSampleList( );
+                ImageStack thumbnails = getThumbnails( well, fields, channels, z, t, thumb_width, thumb_height, cache_name );
+
+                WellLayout layout = opm.getLayout( well );
+                Point topleft = layout.getOrigin( );
+                int x0 = well.getColumn( ).getValue( ) * cw;
+                int y0 = well.getRow( ).getValue( ) * ch;
+
+                for ( int f = 0; f < fields.size( ); f++ ) {
+                    int slot = layout.indexOf( fields.get( f ) );
+                    if ( slot < 0 ) continue;
+                    int x = x0 + (int) Math.round( ( layout.getX( slot ) - topleft.x ) * scale );
+                    int y = y0 + (int) Math.round( ( layout.getY( slot ) - topleft.y ) * scale );
+                    for ( int c = 0; c < channels.size( ); c++ ) {
+                        // Wells do not overlap in the overview, so they can be copied in parallel
+                        overview.getProcessor( c + 1 ).copyBits( thumbnails.getProcessor( f * channels.size( ) + c + 1 ), x, y, Blitter.COPY );
+                    }
+                }
+            } ) ).get( );
+        } catch ( InterruptedException | ExecutionException e ) {
+            log.error( "Plate overview interrupted:", e );
+        } finally {
+            pool.shutdown( );
+        }
+
+        ImagePlus result = new ImagePlus( metadata.getPlateName( 0 ) + " - Overview", overview );
+        if ( channels.size( ) > 1 )
+            result = HyperStackConverter.toHyperStack( result, channels.size( ), 1, 1 );
+        return result;
+    }
+
+    /**
+     * Returns the thumbnails of all fields of a well, ordered by field then channel, from the cache if possible
+     */
+    private ImageStack getThumbnails( Well well, List<WellSample> fields, List<Integer> channels, int z, int t, int width, int height, String cache_name ) {
+        File cached = new File( PlateCache.getFile( opm.getId( ), cache_name ), String.format( "R%d-C%d.tif", well.getRow( ).getValue( ) + 1, well.getColumn( ).getValue( ) + 1 ) );
+
+        if ( cached.exists( ) ) {
+            ImagePlus imp = new Opener( ).openImage( cached.getAbsolutePath( ) );
+            if ( imp != null && imp.getStackSize( ) == fields.size( ) * channels.size( ) ) return imp.getStack( );
+        }
+
+        // The manager has one reader per thread, so files can be listed from each well's thread
+        HyperRange range = opm.getRange( );
+        Map<String, String> files = new HashMap<>( );
+        for ( WellSample field : fields ) {
+            for ( String file : opm.getFieldFiles( field ) ) {
+                Map<String, Integer> indexes = range.getIndexes( file );
+                if ( indexes.get( "Z" ) != null && indexes.get( "Z" ) == z && indexes.get( "T" ) == t && channels.contains( indexes.get( "C" ) ) )
+                    files.put( key( field, indexes.get( "C" ) ), file );
+            }
+        }
+
+        ImageStack thumbnails = ImageStack.create( width, height, fields.size( ) * channels.size( ), 16 );
+        boolean is_complete = true;
+        for ( int f = 0; f < fields.size( ); f++ ) {
+            for ( int c = 0; c < channels.size( ); c++ ) {
+                int idx = f * channels.size( ) + c + 1;
+                thumbnails.setSliceLabel( "F" + ( fields.get( f ).getIndex( ).getValue( ) + 1 ) + "-C" + channels.get( c ), idx );
+
+                String file = files.get( key( fields.get( f ), channels.get( c ) ) );
+                if ( file == null ) {
+                    is_complete = false;
+                    continue;
+                }
+                ImageProcessor ip = TiffPlaneReader.open( file, null, opm.getIoThrottle( ) );
+                if ( ip == null ) {
+                    log.error( "Could not open {}", file );
+                    is_complete = false;
+                    continue;
+                }
+                // Average the pixels when downsizing so thumbnails are not noisy
+                ImageProcessor thumbnail = ip.resize( width, height, true );
+                PixelConverter.convert( thumbnail, thumbnails.getPixels( idx ), opm.getNorm_min( ), opm.getNorm_max( ) );
+            }
+        }
+
+        // A well that is still being acquired is read again next time, rather than staying black
+        if ( !is_complete ) return thumbnails;
+
+        cached.getParentFile( ).mkdirs( );
+        IJ.saveAsTiff( new ImagePlus( "", thumbnails ), cached.getAbsolutePath( ) );
+        return thumbnails;
+    }
+
+    /**
+     * Deletes the cached thumbnails of a well, for example when new images of it were acquired
+     * @param opm the manager of the plate
+     * @param well the well
+     */
+    public static void invalidate( OperettaManager opm, Well well ) {
+        File[] folders = PlateCache.getFolder( opm.getId( ) ).listFiles( f -> f.isDirectory( ) && f.getName( ).startsWith( "thumbnails-" ) );
+        if ( folders == null ) return;
+        for ( File folder : folders ) {
+            File cached = new File( folder, String.format( "R%d-C%d.tif", well.getRow( ).getValue( ) + 1, well.getColumn( ).getValue( ) + 1 ) );
+            if ( cached.exists( ) && !cached.delete( ) ) log.warn( "Could not delete {}", cached );
+        }
+    }
+
+    private static String key( WellSample field, int c ) {
+        return field.getIndex( ).getValue( ) + "-" + c;
+    }
+}
@@ -0,0 +1,220 @@
+package ch.epfl.biop.operetta.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Orders the reads of image files so that they reach the storage in the order the Operetta wrote them, which is what
+ * spinning disks and network shares are fastest at.
+ *
+ * Files are sorted by folder, then by name. Operetta file names start with the row, column, field and plane, so this
+ * is the order in which the files were written, and usually the order in which they lie on disk. The sorted files are
+ * cut into batches of consecutive files, each batch being read by a single thread: threads still read in parallel,
+ * but each of them moves forward through the disk instead of jumping around.
+ *
+ * A single background thread can also read files ahead of time, typically those of the next field while the current
+ * one is decoded, so that they are in the page cache of the system when they are needed. The read-ahead queue is
+ * bounded, files that do not fit are simply read when they are needed. Reading ahead goes through the throttle, so the
+ * storage is already paid for: {@link #takePrefetched(String)} tells the reader of a file not to pay for it again.
+ *
+ * Use
+ * <pre>
+ * {@code
+ * scheduler.prefetch( next_field_files );
+ * for ( List<String> batch : scheduler.batch( files ) ) ...
+ * }
+ * </pre>
+ */
+public class ReadScheduler implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger( ReadScheduler.class );
+
+    /**
+     * Sorts files by folder, then by name, the order in which the Operetta writes them
+     */
+    public static final Comparator<String> FILE_ORDER = Comparator
+            .comparing( ( String f ) -> String.valueOf( new File( f ).getParent( ) ) )
+            .thenComparing( f -> new File( f ).getName( ) );
+
+    private final int batch_size;
+    private final int read_ahead;
+    private final IoThrottle throttle;
+
+    private final BlockingQueue<String> pending;
+    // Files read ahead and not read for real yet, the oldest are forgotten once there are too many
+    private final Set<String> prefetched_files = new LinkedHashSet<>( );
+    private Thread prefetcher = null;
+    private volatile boolean is_closed = false;
+
+    // Metrics
+    private final AtomicLong prefetched = new AtomicLong( 0 );
+    private final AtomicLong prefetched_bytes = new AtomicLong( 0 );
+    private final AtomicLong dropped = new AtomicLong( 0 );
+
+    /**
+     * Creates a scheduler
+     * @param batch_size how many consecutive files a thread reads before the next batch, at least 1
+     * @param read_ahead how many files can wait to be read ahead of time, 0 to disable read-ahead
+     * @param throttle the limits that reading ahead must respect, like any other read, can be null
+     */
+    public ReadScheduler( int batch_size, int read_ahead, IoThrottle throttle ) {
+        this.batch_size = Math.max( 1, batch_size );
+        this.read_ahead = Math.max( 0, read_ahead );
+        this.throttle = throttle != null ? throttle : IoThrottle.unlimited( );
+        this.pending = new LinkedBlockingQueue<>( Math.max( 1, this.read_ahead ) );
+    }
+
+    /**
+     * @param files files to read
+     * @return a sorted copy of the files, see {@link #FILE_ORDER}
+     */
+    public static List<String> order( Collection<String> files ) {
+        List<String> ordered = new ArrayList<>( files );
+        ordered.sort( FILE_ORDER );
+        return ordered;
+    }
+
+    /**
+     * Sorts files and cuts them in batches of consecutive files
+     * @param files files to read
+     * @return the batches, in file order, each to be read by a single thread
+     */
+    public List<List<String>> batch( Collection<String> files ) {
+        List<String> ordered = order( files );
+        List<List<String>> batches = new ArrayList<>( ( ordered.size( ) + batch_size - 1 ) / batch_size );
+        for ( int i = 0; i < ordered.size( ); i += batch_size )
+            batches.add( ordered.subList( i, Math.min( ordered.size( ), i + batch_size ) ) );
+        return batches;
+    }
+
+    /**
+     * Queues files to be read in the background, in file order, so that they are in the page cache when needed.
+     * Files that do not fit in the read-ahead queue are left out
+     * @param files the files that will be read next
+     */
+    public void prefetch( Collection<String> files ) {
+        if ( read_ahead == 0 || is_closed || files.isEmpty( ) ) return;
+        startPrefetcher( );
+        for ( String file : order( files ) ) {
+            if ( !pending.offer( file ) ) {
+                dropped.incrementAndGet( );
+            }
+        }
+    }
+
+    /**
+     * Tells whether a file was read ahead and not read since. Either way it is forgotten, so a file is only read
+     * without limits once after each read-ahead
+     * @param file the file about to be read
+     * @return true if the file was read ahead, in which case it is in the page cache and the throttle was already paid
+     */
+    public boolean takePrefetched( String file ) {
+        synchronized ( prefetched_files ) {
+            return prefetched_files.remove( file );
+        }
+    }
+
+    /**
+     * @return the number of consecutive files a thread reads at once
+     */
+    public int getBatchSize( ) {
+        return batch_size;
+    }
+
+    /**
+     * @return the number of files that were read ahead of time
+     */
+    public long getPrefetched( ) {
+        return prefetched.get( );
+    }
+
+    /**
+     * Stops reading ahead. Files still waiting are forgotten
+     */
+    @Override
+    public synchronized void close( ) {
+        is_closed = true;
+        pending.clear( );
+        synchronized ( prefetched_files ) {
+            prefetched_files.clear( );
+        }
+        if ( prefetcher != null ) prefetcher.interrupt( );
+        prefetcher = null;
+    }
+
+    @Override
+    public String toString( ) {
+        return String.format( "Read scheduler: batches of %d files, %d files (%.1f MB) read ahead, %d left out of a full read-ahead queue",
+                batch_size, prefetched.get( ), prefetched_bytes.get( ) / 1024.0 / 1024.0, dropped.get( ) );
+    }
+
+    private synchronized void startPrefetcher( ) {
+        if ( prefetcher != null || is_closed ) return;
+        prefetcher = new Thread( this::prefetchLoop, "Operetta read-ahead" );
+        prefetcher.setDaemon( true );
+        prefetcher.start( );
+    }
+
+    private void prefetchLoop( ) {
+        // The content is thrown away, reading it is enough for the system to cache it
+        ByteBuffer buffer = ByteBuffer.allocateDirect( 1 << 20 );
+        while ( !is_closed ) {
+            String file;
+            try {
+                file = pending.take( );
+            } catch ( InterruptedException e ) {
+                return;
+            }
+            try {
+                throttle.acquire( );
+            } catch ( InterruptedException e ) {
+                return;
+            }
+            long position = 0;
+            try ( FileChannel channel = FileChannel.open( Paths.get( file ), StandardOpenOption.READ ) ) {
+                int read;
+                buffer.clear( );
+                while ( !is_closed && ( read = channel.read( buffer, position ) ) > 0 ) {
+                    position += read;
+                    buffer.clear( );
+                }
+                prefetched.incrementAndGet( );
+                prefetched_bytes.addAndGet( position );
+                remember( file );
+            } catch ( IOException e ) {
+                log.debug( "Could not read {} ahead: {}", file, e.getMessage( ) );
+            } finally {
+                throttle.release( position );
+            }
+        }
+    }
+
+    private void remember( String file ) {
+        synchronized ( prefetched_files ) {
+            prefetched_files.add( file );
+            // More than the queue can hold were never read, the page cache has most likely dropped them anyway
+            Iterator<String> oldest = prefetched_files.iterator( );
+            while ( prefetched_files.size( ) > 4 * Math.max( 1, read_ahead ) ) {
+                oldest.next( );
+                oldest.remove( );
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package ch.epfl.biop.operetta.utils;
+
+import loci.formats.IFormatReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A pool of Bio-Formats readers on the same dataset, so that several wells or fields can be read at the same time.
+ *
+ * A reader keeps a current series, which {@link IFormatReader#setSeries(int)} changes for everyone using it, so a
+ * reader can only be used by one thread at a time. The pool hands out one reader per thread and creates new ones
+ * when all are busy, up to its size. New readers are loaded from the memo file of the first one, see
+ * {@link MemoCache#openFromMemo(File, File, File)}, so they never parse the dataset again and number its series the same
+ * way. If a new reader cannot be created, the threads wait for the readers that are already there.
+ *
+ * The first reader belongs to whoever created the pool, {@link #close()} only closes the readers the pool created.
+ *
+ * Use
+ * <pre>
+ * {@code
+ * String[] files = pool.apply( series, r -> r.getSeriesUsedFiles( false ) );
+ * }
+ * </pre>
+ */
+public class ReaderPool {
+
+    private static final Logger log = LoggerFactory.getLogger( ReaderPool.class );
+
+    private final int size;
+    private final Callable<IFormatReader> factory;
+    private final BlockingQueue<IFormatReader> idle;
+
+    // The reader the pool was given, only the others are closed with the pool
+    private final IFormatReader first;
+    private volatile boolean is_closed = false;
+    // Set once the factory failed, the pool then keeps the readers it has
+    private volatile boolean is_factory_failed = false;
+
+    // Metrics
+    private final AtomicInteger created = new AtomicInteger( 1 );
+    private final AtomicInteger in_use = new AtomicInteger( 0 );
+    private final AtomicInteger peak_in_use = new AtomicInteger( 0 );
+    private final AtomicLong borrows = new AtomicLong( 0 );
+    private final AtomicLong waits = new AtomicLong( 0 );
+    private final AtomicLong total_wait_ns = new AtomicLong( 0 );
+    private final AtomicLong max_wait_ns = new AtomicLong( 0 );
+
+    /**
+     * Creates a pool around an initialized reader
+     * @param reader the first reader of the pool, already initialized on the dataset
+     * @param size the maximum number of readers in the pool
+     * @param factory creates a new reader on the same dataset when all readers are busy, throws if it cannot
+     */
+    public ReaderPool( IFormatReader reader, int size, Callable<IFormatReader> factory ) {
+        this.size = Math.max( 1, size );
+        this.factory = factory;
+        this.first = reader;
+        this.idle = new LinkedBlockingQueue<>( this.size );
+        this.idle.add( reader );
+    }
+
+    /**
+     * Runs a function with a reader of the pool, then gives the reader back
+     * @param function what to do with the reader. The reader must not be kept once the function returns
+     * @param <T> the type of the result
+     * @return the result of the function
+     */
+    public <T> T apply( Function<IFormatReader, T> function ) {
+        IFormatReader reader = borrow( );
+        try {
+            return function.apply( reader );
+        } finally {
+            release( reader );
+        }
+    }
+
+    /**
+     * Runs a function with a reader of the pool set to the given series, then gives the reader back
+     * @param series the series to set on the reader
+     * @param function what to do with the reader. The reader must not be kept once the function returns
+     * @param <T> the type of the result
+     * @return the result of the function
+     */
+    public <T> T apply( int series, Function<IFormatReader, T> function ) {
+        return apply( reader -> {
+            reader.setSeries( series );
+            return function.apply( reader );
+        } );
+    }
+
+    private IFormatReader borrow( ) {
+        borrows.incrementAndGet( );
+        IFormatReader reader = idle.poll( );
+
+        // Create a new reader if all of them are busy and the pool is not full
+        if ( reader == null && !is_factory_failed ) {
+            int count = created.get( );
+            while ( count < size && !created.compareAndSet( count, count + 1 ) ) count = created.get( );
+            if ( count < size ) {
+                log.debug( "Creating reader {} of {}", count + 1, size );
+                reader = create( );
+                if ( reader == null ) created.decrementAndGet( );
+            }
+        }
+
+        // Otherwise wait for one to come back. Reader calls are short, so this does not give up when interrupted
+        if ( reader == null ) {
+            long start = System.nanoTime( );
+            boolean interrupted = false;
+            while ( reader == null ) {
+                try {
+                    reader = idle.take( );
+                } catch ( InterruptedException e ) {
+                    interrupted = true;
+                }
+            }
+            if ( interrupted ) Thread.currentThread( ).interrupt( );
+
+            long waited = System.nanoTime( ) - start;
+            waits.incrementAndGet( );
+            total_wait_ns.addAndGet( waited );
+            max_wait_ns.accumulateAndGet( waited, Math::max );
+        }
+
+        peak_in_use.accumulateAndGet( in_use.incrementAndGet( ), Math::max );
+        return reader;
+    }
+
+    private IFormatReader create( ) {
+        try {
+            return factory.call( );
+        } catch ( Exception e ) {
+            is_factory_failed = true;
+            log.warn( "Could not create another reader, using the {} readers there are: {}", created.get( ) - 1, e.getMessage( ) );
+            return null;
+        }
+    }
+
+    private void release( IFormatReader reader ) {
+        in_use.decrementAndGet( );
+        // Readers given back after the pool was closed are closed then
+        if ( is_closed && reader != first ) {
+            close( reader );
+            return;
+        }
+        idle.offer( reader );
+    }
+
+    /**
+     * Closes the readers that the pool created, those in use are closed when they are given back. The first reader,
+     * which the pool was given, stays open. The pool cannot be used afterwards
+     */
+    public void close( ) {
+        is_closed = true;
+        IFormatReader reader;
+        while ( ( reader = idle.poll( ) ) != null )
+            if ( reader != first ) close( reader );
+    }
+
+    private void close( IFormatReader reader ) {
+        try {
+            reader.close( );
+        } catch ( IOException e ) {
+            log.warn( "Could not close a reader: {}", e.getMessage( ) );
+        }
+    }
+
+    /**
+     * @return the maximum number of readers in the pool
+     */
+    public int getSize( ) {
+        return size;
+    }
+
+    /**
+     * @return the number of readers created so far, including the first one
+     */
+    public int getCreated( ) {
+        return created.get( );
+    }
+
+    /**
+     * @return how many times a reader was handed out
+     */
+    public long getBorrows( ) {
+        return borrows.get( );
+    }
+
+    /**
+     * @return how many times a thread had to wait for a reader to be given back
+     */
+    public long getWaits( ) {
+        return waits.get( );
+    }
+
+    /**
+     * @return the total time threads spent waiting for a reader, in milliseconds
+     */
+    public double getTotalWaitMillis( ) {
+        return total_wait_ns.get( ) / 1e6;
+    }
+
+    /**
+     * @return the largest number of readers used at the same time
+     */
+    public int getPeakInUse( ) {
+        return peak_in_use.get( );
+    }
+
+    @Override
+    public String toString( ) {
+        return String.format( "Reader pool: %d/%d readers created, peak %d in use, %d borrows, %d waited (total %.1f ms, max %.1f ms)",
+                created.get( ), size, peak_in_use.get( ), borrows.get( ), waits.get( ), total_wait_ns.get( ) / 1e6, max_wait_ns.get( ) / 1e6 );
+    }
+}
@@ -0,0 +1,299 @@
+package ch.epfl.biop.operetta.utils;
+
+import ij.ImagePlus;
+import ij.io.Opener;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads the single-plane TIFF files that the Operetta writes, without going through ImageJ's general purpose
+ * {@link Opener}.
+ *
+ * These files are uncompressed grayscale planes, so the reader only parses the first IFD and then copies the strips
+ * with positional {@link FileChannel} reads into a buffer that each thread reuses, and from there into a pixel array,
+ * taken from a {@link PlanePool} if one is given, in the byte order of the file. Strips that follow each other on disk,
+ * which is the usual case, are read in a single call.
+ *
+ * Anything else (compression, several samples per pixel, signed or 64-bit data, BigTIFF, inverted grayscale...) is
+ * read with the {@link Opener} instead, see {@link #open(String, PlanePool)}.
+ */
+public class TiffPlaneReader {
+
+    private static final Logger log = LoggerFactory.getLogger( TiffPlaneReader.class );
+
+    // TIFF tags
+    private static final int IMAGE_WIDTH = 256;
+    private static final int IMAGE_LENGTH = 257;
+    private static final int BITS_PER_SAMPLE = 258;
+    private static final int COMPRESSION = 259;
+    private static final int PHOTOMETRIC = 262;
+    private static final int STRIP_OFFSETS = 273;
+    private static final int SAMPLES_PER_PIXEL = 277;
+    private static final int STRIP_BYTE_COUNTS = 279;
+    private static final int SAMPLE_FORMAT = 339;
+
+    // TIFF types
+    private static final int SHORT = 3;
+    private static final int LONG = 4;
+
+    // Reused by each thread for the pixels, it only grows
+    private static final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial( ( ) -> ByteBuffer.allocate( 64 * 1024 ) );
+
+    // Metrics
+    private static final AtomicLong direct = new AtomicLong( 0 );
+    private static final AtomicLong fallback = new AtomicLong( 0 );
+
+    private TiffPlaneReader( ) {
+    }
+
+    /**
+     * Opens the first plane of a TIFF file, directly if it is a plain uncompressed grayscale plane, with ImageJ's
+     * {@link Opener} otherwise
+     * @param path the TIFF file
+     * @param pool where to take the pixel array from, null to allocate a new one. Give it back to the pool once done
+     * @return the plane, or null if the file could not be opened
+     */
+    public static ImageProcessor open( String path, PlanePool pool ) {
+        try {
+            ImageProcessor ip = read( path, pool );
+            if ( ip != null ) {
+                direct.incrementAndGet( );
+                return ip;
+            }
+        } catch ( IOException e ) {
+            log.debug( "Could not read {} directly: {}", path, e.getMessage( ) );
+        }
+
+        // The read was cancelled, do not start it again with the Opener
+        if ( Thread.currentThread( ).isInterrupted( ) ) return null;
+
+        fallback.incrementAndGet( );
+        ImagePlus imp = new Opener( ).openImage( path );
+        return imp == null ? null : imp.getProcessor( );
+    }
+
+    /**
+     * Opens the first plane of a TIFF file like {@link #open(String, PlanePool)}, within the limits of a throttle
+     * @param path the TIFF file
+     * @param pool where to take the pixel array from, null to allocate a new one. Give it back to the pool once done
+     * @param throttle limits how fast files are read, null for no limit
+     * @return the plane, or null if the file could not be opened or the thread was interrupted while waiting
+     */
+    public static ImageProcessor open( String path, PlanePool pool, IoThrottle throttle ) {
+        if ( throttle == null ) return open( path, pool );
+        return throttle.read( ( ) -> open( path, pool ), TiffPlaneReader::getBytes );
+    }
+
+    /**
+     * @param ip a plane
+     * @return the number of bytes of its pixels, which is what was read from its file
+     */
+    public static long getBytes( ImageProcessor ip ) {
+        return (long) ip.getPixelCount( ) * ( ip.getBitDepth( ) / 8 );
+    }
+
+    /**
+     * Reads the first plane of an uncompressed grayscale TIFF file
+     * @param path the TIFF file
+     * @param pool where to take the pixel array from, null to allocate a new one
+     * @return the plane, or null if the file is not a plain 8-bit, unsigned 16-bit or float 32-bit uncompressed TIFF
+     * @throws IOException if the file could not be read
+     */
+    public static ImageProcessor read( String path, PlanePool pool ) throws IOException {
+        try ( FileChannel channel = FileChannel.open( Paths.get( path ), StandardOpenOption.READ ) ) {
+
+            // Header: byte order, magic number and offset of the first IFD
+            ByteBuffer header = readAt( channel, 0, 8 );
+            ByteOrder order;
+            if ( header.get( 0 ) == 'I' && header.get( 1 ) == 'I' ) order = ByteOrder.LITTLE_ENDIAN;
+            else if ( header.get( 0 ) == 'M' && header.get( 1 ) == 'M' ) order = ByteOrder.BIG_ENDIAN;
+            else return null;
+            header.order( order );
+            if ( header.getShort( 2 ) != 42 ) return null;
+            long ifd = header.getInt( 4 ) & 0xFFFFFFFFL;
+
+            int n_entries = readAt( channel, ifd, 2 ).order( order ).getShort( 0 ) & 0xFFFF;
+            ByteBuffer entries = readAt( channel, ifd + 2, n_entries * 12 ).order( order );
+
+            int width = 0, height = 0, bits = 1, compression = 1, photometric = 1, samples = 1, format = 1;
+            long[] offsets = null, counts = null;
+
+            for ( int e = 0; e < n_entries; e++ ) {
+                int p = e * 12;
+                int tag = entries.getShort( p ) & 0xFFFF;
+                int type = entries.getShort( p + 2 ) & 0xFFFF;
+                int count = entries.getInt( p + 4 );
+                long value = type == SHORT ? entries.getShort( p + 8 ) & 0xFFFF : entries.getInt( p + 8 ) & 0xFFFFFFFFL;
+
+                switch ( tag ) {
+                    case IMAGE_WIDTH: width = (int) value; break;
+                    case IMAGE_LENGTH: height = (int) value; break;
+                    case BITS_PER_SAMPLE: if ( count != 1 ) return null; bits = (int) value; break;
+                    case COMPRESSION: compression = (int) value; break;
+                    case PHOTOMETRIC: photometric = (int) value; break;
+                    case SAMPLES_PER_PIXEL: samples = (int) value; break;
+                    case SAMPLE_FORMAT: format = (int) value; break;
+                    case STRIP_OFFSETS: offsets = readArray( channel, order, type, count, entries, p + 8 ); break;
+                    case STRIP_BYTE_COUNTS: counts = readArray( channel, order, type, count, entries, p + 8 ); break;
+                    default: break;
+                }
+            }
+
+            // Only what the Operetta writes, the Opener deals with the rest
+            if ( compression != 1 || samples != 1 || photometric != 1 ) return null;
+            if ( width <= 0 || height <= 0 || offsets == null || counts == null || offsets.length != counts.length ) return null;
+            if ( !( bits == 8 && format == 1 || bits == 16 && format == 1 || bits == 32 && format == 3 ) ) return null;
+
+            long plane_bytes = (long) width * height * ( bits / 8 );
+            if ( plane_bytes > Integer.MAX_VALUE ) return null;
+
+            ByteBuffer data = getBuffer( (int) plane_bytes );
+            if ( isContiguous( offsets, counts ) ) {
+                readFully( channel, data, offsets[ 0 ] );
+            } else {
+                for ( int s = 0; s < offsets.length && data.hasRemaining( ); s++ ) {
+                    int limit = data.position( ) + (int) Math.min( counts[ s ], data.remaining( ) );
+                    data.limit( limit );
+                    readFully( channel, data, offsets[ s ] );
+                    data.limit( (int) plane_bytes );
+                }
+                if ( data.hasRemaining( ) ) throw new EOFException( "Strips of " + path + " are shorter than the image" );
+            }
+            data.flip( );
+            data.order( order );
+
+            int size = width * height;
+            switch ( bits ) {
+                case 8:
+                    byte[] b = pool != null ? (byte[]) pool.get( 8, size ) : new byte[ size ];
+                    data.get( b );
+                    return new ByteProcessor( width, height, b, null );
+                case 16:
+                    short[] s = pool != null ? (short[]) pool.get( 16, size ) : new short[ size ];
+                    data.asShortBuffer( ).get( s );
+                    return new ShortProcessor( width, height, s, null );
+                default:
+                    float[] f = pool != null ? (float[]) pool.get( 32, size ) : new float[ size ];
+                    data.asFloatBuffer( ).get( f );
+                    return new FloatProcessor( width, height, f, null );
+            }
+        }
+    }
+
+    /**
+     * @return how many files were read directly and how many went through the Opener
+     */
+    public static String getMetrics( ) {
+        return String.format( "TIFF planes: %d read directly, %d through the Opener", direct.get( ), fallback.get( ) );
+    }
+
+    /**
+     * Checks, without reading the pixels, that a TIFF file has a header, a first IFD and all the strips it points to.
+     * A file that is still being written usually misses some of them
+     * @param path the TIFF file
+     * @return true if the first plane of the file can be read
+     */
+    public static boolean isComplete( String path ) {
+        try ( FileChannel channel = FileChannel.open( Paths.get( path ), StandardOpenOption.READ ) ) {
+            ByteBuffer header = readAt( channel, 0, 8 );
+            ByteOrder order;
+            if ( header.get( 0 ) == 'I' && header.get( 1 ) == 'I' ) order = ByteOrder.LITTLE_ENDIAN;
+            else if ( header.get( 0 ) == 'M' && header.get( 1 ) == 'M' ) order = ByteOrder.BIG_ENDIAN;
+            else return false;
+            header.order( order );
+            if ( header.getShort( 2 ) != 42 ) return false;
+            long ifd = header.getInt( 4 ) & 0xFFFFFFFFL;
+
+            int n_entries = readAt( channel, ifd, 2 ).order( order ).getShort( 0 ) & 0xFFFF;
+            ByteBuffer entries = readAt( channel, ifd + 2, n_entries * 12 ).order( order );
+
+            long[] offsets = null, counts = null;
+            for ( int e = 0; e < n_entries; e++ ) {
+                int p = e * 12;
+                int tag = entries.getShort( p ) & 0xFFFF;
+                int type = entries.getShort( p + 2 ) & 0xFFFF;
+                int count = entries.getInt( p + 4 );
+                if ( tag == STRIP_OFFSETS ) offsets = readArray( channel, order, type, count, entries, p + 8 );
+                if ( tag == STRIP_BYTE_COUNTS ) counts = readArray( channel, order, type, count, entries, p + 8 );
+            }
+            if ( offsets == null || counts == null || offsets.length != counts.length ) return false;
+
+            long end = 0;
+            for ( int s = 0; s < offsets.length; s++ ) end = Math.max( end, offsets[ s ] + counts[ s ] );
+            return end <= channel.size( );
+        } catch ( IOException e ) {
+            log.debug( "{} is not complete: {}", path, e.getMessage( ) );
+            return false;
+        }
+    }
+
+    private static boolean isContiguous( long[] offsets, long[] counts ) {
+        for ( int s = 1; s < offsets.length; s++ )
+            if ( offsets[ s ] != offsets[ s - 1 ] + counts[ s - 1 ] ) return false;
+        return true;
+    }
+
+    /**
+     * Reads the values of a SHORT or LONG array entry, which are in the entry itself when they fit in 4 bytes
+     */
+    private static long[] readArray( FileChannel channel, ByteOrder order, int type, int count, ByteBuffer entries, int value_position ) throws IOException {
+        if ( type != SHORT && type != LONG ) return null;
+        int size = type == SHORT ? 2 : 4;
+
+        ByteBuffer values;
+        int start;
+        if ( count * size <= 4 ) {
+            values = entries;
+            start = value_position;
+        } else {
+            values = readAt( channel, entries.getInt( value_position ) & 0xFFFFFFFFL, count * size ).order( order );
+            start = 0;
+        }
+
+        long[] array = new long[ count ];
+        for ( int i = 0; i < count; i++ )
+            array[ i ] = type == SHORT ? values.getShort( start + i * 2 ) & 0xFFFF : values.getInt( start + i * 4 ) & 0xFFFFFFFFL;
+        return array;
+    }
+
+    /**
+     * Reads a few bytes of the header. These are small, so they get their own buffer rather than the pixel buffer
+     */
+    private static ByteBuffer readAt( FileChannel channel, long position, int length ) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate( length );
+        readFully( channel, buffer, position );
+        return buffer;
+    }
+
+    private static void readFully( FileChannel channel, ByteBuffer buffer, long position ) throws IOException {
+        while ( buffer.hasRemaining( ) ) {
+            int read = channel.read( buffer, position );
+            if ( read < 0 ) throw new EOFException( "Unexpected end of file at " + position );
+            position += read;
+        }
+    }
+
+    private static ByteBuffer getBuffer( int size ) {
+        ByteBuffer buffer = buffers.get( );
+        if ( buffer.capacity( ) < size ) {
+            buffer = ByteBuffer.allocate( size );
+            buffers.set( buffer );
+        }
+        buffer.clear( );
+        buffer.limit( size );
+        return buffer;
+    }
+}
@@ -0,0 +1,229 @@
+package ch.epfl.biop.operetta.utils;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a C Z T hyperstack to a single TIFF file one timepoint at a time, so that long time-lapses can be exported
+ * with only one timepoint in memory.
+ *
+ * The file is laid out the way ImageJ saves stacks larger than 4 GB: a single IFD whose description gives the number of
+ * images and the hyperstack dimensions, followed by all planes contiguously, in ImageJ's C, Z, T order. As the size of
+ * every plane is known, the whole file is allocated when the writer is created and each timepoint is written at its own
+ * offset. The file can therefore be opened in ImageJ at any time during the export: timepoints that are not written yet
+ * are black.
+ *
+ * Use
+ * <pre>
+ * {@code
+ * try ( TimelapseTiffWriter writer = TimelapseTiffWriter.create( file, first_timepoint, n_timepoints ) ) {
+ *     writer.writeTimepoint( 0, first_timepoint.getStack( ) );
+ *     ...
+ * }
+ * }
+ * </pre>
+ */
+public class TimelapseTiffWriter implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger( TimelapseTiffWriter.class );
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+
+    private final int width;
+    private final int height;
+    private final int planes_per_timepoint;
+    private final int frames;
+    private final int bit_depth;
+
+    private final long plane_bytes;
+    private final long data_offset;
+
+    // Reused for every plane, so that memory stays at one timepoint plus one plane
+    private final ByteBuffer buffer;
+
+    private int written = 0;
+
+    /**
+     * Creates the file and allocates room for all timepoints
+     * @param file the TIFF file to write
+     * @param width the width of the planes
+     * @param height the height of the planes
+     * @param channels the number of channels
+     * @param slices the number of slices
+     * @param frames the number of timepoints
+     * @param bit_depth 8, 16 or 32
+     * @param cal the calibration saved in the file, can be null
+     * @throws IOException if the file cannot be created
+     */
+    public TimelapseTiffWriter( File file, int width, int height, int channels, int slices, int frames, int bit_depth, Calibration cal ) throws IOException {
+        if ( bit_depth != 8 && bit_depth != 16 && bit_depth != 32 )
+            throw new IllegalArgumentException( "Unsupported bit depth " + bit_depth );
+
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.planes_per_timepoint = channels * slices;
+        this.frames = frames;
+        this.bit_depth = bit_depth;
+        this.plane_bytes = (long) width * height * ( bit_depth / 8 );
+        this.buffer = ByteBuffer.allocate( (int) plane_bytes ).order( ByteOrder.LITTLE_ENDIAN );
+
+        byte[] header = createHeader( channels, slices, cal );
+        this.data_offset = header.length;
+
+        this.raf = new RandomAccessFile( file, "rw" );
+        this.channel = raf.getChannel( );
+        raf.setLength( 0 );
+        raf.setLength( data_offset + plane_bytes * planes_per_timepoint * frames );
+        channel.write( ByteBuffer.wrap( header ), 0 );
+
+        log.info( "Streaming {} timepoints of {}x{}x{} planes to {}", frames, width, height, planes_per_timepoint, file );
+    }
+
+    /**
+     * Creates a writer with the dimensions and calibration of the first timepoint of a time-lapse
+     * @param file the TIFF file to write
+     * @param timepoint an image holding a single timepoint, with all the channels and slices to save
+     * @param frames the total number of timepoints
+     * @return the writer, with room allocated for all timepoints
+     * @throws IOException if the file cannot be created
+     */
+    public static TimelapseTiffWriter create( File file, ImagePlus timepoint, int frames ) throws IOException {
+        return new TimelapseTiffWriter( file, timepoint.getWidth( ), timepoint.getHeight( ), timepoint.getNChannels( ), timepoint.getNSlices( ),
+                frames, timepoint.getBitDepth( ), timepoint.getCalibration( ) );
+    }
+
+    /**
+     * Writes all planes of one timepoint at their place in the file
+     * @param t the timepoint, starting at 0
+     * @param stack the planes of this timepoint, channels first then slices, as in an ImageJ hyperstack
+     * @throws IOException if the planes could not be written
+     */
+    public synchronized void writeTimepoint( int t, ImageStack stack ) throws IOException {
+        if ( t < 0 || t >= frames ) throw new IllegalArgumentException( "Timepoint " + t + " is not in 0-" + ( frames - 1 ) );
+        if ( stack.getWidth( ) != width || stack.getHeight( ) != height || stack.getSize( ) != planes_per_timepoint )
+            throw new IllegalArgumentException( "Timepoint " + t + " is " + stack.getWidth( ) + "x" + stack.getHeight( ) + "x" + stack.getSize( )
+                    + ", expected " + width + "x" + height + "x" + planes_per_timepoint );
+
+        long position = data_offset + plane_bytes * planes_per_timepoint * t;
+        for ( int p = 1; p <= planes_per_timepoint; p++ ) {
+            buffer.clear( );
+            Object pixels = stack.getPixels( p );
+            if ( pixels instanceof byte[] ) buffer.put( (byte[]) pixels );
+            else if ( pixels instanceof short[] ) buffer.asShortBuffer( ).put( (short[]) pixels );
+            else if ( pixels instanceof float[] ) buffer.asFloatBuffer( ).put( (float[]) pixels );
+            else throw new IllegalArgumentException( "Unsupported pixels in plane " + p + " of timepoint " + t );
+            buffer.position( 0 ).limit( (int) plane_bytes );
+
+            while ( buffer.hasRemaining( ) ) position += channel.write( buffer, position );
+        }
+        written++;
+        log.debug( "Timepoint {} written to {}", t + 1, file.getName( ) );
+    }
+
+    /**
+     * @return the number of timepoints written so far
+     */
+    public synchronized int getTimepointsWritten( ) {
+        return written;
+    }
+
+    /**
+     * Closes the file. Timepoints that were not written stay black
+     * @throws IOException if the file could not be closed
+     */
+    @Override
+    public synchronized void close( ) throws IOException {
+        if ( written < frames ) log.warn( "{}: only {} of {} timepoints were written", file.getName( ), written, frames );
+        channel.close( );
+        raf.close( );
+    }
+
+    /**
+     * Builds the TIFF header, the single IFD and its values, everything that comes before the pixels
+     */
+    private byte[] createHeader( int channels, int slices, Calibration cal ) {
+        byte[] description = createDescription( channels, slices, cal ).getBytes( StandardCharsets.US_ASCII );
+
+        final int n_entries = bit_depth == 32 ? 14 : 13;
+        final int ifd_offset = 8;
+        // The resolutions come first as TIFF values must start on an even offset
+        final int resolution_offset = ifd_offset + 2 + n_entries * 12 + 4;
+        final int description_offset = resolution_offset + 16;
+        // Start the pixels on a 16 bytes boundary
+        final int size = ( description_offset + description.length + 15 ) / 16 * 16;
+
+        double x_scale = cal != null && cal.pixelWidth > 0 ? 1.0 / cal.pixelWidth : 1.0;
+        double y_scale = cal != null && cal.pixelHeight > 0 ? 1.0 / cal.pixelHeight : 1.0;
+
+        ByteBuffer header = ByteBuffer.allocate( size ).order( ByteOrder.LITTLE_ENDIAN );
+        header.put( (byte) 'I' ).put( (byte) 'I' ).putShort( (short) 42 ).putInt( ifd_offset );
+
+        header.putShort( (short) n_entries );
+        putEntry( header, 254, 4, 1, 0 );                                       // NewSubfileType
+        putEntry( header, 256, 4, 1, width );                                   // ImageWidth
+        putEntry( header, 257, 4, 1, height );                                  // ImageLength
+        putEntry( header, 258, 3, 1, bit_depth );                               // BitsPerSample
+        putEntry( header, 262, 3, 1, 1 );                                       // PhotometricInterpretation, black is zero
+        putEntry( header, 270, 2, description.length, description_offset );     // ImageDescription
+        putEntry( header, 273, 4, 1, size );                                    // StripOffsets, the first plane
+        putEntry( header, 277, 3, 1, 1 );                                       // SamplesPerPixel
+        putEntry( header, 278, 4, 1, height );                                  // RowsPerStrip
+        putEntry( header, 279, 4, 1, (int) plane_bytes );                       // StripByteCounts, the first plane
+        putEntry( header, 282, 5, 1, resolution_offset );                       // XResolution
+        putEntry( header, 283, 5, 1, resolution_offset + 8 );                   // YResolution
+        putEntry( header, 296, 3, 1, 1 );                                       // ResolutionUnit, the unit is in the description
+        if ( bit_depth == 32 ) putEntry( header, 339, 3, 1, 3 );                // SampleFormat, floating point
+        header.putInt( 0 );                                                     // No other IFD
+
+        header.putInt( (int) Math.min( Integer.MAX_VALUE, Math.round( x_scale * 1_000_000 ) ) ).putInt( 1_000_000 );
+        header.putInt( (int) Math.min( Integer.MAX_VALUE, Math.round( y_scale * 1_000_000 ) ) ).putInt( 1_000_000 );
+        header.put( description );
+        return header.array( );
+    }
+
+    private static void putEntry( ByteBuffer header, int tag, int type, int count, int value ) {
+        header.putShort( (short) tag ).putShort( (short) type ).putInt( count );
+        // SHORT values are left-justified in the 4 bytes of the value
+        if ( type == 3 && count == 1 ) header.putShort( (short) value ).putShort( (short) 0 );
+        else header.putInt( value );
+    }
+
+    /**
+     * The ImageJ description tells ImageJ how many planes follow the first one and how they form a hyperstack
+     */
+    private String createDescription( int channels, int slices, Calibration cal ) {
+        StringBuilder sb = new StringBuilder( );
+        sb.append( "ImageJ=" ).append( IJ.getVersion( ) ).append( '\n' );
+        sb.append( "images=" ).append( planes_per_timepoint * frames ).append( '\n' );
+        if ( channels > 1 ) sb.append( "channels=" ).append( channels ).append( '\n' );
+        if ( slices > 1 ) sb.append( "slices=" ).append( slices ).append( '\n' );
+        if ( frames > 1 ) sb.append( "frames=" ).append( frames ).append( '\n' );
+        if ( channels > 1 || slices > 1 && frames > 1 ) sb.append( "hyperstack=true\n" );
+        if ( channels > 1 ) sb.append( "mode=composite\n" );
+        if ( cal != null ) {
+            String unit = cal.getUnit( );
+            if ( unit != null ) sb.append( "unit=" ).append( unit.equals( "\u00B5m" ) ? "micron" : unit ).append( '\n' );
+            if ( slices > 1 ) sb.append( "spacing=" ).append( cal.pixelDepth ).append( '\n' );
+            if ( frames > 1 && cal.frameInterval > 0 ) sb.append( "finterval=" ).append( cal.frameInterval ).append( '\n' );
+            if ( cal.getTimeUnit( ) != null ) sb.append( "tunit=" ).append( cal.getTimeUnit( ) ).append( '\n' );
+        }
+        sb.append( "loop=false\n" );
+        sb.append( '\0' );
+        return sb.toString( );
+    }
+}
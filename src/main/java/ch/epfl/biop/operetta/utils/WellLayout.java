@@ -0,0 +1,173 @@
+package ch.epfl.biop.operetta.utils;
+
+import ome.xml.model.WellSample;
+
+import java.awt.*;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The geometry of a well, in pixels, computed once from the metadata: the position and size of each field,
+ * the top left corner of the well and its full extent.
+ *
+ * Converting stage positions to pixels goes through {@link ome.units} for every call, which adds up when it is done
+ * for every field of every cell that is loaded. A layout is immutable and only holds primitive arrays, so it can be
+ * shared between threads and read without any conversion. Fields without a position are not part of the layout.
+ */
+public class WellLayout {
+
+    private final WellSample[] fields;
+    private final int[] x, y, width, height;
+
+    // Position of each field in the arrays, by series index
+    private final Map<Integer, Integer> slots;
+
+    private final int origin_x, origin_y;
+    private final int max_x, max_y;
+    private final int well_width, well_height;
+
+    private final FieldIndex index;
+
+    /**
+     * Builds the layout of a well
+     * @param fields the fields of the well that have a position
+     * @param x the X position of each field, in pixels, in the same order as the fields
+     * @param y the Y position of each field, in pixels
+     * @param width the width of each field, in pixels
+     * @param height the height of each field, in pixels
+     */
+    public WellLayout( List<WellSample> fields, int[] x, int[] y, int[] width, int[] height ) {
+        int n = fields.size( );
+        this.fields = fields.toArray( new WellSample[ 0 ] );
+        this.x = Arrays.copyOf( x, n );
+        this.y = Arrays.copyOf( y, n );
+        this.width = Arrays.copyOf( width, n );
+        this.height = Arrays.copyOf( height, n );
+
+        this.slots = new HashMap<>( n * 2 );
+        for ( int i = 0; i < n; i++ ) slots.put( this.fields[ i ].getIndex( ).getValue( ), i );
+
+        this.origin_x = n == 0 ? 0 : Arrays.stream( x, 0, n ).min( ).getAsInt( );
+        this.origin_y = n == 0 ? 0 : Arrays.stream( y, 0, n ).min( ).getAsInt( );
+        this.max_x = n == 0 ? 0 : Arrays.stream( x, 0, n ).max( ).getAsInt( );
+        this.max_y = n == 0 ? 0 : Arrays.stream( y, 0, n ).max( ).getAsInt( );
+
+        int right = origin_x, bottom = origin_y;
+        for ( int i = 0; i < n; i++ ) {
+            right = Math.max( right, x[ i ] + width[ i ] );
+            bottom = Math.max( bottom, y[ i ] + height[ i ] );
+        }
+        this.well_width = right - origin_x;
+        this.well_height = bottom - origin_y;
+
+        // The spatial index works relative to the top left corner of the well
+        Rectangle[] bounds = new Rectangle[ n ];
+        for ( int i = 0; i < n; i++ )
+            bounds[ i ] = new Rectangle( x[ i ] - origin_x, y[ i ] - origin_y, width[ i ], height[ i ] );
+        this.index = new FieldIndex( fields, Arrays.asList( bounds ) );
+    }
+
+    /**
+     * @param field a field of this well
+     * @return the position of the field in the layout, or -1 if it is not part of it
+     */
+    public int indexOf( WellSample field ) {
+        Integer slot = slots.get( field.getIndex( ).getValue( ) );
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * @return the number of fields in the layout
+     */
+    public int size( ) {
+        return fields.length;
+    }
+
+    /**
+     * @param i the position of the field in the layout
+     * @return the field
+     */
+    public WellSample getField( int i ) {
+        return fields[ i ];
+    }
+
+    /**
+     * @param i the position of the field in the layout
+     * @return the X position of the field, in pixels
+     */
+    public int getX( int i ) {
+        return x[ i ];
+    }
+
+    /**
+     * @param i the position of the field in the layout
+     * @return the Y position of the field, in pixels
+     */
+    public int getY( int i ) {
+        return y[ i ];
+    }
+
+    /**
+     * @param i the position of the field in the layout
+     * @return the width of the field, in pixels
+     */
+    public int getWidth( int i ) {
+        return width[ i ];
+    }
+
+    /**
+     * @param i the position of the field in the layout
+     * @return the height of the field, in pixels
+     */
+    public int getHeight( int i ) {
+        return height[ i ];
+    }
+
+    /**
+     * @param selected fields of this well
+     * @return true if any two of the fields that are part of the layout overlap
+     */
+    public boolean isOverlapping( Collection<WellSample> selected ) {
+        int[] slots = selected.stream( ).mapToInt( this::indexOf ).filter( i -> i >= 0 ).toArray( );
+        for ( int a = 0; a < slots.length; a++ ) {
+            int i = slots[ a ];
+            for ( int b = a + 1; b < slots.length; b++ ) {
+                int j = slots[ b ];
+                if ( x[ i ] < x[ j ] + width[ j ] && x[ j ] < x[ i ] + width[ i ]
+                        && y[ i ] < y[ j ] + height[ j ] && y[ j ] < y[ i ] + height[ i ] ) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the top left corner of the well, in pixels
+     */
+    public Point getOrigin( ) {
+        return new Point( origin_x, origin_y );
+    }
+
+    /**
+     * @return the largest X and Y positions of the fields, in pixels
+     */
+    public Point getBottomRight( ) {
+        return new Point( max_x, max_y );
+    }
+
+    /**
+     * @return the width and height of the stitched well, in pixels
+     */
+    public Dimension getExtent( ) {
+        return new Dimension( well_width, well_height );
+    }
+
+    /**
+     * @return the spatial index of the fields, relative to the top left corner of the well
+     */
+    public FieldIndex getFieldIndex( ) {
+        return index;
+    }
+}